@@ -8,6 +8,7 @@ import com.lightbend.lagom.javadsl.api.ServiceCall;
 import com.lightbend.lagom.javadsl.api.broker.Topic;
 import com.lightbend.lagom.javadsl.api.broker.kafka.KafkaProperties;
 import com.lightbend.lagom.javadsl.api.transport.Method;
+import org.pcollections.PSequence;
 
 import static com.lightbend.lagom.javadsl.api.Service.*;
 
@@ -25,12 +26,42 @@ public interface BookentryService extends Service {
     //readAccount returns latest account and balance information
     ServiceCall<NotUsed, ReadAccountDto> readAccount(String accountNumber);
 
+    //readAccountEventually returns account and balance information from a replicated view instead of asking
+    //the account itself, it may lag the account by up to bookentry.account-view.max-staleness
+    ServiceCall<NotUsed, ReadAccountDto> readAccountEventually(String accountNumber);
+
+    //readAccounts returns the latest details and balance of each account, in the order they were asked for
+    ServiceCall<PSequence<String>, PSequence<ReadAccountDto>> readAccounts();
+
+    //readSuspenseBalance returns the combined balance of all deposit suspense accounts of a currency
+    ServiceCall<NotUsed, ReadAccountDto> readSuspenseBalance(String currencyCode);
+
     ServiceCall<DepositDto, ServiceResponse> performDeposit();
 
     ServiceCall<TransferDto, ServiceResponse> performTransfer();
 
     ServiceCall<ReversalDto, ServiceResponse> performReversal();
 
+    //submitTransfer records a transfer and answers 202 Accepted with its transferId before anything is posted,
+    //the transfer then completes in the background, poll transferStatus for its outcome
+    //while an account is busy it answers 429 Too Many Requests with a Retry-After instead, recording nothing
+    ServiceCall<TransferDto, TransferStatusDto> submitTransfer();
+
+    //transferStatus returns the progress of a transfer, and its response code once it is finished
+    ServiceCall<NotUsed, TransferStatusDto> transferStatus(String transferId);
+
+    //performBulkTransfer debits the source account once and fans the credits out to each destination
+    ServiceCall<BulkTransferDto, BulkTransferResponse> performBulkTransfer();
+
+    //reconcile runs the ledger reconciliation over the postings since the previous run and reports its breaks
+    ServiceCall<NotUsed, ReconciliationReport> reconcile();
+
+    //reconciliationBreaks returns the references whose legs did not net to zero when last checked
+    ServiceCall<NotUsed, PSequence<ReconciliationReport.Break>> reconciliationBreaks();
+
+    //metrics returns latency histograms and response code counters in the Prometheus text format
+    ServiceCall<NotUsed, String> metrics();
+
     /**
      * AccountEvents get published to Kafka.
      */
@@ -42,10 +73,19 @@ public interface BookentryService extends Service {
                 .withCalls(
                         restCall(Method.POST, "/api/accounts", this::addAccount),
                         restCall(Method.PUT, "/api/accounts", this::updateAccount),
+                        restCall(Method.POST, "/api/accounts/read-batch", this::readAccounts),
                         restCall(Method.GET, "/api/accounts/:accountNumber", this::readAccount),
+                        restCall(Method.GET, "/api/accounts/eventual/:accountNumber", this::readAccountEventually),
+                        restCall(Method.GET, "/api/accounts/suspense/:currencyCode", this::readSuspenseBalance),
                         restCall(Method.POST, "/api/accounts/deposit", this::performDeposit),
                         restCall(Method.POST, "/api/accounts/transfer", this::performTransfer),
-                        restCall(Method.POST, "/api/accounts/reversal", this::performReversal)
+                        restCall(Method.POST, "/api/accounts/reversal", this::performReversal),
+                        restCall(Method.POST, "/api/accounts/transfer/bulk", this::performBulkTransfer),
+                        restCall(Method.POST, "/api/transfers", this::submitTransfer),
+                        restCall(Method.GET, "/api/transfers/:transferId", this::transferStatus),
+                        restCall(Method.POST, "/api/reconciliation/run", this::reconcile),
+                        restCall(Method.GET, "/api/reconciliation/breaks", this::reconciliationBreaks),
+                        restCall(Method.GET, "/api/metrics", this::metrics)
                 )
                 .withTopics(
                         topic("account-events", this::accountEvents)
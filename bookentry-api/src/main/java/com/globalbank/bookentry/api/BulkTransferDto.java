@@ -0,0 +1,47 @@
+package com.globalbank.bookentry.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Value;
+import org.pcollections.PSequence;
+
+import java.math.BigDecimal;
+
+/**
+ * A bulk transfer debits one source account once for the total of all credits and
+ * credits each destination account with its own leg.
+ */
+@Value
+public class BulkTransferDto {
+    public final String reference;
+    public final String sourceAccount;
+    public final String currencyCode;
+    public final PSequence<Credit> credits;
+
+    @JsonCreator
+    public BulkTransferDto(@JsonProperty(value = "reference") String reference,
+                           @JsonProperty(value = "sourceAccount") String sourceAccount,
+                           @JsonProperty(value = "currencyCode") String currencyCode,
+                           @JsonProperty(value = "credits") PSequence<Credit> credits) {
+        this.reference = reference;
+        this.sourceAccount = sourceAccount;
+        this.currencyCode = currencyCode;
+        this.credits = credits;
+    }
+
+    @Value
+    public static class Credit {
+        public final String reference;
+        public final String destinationAccount;
+        public final BigDecimal amount;
+
+        @JsonCreator
+        public Credit(@JsonProperty(value = "reference") String reference,
+                      @JsonProperty(value = "destinationAccount") String destinationAccount,
+                      @JsonProperty(value = "amount") BigDecimal amount) {
+            this.reference = reference;
+            this.destinationAccount = destinationAccount;
+            this.amount = amount;
+        }
+    }
+}
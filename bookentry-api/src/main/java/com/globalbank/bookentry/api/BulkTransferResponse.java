@@ -0,0 +1,49 @@
+package com.globalbank.bookentry.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Value;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
+
+/**
+ * The outcome of a bulk transfer, with the overall response and one response per credit leg.
+ */
+@Value
+public class BulkTransferResponse {
+    public final String responseCode;
+    public final String narrative;
+    public final PSequence<Leg> legs;
+
+    @JsonCreator
+    public BulkTransferResponse(@JsonProperty(value = "responseCode") String responseCode,
+                                @JsonProperty(value = "narrative") String narrative,
+                                @JsonProperty(value = "legs") PSequence<Leg> legs) {
+        this.responseCode = responseCode;
+        this.narrative = narrative;
+        this.legs = legs;
+    }
+
+    public static BulkTransferResponse of(String responseCode, String narrative) {
+        return new BulkTransferResponse(responseCode, narrative, TreePVector.empty());
+    }
+
+    @Value
+    public static class Leg {
+        public final String reference;
+        public final String destinationAccount;
+        public final String responseCode;
+        public final String narrative;
+
+        @JsonCreator
+        public Leg(@JsonProperty(value = "reference") String reference,
+                   @JsonProperty(value = "destinationAccount") String destinationAccount,
+                   @JsonProperty(value = "responseCode") String responseCode,
+                   @JsonProperty(value = "narrative") String narrative) {
+            this.reference = reference;
+            this.destinationAccount = destinationAccount;
+            this.responseCode = responseCode;
+            this.narrative = narrative;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.globalbank.bookentry.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Value;
+import org.pcollections.PSequence;
+
+import java.math.BigDecimal;
+
+/**
+ * The outcome of a reconciliation run: the postings it read, the references it checked and the
+ * references whose legs do not net to zero.
+ */
+@Value
+public class ReconciliationReport {
+    public final long postings;
+    public final long references;
+    public final PSequence<Break> breaks;
+
+    @JsonCreator
+    public ReconciliationReport(@JsonProperty(value = "postings") long postings,
+                                @JsonProperty(value = "references") long references,
+                                @JsonProperty(value = "breaks") PSequence<Break> breaks) {
+        this.postings = postings;
+        this.references = references;
+        this.breaks = breaks;
+    }
+
+    /**
+     * A reference whose legs do not net to zero. autoReversal is set when one of its legs is an
+     * AUTO REVERSAL, i.e. a credit that was reversed may have gone through after all.
+     */
+    @Value
+    public static class Break {
+        public final String reference;
+        public final BigDecimal net;
+        public final int legs;
+        public final boolean autoReversal;
+        public final String detectedAt;
+
+        @JsonCreator
+        public Break(@JsonProperty(value = "reference") String reference,
+                     @JsonProperty(value = "net") BigDecimal net,
+                     @JsonProperty(value = "legs") int legs,
+                     @JsonProperty(value = "autoReversal") boolean autoReversal,
+                     @JsonProperty(value = "detectedAt") String detectedAt) {
+            this.reference = reference;
+            this.net = net;
+            this.legs = legs;
+            this.autoReversal = autoReversal;
+            this.detectedAt = detectedAt;
+        }
+    }
+}
@@ -6,19 +6,35 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.Value;
 
+import java.util.Optional;
+
 @Value
 public class ServiceResponse {
     public final String responseCode;
     public final String narrative;
+    /**
+     * The account debited, when the caller did not name it, e.g. the suspense sub-account of a deposit.
+     */
+    public final Optional<String> sourceAccount;
 
     @JsonCreator
     public ServiceResponse(@JsonProperty(value = "responseCode") String responseCode,
-                           @JsonProperty(value = "narrative") String narrative) {
+                           @JsonProperty(value = "narrative") String narrative,
+                           @JsonProperty(value = "sourceAccount") Optional<String> sourceAccount) {
         this.responseCode = responseCode;
         this.narrative = narrative;
+        this.sourceAccount = sourceAccount == null ? Optional.empty() : sourceAccount;
+    }
+
+    public ServiceResponse(String responseCode, String narrative) {
+        this(responseCode, narrative, Optional.empty());
     }
 
     public static ServiceResponse of(String responseCode, String narrative) {
         return new ServiceResponse(responseCode, narrative);
     }
+
+    public ServiceResponse withSourceAccount(String sourceAccount) {
+        return new ServiceResponse(responseCode, narrative, Optional.of(sourceAccount));
+    }
 }
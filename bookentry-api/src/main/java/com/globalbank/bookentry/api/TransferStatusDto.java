@@ -0,0 +1,49 @@
+package com.globalbank.bookentry.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Value;
+
+import java.math.BigDecimal;
+
+/**
+ * The progress of a transfer. responseCode and narrative are those of the posting that decided it, they
+ * are null until it is Completed, Failed or Reversed. A transfer rejected before it was recorded, e.g.
+ * because an account is busy, has no status.
+ */
+@Value
+public class TransferStatusDto {
+    public final String transferId;
+    public final String reference;
+    public final String sourceAccount;
+    public final String destinationAccount;
+    public final String currencyCode;
+    public final BigDecimal amount;
+    public final String status;
+    public final String responseCode;
+    public final String narrative;
+    public final String timestamp;
+
+    @JsonCreator
+    public TransferStatusDto(@JsonProperty(value = "transferId") String transferId,
+                             @JsonProperty(value = "reference") String reference,
+                             @JsonProperty(value = "sourceAccount") String sourceAccount,
+                             @JsonProperty(value = "destinationAccount") String destinationAccount,
+                             @JsonProperty(value = "currencyCode") String currencyCode,
+                             @JsonProperty(value = "amount") BigDecimal amount,
+                             @JsonProperty(value = "status") String status,
+                             @JsonProperty(value = "responseCode") String responseCode,
+                             @JsonProperty(value = "narrative") String narrative,
+                             @JsonProperty(value = "timestamp") String timestamp) {
+        this.transferId = transferId;
+        this.reference = reference;
+        this.sourceAccount = sourceAccount;
+        this.destinationAccount = destinationAccount;
+        this.currencyCode = currencyCode;
+        this.amount = amount;
+        this.status = status;
+        this.responseCode = responseCode;
+        this.narrative = narrative;
+        this.timestamp = timestamp;
+    }
+}
@@ -0,0 +1,10 @@
+package com.globalbank.bookentry.enums;
+
+public enum TransferStatus {
+    Started,
+    Debited,
+    Compensating,
+    Completed,
+    Failed,
+    Reversed
+}
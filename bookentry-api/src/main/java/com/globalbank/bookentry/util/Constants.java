@@ -9,5 +9,6 @@ public class Constants {
     public static final String RC_GENERAL_ERROR = "06";
     public static final String RC_INSUFFICIENT_FUNDS = "81";
     public static final String RC_INVALID_AMOUNT = "13";
+    public static final String RC_FORMAT_ERROR = "30";
 
 }
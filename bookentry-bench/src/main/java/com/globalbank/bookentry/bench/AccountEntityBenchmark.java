@@ -0,0 +1,75 @@
+package com.globalbank.bookentry.bench;
+
+import akka.actor.ActorSystem;
+import com.globalbank.bookentry.enums.AccountType;
+import com.globalbank.bookentry.enums.CreditDebitIndicator;
+import com.globalbank.bookentry.impl.AccountCommand;
+import com.globalbank.bookentry.impl.AccountEntity;
+import com.globalbank.bookentry.impl.AccountEvent;
+import com.globalbank.bookentry.impl.AccountState;
+import com.globalbank.bookentry.util.Money;
+import com.lightbend.lagom.javadsl.testkit.PersistentEntityTestDriver;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures AccountEntity command handling through the {@link PersistentEntityTestDriver}, which runs
+ * the command and event handlers in memory. The driver also checks that every message serializes,
+ * so the numbers include a serializer round trip per command, event and state.
+ * <p>
+ * Run with: sbt "bookentry-bench/jmh:run AccountEntityBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountEntityBenchmark {
+
+    private static final String ACCOUNT_NUMBER = "12345678";
+
+    private ActorSystem system;
+    private PersistentEntityTestDriver<AccountCommand, AccountEvent, AccountState> driver;
+    private Money amount;
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        system = ActorSystem.create("AccountEntityBenchmark");
+        driver = new PersistentEntityTestDriver<>(system, new AccountEntity(), ACCOUNT_NUMBER);
+        driver.run(new AccountCommand.AddAccount(ACCOUNT_NUMBER, "Stan Bangaba", AccountType.Current.name(), "GBP"));
+        amount = new Money(100L, 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        system.terminate();
+    }
+
+    @Benchmark
+    public Object credit() {
+        return driver.run(new AccountCommand.AddPost(ACCOUNT_NUMBER, "CR" + sequence++, "Transfer", "GBP",
+                CreditDebitIndicator.Credit, amount));
+    }
+
+    @Benchmark
+    public Object creditThenDebit() {
+        String reference = "TRF" + sequence++;
+        return driver.run(
+                new AccountCommand.AddPost(ACCOUNT_NUMBER, reference, "Transfer", "GBP", CreditDebitIndicator.Credit, amount),
+                new AccountCommand.AddPost(ACCOUNT_NUMBER, reference, "Transfer", "GBP", CreditDebitIndicator.Debit, amount));
+    }
+
+    @Benchmark
+    public Object duplicateCredit() {
+        return driver.run(new AccountCommand.AddPost(ACCOUNT_NUMBER, "DUP", "Transfer", "GBP",
+                CreditDebitIndicator.Credit, amount));
+    }
+
+    @Benchmark
+    public Object read() {
+        return driver.run(new AccountCommand.ReadAccount(ACCOUNT_NUMBER));
+    }
+}
@@ -0,0 +1,44 @@
+package com.globalbank.bookentry.bench;
+
+import com.globalbank.bookentry.enums.AccountType;
+import com.globalbank.bookentry.impl.AccountEvent;
+import com.globalbank.bookentry.impl.BookentryServiceImpl;
+import com.globalbank.bookentry.util.Money;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the translation of persisted account events to the events published on the
+ * account-events topic, see {@link BookentryServiceImpl#toApiEvent(AccountEvent)}.
+ * <p>
+ * Run with: sbt "bookentry-bench/jmh:run AccountEventTranslationBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountEventTranslationBenchmark {
+
+    @Param({"PostAdded", "AccountAdded"})
+    public String type;
+
+    private AccountEvent event;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String timestamp = Instant.now().toString();
+        event = "PostAdded".equals(type) ?
+                new AccountEvent.PostAdded("12345678", "TRF0000001", "Transfer", new Money(10050L, 2),
+                        new Money(250075L, 2), timestamp) :
+                new AccountEvent.AccountAdded("12345678", "Stan Bangaba", AccountType.Savings.name(), "GBP", timestamp);
+    }
+
+    @Benchmark
+    public com.globalbank.bookentry.api.AccountEvent translate() {
+        return BookentryServiceImpl.toApiEvent(event);
+    }
+}
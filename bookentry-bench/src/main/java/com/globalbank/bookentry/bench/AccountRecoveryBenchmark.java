@@ -0,0 +1,111 @@
+package com.globalbank.bookentry.bench;
+
+import akka.actor.ActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import com.globalbank.bookentry.enums.AccountType;
+import com.globalbank.bookentry.impl.AccountEvent;
+import com.globalbank.bookentry.impl.AccountState;
+import com.globalbank.bookentry.util.Money;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long an AccountEntity takes to recover its AccountState from the journal,
+ * with and without snapshots.
+ * <p>
+ * Recovery is modelled the way Lagom performs it, minus the Cassandra round trips: the latest
+ * snapshot (taken every snapshotAfter events) is deserialized and the events persisted after it
+ * are deserialized and applied one by one.
+ * <p>
+ * A Suspense account is the deposit suspense account, whose journal is the longest: every deposit of
+ * its currency debits it. Its recovery with a journal of a million postings is measured with
+ * <p>
+ * sbt "bookentry-bench/jmh:run AccountRecoveryBenchmark -p accountType=Suspense -p postings=1000000"
+ * <p>
+ * Run with: sbt "bookentry-bench/jmh:run AccountRecoveryBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class AccountRecoveryBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int postings;
+
+    @Param({"off", "100"})
+    public String snapshotAfter;
+
+    @Param({"Savings", "Suspense"})
+    public String accountType;
+
+    private ActorSystem system;
+    private Serialization serialization;
+
+    private JournalRow snapshot;
+    private JournalRow[] events;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        system = ActorSystem.create("AccountRecoveryBenchmark");
+        serialization = SerializationExtension.get(system);
+
+        boolean suspense = AccountType.Suspense.name().equals(accountType);
+        String accountNumber = suspense ? "DEP-SUSP-GBP" : "123";
+        AccountEvent.AccountAdded accountAdded = suspense ?
+                new AccountEvent.AccountAdded(accountNumber, "DEPOSIT CASH SUSPENSE GBP", AccountType.Suspense.name(),
+                        "GBP", Instant.now().toString()) :
+                new AccountEvent.AccountAdded(accountNumber, "Stan Bangaba", AccountType.Savings.name(),
+                        "GBP", Instant.now().toString());
+        AccountState state = AccountState.added(accountAdded);
+
+        // sequence numbers start at 1 with the AccountAdded event, the postings follow
+        int totalEvents = postings + 1;
+        int snapshotSequenceNr = "off".equals(snapshotAfter) ? 0 :
+                (totalEvents / Integer.parseInt(snapshotAfter)) * Integer.parseInt(snapshotAfter);
+
+        events = new JournalRow[totalEvents - snapshotSequenceNr];
+        if (snapshotSequenceNr == 0) {
+            events[0] = JournalRow.write(serialization, accountAdded);
+        }
+
+        // the suspense account is debited by every deposit, other accounts are credited
+        Money amount = suspense ? new Money(-1000L, 2) : new Money(1000L, 2);
+        for (int sequenceNr = 2; sequenceNr <= totalEvents; sequenceNr++) {
+            AccountEvent.PostAdded postAdded = new AccountEvent.PostAdded(accountNumber, "ref" + sequenceNr, "Cash Deposit",
+                    amount, state.balance.plus(amount), Instant.now().toString());
+            state = state.withPost(postAdded);
+
+            if (sequenceNr > snapshotSequenceNr) {
+                events[sequenceNr - snapshotSequenceNr - 1] = JournalRow.write(serialization, postAdded);
+            } else if (sequenceNr == snapshotSequenceNr) {
+                snapshot = JournalRow.write(serialization, state);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        system.terminate();
+    }
+
+    @Benchmark
+    public AccountState recover() {
+        AccountState state = snapshot == null ? null : (AccountState) snapshot.read(serialization);
+
+        for (JournalRow row : events) {
+            AccountEvent event = (AccountEvent) row.read(serialization);
+            if (event instanceof AccountEvent.PostAdded) {
+                state = state.withPost((AccountEvent.PostAdded) event);
+            } else if (event instanceof AccountEvent.AccountAdded) {
+                state = AccountState.added((AccountEvent.AccountAdded) event);
+            }
+        }
+        return state;
+    }
+}
@@ -0,0 +1,92 @@
+package com.globalbank.bookentry.bench;
+
+import akka.actor.ActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.SerializerWithStringManifest;
+import com.globalbank.bookentry.enums.AccountType;
+import com.globalbank.bookentry.enums.CreditDebitIndicator;
+import com.globalbank.bookentry.impl.AccountCommand;
+import com.globalbank.bookentry.impl.AccountEvent;
+import com.globalbank.bookentry.impl.AccountSerializer;
+import com.globalbank.bookentry.impl.AccountState;
+import com.globalbank.bookentry.util.Money;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the binary {@link AccountSerializer} with the Lagom JSON serializer the account
+ * commands, events and state used before, on encode and decode cost. Payload sizes are printed
+ * once per trial.
+ * <p>
+ * Run with: sbt "bookentry-bench/jmh:run AccountSerializationBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountSerializationBenchmark {
+
+    private static final String LAGOM_JSON_SERIALIZER = "com.lightbend.lagom.internal.jackson.JacksonJsonSerializer";
+
+    @Param({"AddPost", "PostAdded", "AccountState"})
+    public String type;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    private ActorSystem system;
+    private SerializerWithStringManifest serializer;
+    private Object message;
+    private String manifest;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        system = ActorSystem.create("AccountSerializationBenchmark");
+        Serialization serialization = SerializationExtension.get(system);
+
+        serializer = "json".equals(format) ?
+                (SerializerWithStringManifest) serialization.serializerOf(LAGOM_JSON_SERIALIZER).get() :
+                new AccountSerializer();
+
+        Money amount = new Money(10050L, 2);
+        String timestamp = Instant.now().toString();
+        switch (type) {
+            case "AddPost":
+                message = new AccountCommand.AddPost("12345678", "TRF0000001", "Transfer", "GBP",
+                        CreditDebitIndicator.Credit, amount);
+                break;
+            case "PostAdded":
+                message = new AccountEvent.PostAdded("12345678", "TRF0000001", "Transfer", amount,
+                        new Money(250075L, 2), timestamp);
+                break;
+            default:
+                message = AccountState.added(new AccountEvent.AccountAdded("12345678", "Stan Bangaba",
+                        AccountType.Savings.name(), "GBP", timestamp));
+        }
+
+        manifest = serializer.manifest(message);
+        bytes = serializer.toBinary(message);
+        System.out.println(type + " " + format + " payload size: " + bytes.length + " bytes");
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        system.terminate();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return serializer.toBinary(message);
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        return serializer.fromBinary(bytes, manifest);
+    }
+}
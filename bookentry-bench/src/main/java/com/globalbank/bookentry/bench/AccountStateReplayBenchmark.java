@@ -0,0 +1,55 @@
+package com.globalbank.bookentry.bench;
+
+import com.globalbank.bookentry.enums.AccountType;
+import com.globalbank.bookentry.impl.AccountEvent;
+import com.globalbank.bookentry.impl.AccountState;
+import com.globalbank.bookentry.util.Money;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures applying N already deserialized PostAdded events to an AccountState, the in-memory
+ * part of recovery that {@link AccountRecoveryBenchmark} measures together with deserialization.
+ * <p>
+ * Run with: sbt "bookentry-bench/jmh:run AccountStateReplayBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountStateReplayBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int events;
+
+    private AccountState initial;
+    private AccountEvent.PostAdded[] postings;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String timestamp = Instant.now().toString();
+        initial = AccountState.added(new AccountEvent.AccountAdded("12345678", "Stan Bangaba",
+                AccountType.Savings.name(), "GBP", timestamp));
+
+        Money amount = new Money(100L, 2);
+        Money balance = initial.balance;
+        postings = new AccountEvent.PostAdded[events];
+        for (int i = 0; i < events; i++) {
+            balance = balance.plus(amount);
+            postings[i] = new AccountEvent.PostAdded("12345678", "TRF" + i, "Transfer", amount, balance, timestamp);
+        }
+    }
+
+    @Benchmark
+    public AccountState replay() {
+        AccountState state = initial;
+        for (AccountEvent.PostAdded postAdded : postings) {
+            state = state.withPost(postAdded);
+        }
+        return state;
+    }
+}
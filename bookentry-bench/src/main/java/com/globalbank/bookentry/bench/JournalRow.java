@@ -0,0 +1,30 @@
+package com.globalbank.bookentry.bench;
+
+import akka.serialization.Serialization;
+import akka.serialization.Serializer;
+import akka.serialization.Serializers;
+
+/**
+ * An object serialized the way the journal and snapshot store keep it: the bytes together
+ * with the serializer id and manifest needed to read it back.
+ */
+final class JournalRow {
+    final int serializerId;
+    final String manifest;
+    final byte[] bytes;
+
+    private JournalRow(int serializerId, String manifest, byte[] bytes) {
+        this.serializerId = serializerId;
+        this.manifest = manifest;
+        this.bytes = bytes;
+    }
+
+    static JournalRow write(Serialization serialization, Object obj) {
+        Serializer serializer = serialization.findSerializerFor(obj);
+        return new JournalRow(serializer.identifier(), Serializers.manifestFor(serializer, obj), serializer.toBinary(obj));
+    }
+
+    Object read(Serialization serialization) {
+        return serialization.deserialize(bytes, serializerId, manifest).get();
+    }
+}
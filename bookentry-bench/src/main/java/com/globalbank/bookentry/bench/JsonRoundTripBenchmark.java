@@ -0,0 +1,80 @@
+package com.globalbank.bookentry.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.globalbank.bookentry.api.AccountEvent;
+import com.globalbank.bookentry.api.ReadAccountDto;
+import com.globalbank.bookentry.api.ServiceResponse;
+import com.globalbank.bookentry.api.TransferDto;
+import com.globalbank.bookentry.enums.AccountType;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Jackson round trips of the API DTOs on the transfer path and of the account events
+ * published to Kafka.
+ * <p>
+ * Run with: sbt "bookentry-bench/jmh:run JsonRoundTripBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonRoundTripBenchmark {
+
+    @Param({"TransferDto", "ServiceResponse", "ReadAccountDto", "PostAdded"})
+    public String type;
+
+    private Object message;
+    private ObjectWriter writer;
+    private ObjectReader reader;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+        String timestamp = Instant.now().toString();
+
+        Class<?> messageType;
+        switch (type) {
+            case "TransferDto":
+                messageType = TransferDto.class;
+                message = new TransferDto("TRF0000001", "12345678", "87654321", "GBP", new BigDecimal("100.50"));
+                break;
+            case "ServiceResponse":
+                messageType = ServiceResponse.class;
+                message = ServiceResponse.of("00", "Success");
+                break;
+            case "ReadAccountDto":
+                messageType = ReadAccountDto.class;
+                message = new ReadAccountDto("12345678", "Stan Bangaba", AccountType.Savings.name(), "GBP",
+                        new BigDecimal("2500.75"), timestamp);
+                break;
+            default:
+                // published through the AccountEvent interface so the type property is written
+                messageType = AccountEvent.class;
+                message = new AccountEvent.PostAdded("12345678", "TRF0000001", "Transfer", new BigDecimal("100.50"),
+                        new BigDecimal("2500.75"), timestamp);
+        }
+
+        writer = objectMapper.writerFor(messageType);
+        reader = objectMapper.readerFor(messageType);
+        bytes = writer.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public byte[] encode() throws Exception {
+        return writer.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        return reader.readValue(bytes);
+    }
+}
@@ -0,0 +1,271 @@
+package com.globalbank.bookentry.impl;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.LWWMapKey;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.ddata.ReplicatorSettings;
+import akka.cluster.ddata.SelfUniqueAddress;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.globalbank.bookentry.api.ReadAccountDto;
+import com.typesafe.config.Config;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import scala.Option;
+import scala.concurrent.duration.FiniteDuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A node-local, eventually consistent view of the details and balance of each account, answering
+ * readAccountEventually without asking the {@link AccountEntity}.
+ * <p>
+ * Entities publish their state after every persisted event into LWWMaps replicated with Akka
+ * Distributed Data, the accounts spread over a number of maps. A dedicated replicator gossips them
+ * and every node keeps the latest copy of each map, so a lookup is a local map read. An update reaches
+ * the view of every node within about the gossip-interval plus notify-subscribers-interval of
+ * bookentry.account-view.replicator.
+ * <p>
+ * An entity publishes at most once per publish-interval, a later state is held and the latest one held
+ * is published when the interval ends, so a busy account sends one update per interval rather than one
+ * per posting.
+ * <p>
+ * Each entry carries the time it was published. An entry older than max-staleness is not answered,
+ * the entity is asked instead and publishes its state again, so an answer lags its account by at most
+ * max-staleness even if an update was lost or skipped. That time is read from the clock of the publishing
+ * node, so the bound widens by the clock skew between nodes, and an entry dated more than max-clock-skew
+ * ahead of the local clock is not answered. Expired entries are removed every max-staleness, and
+ * accounts beyond max-accounts are not published until others expire, which bounds the view.
+ */
+@Slf4j
+@Singleton
+public class AccountBalanceView {
+
+    static final AccountBalanceView DISABLED = new AccountBalanceView();
+
+    public static final String HIT = "hit";
+    public static final String MISS = "miss";
+    public static final String STALE = "stale";
+
+    private final ActorRef replicator;
+    private final ActorRef subscriber;
+    private final SelfUniqueAddress node;
+    private final BookentryMetrics metrics;
+    private final long maxStalenessMillis;
+    private final long publishIntervalMillis;
+    private final long maxClockSkewMillis;
+    private final int maxAccountsPerShard;
+    private final List<Key<LWWMap<String, Entry>>> keys = new ArrayList<>();
+    private final AtomicReferenceArray<LWWMap<String, Entry>> shards;
+    private final Map<String, AccountState> held = new ConcurrentHashMap<>();
+
+    private AccountBalanceView() {
+        this.replicator = null;
+        this.subscriber = null;
+        this.node = null;
+        this.metrics = null;
+        this.maxStalenessMillis = 0;
+        this.publishIntervalMillis = 0;
+        this.maxClockSkewMillis = 0;
+        this.maxAccountsPerShard = 0;
+        this.shards = new AtomicReferenceArray<>(0);
+    }
+
+    @Inject
+    public AccountBalanceView(ActorSystem system, BookentryMetrics metrics, Config config) {
+        int shardCount = config.getInt("bookentry.account-view.shards");
+        for (int i = 0; i < shardCount; i++) {
+            keys.add(LWWMapKey.create("account-view-" + i));
+        }
+        this.shards = new AtomicReferenceArray<>(shardCount);
+        this.node = DistributedData.get(system).selfUniqueAddress();
+        this.metrics = metrics;
+        this.maxStalenessMillis = config.getDuration("bookentry.account-view.max-staleness").toMillis();
+        this.publishIntervalMillis = config.getDuration("bookentry.account-view.publish-interval").toMillis();
+        this.maxClockSkewMillis = config.getDuration("bookentry.account-view.max-clock-skew").toMillis();
+        this.maxAccountsPerShard = (config.getInt("bookentry.account-view.max-accounts") + shardCount - 1) / shardCount;
+
+        ReplicatorSettings settings = ReplicatorSettings.create(config.getConfig("bookentry.account-view.replicator")
+                .withFallback(config.getConfig("akka.cluster.distributed-data")));
+        ActorRef viewReplicator = system.actorOf(Replicator.props(settings), "account-view-replicator");
+        List<Key<LWWMap<String, Entry>>> viewKeys = keys;
+        AtomicReferenceArray<LWWMap<String, Entry>> viewShards = shards;
+        this.replicator = viewReplicator;
+        this.subscriber = system.actorOf(Props.create(Subscriber.class,
+                () -> new Subscriber(viewReplicator, viewKeys, viewShards)), "account-view-subscriber");
+
+        FiniteDuration sweepInterval = FiniteDuration.create(maxStalenessMillis, TimeUnit.MILLISECONDS);
+        system.scheduler().schedule(sweepInterval, sweepInterval, this::removeExpired, system.dispatcher());
+        FiniteDuration publishInterval = FiniteDuration.create(publishIntervalMillis, TimeUnit.MILLISECONDS);
+        system.scheduler().schedule(publishInterval, publishInterval, this::publishHeld, system.dispatcher());
+    }
+
+    /**
+     * Publishes the state of an account, called by its entity when it is read while its last publication
+     * is due for renewal. Returns the time of publication.
+     */
+    long publish(AccountState state) {
+        long publishedAt = System.currentTimeMillis();
+        if (replicator == null) {
+            return publishedAt;
+        }
+        // replaces any held state of the account, one key at a time so that an older state is never sent after a newer one
+        held.compute(state.accountNumber, (accountNumber, older) -> {
+            send(state, publishedAt);
+            return null;
+        });
+        return publishedAt;
+    }
+
+    /**
+     * Publishes the state of an account once an event is persisted, if its entity last published at least
+     * publish-interval ago. Otherwise the state is held until the interval ends. Returns the time of the
+     * last publication.
+     */
+    long publishThrottled(AccountState state, long publishedAt) {
+        if (replicator == null || System.currentTimeMillis() - publishedAt >= publishIntervalMillis) {
+            return publish(state);
+        }
+        held.put(state.accountNumber, state);
+        return publishedAt;
+    }
+
+    private void publishHeld() {
+        long publishedAt = System.currentTimeMillis();
+        for (String accountNumber : held.keySet()) {
+            held.computeIfPresent(accountNumber, (key, state) -> {
+                send(state, publishedAt);
+                return null;
+            });
+        }
+    }
+
+    private void send(AccountState state, long publishedAt) {
+        Entry entry = new Entry(new ReadAccountDto(state.accountNumber, state.accountName, state.accountType,
+                state.currencyCode, state.balance.toBigDecimal(), state.timestamp), publishedAt);
+        replicator.tell(new Replicator.Update<>(keyOf(state.accountNumber), LWWMap.create(), Replicator.writeLocal(),
+                map -> map.contains(state.accountNumber) || map.size() < maxAccountsPerShard ?
+                        map.put(node, state.accountNumber, entry) : map), subscriber);
+    }
+
+    /**
+     * Whether an entity that published at the given time publishes again when read, halfway to expiry so
+     * that an account read often through its entity stays in the view.
+     */
+    boolean isDue(long publishedAt) {
+        return replicator != null && System.currentTimeMillis() - publishedAt >= maxStalenessMillis / 2;
+    }
+
+    public Optional<ReadAccountDto> get(String accountNumber) {
+        if (replicator == null) {
+            return Optional.empty();
+        }
+        LWWMap<String, Entry> shard = shards.get(shardOf(accountNumber));
+        Option<Entry> entry = shard == null ? Option.empty() : shard.get(accountNumber);
+        if (entry.isEmpty()) {
+            metrics.countViewRead(MISS);
+            return Optional.empty();
+        }
+        long age = System.currentTimeMillis() - entry.get().publishedAt;
+        if (age > maxStalenessMillis || age < -maxClockSkewMillis) {
+            metrics.countViewRead(STALE);
+            return Optional.empty();
+        }
+        metrics.countViewRead(HIT);
+        return Optional.of(entry.get().account);
+    }
+
+    /**
+     * Removes the entries no longer answered. Every node removes them, the removals are idempotent and a
+     * concurrent publication wins.
+     */
+    private void removeExpired() {
+        long expiredBefore = System.currentTimeMillis() - maxStalenessMillis;
+        for (int i = 0; i < keys.size(); i++) {
+            LWWMap<String, Entry> shard = shards.get(i);
+            if (shard == null || shard.isEmpty()) {
+                continue;
+            }
+            replicator.tell(new Replicator.Update<>(keys.get(i), LWWMap.create(), Replicator.writeLocal(), map -> {
+                LWWMap<String, Entry> kept = map;
+                for (Map.Entry<String, Entry> entry : map.getEntries().entrySet()) {
+                    if (entry.getValue().publishedAt < expiredBefore) {
+                        kept = kept.remove(node, entry.getKey());
+                    }
+                }
+                return kept;
+            }), subscriber);
+        }
+    }
+
+    private Key<LWWMap<String, Entry>> keyOf(String accountNumber) {
+        return keys.get(shardOf(accountNumber));
+    }
+
+    private int shardOf(String accountNumber) {
+        return Math.floorMod(accountNumber.hashCode(), keys.size());
+    }
+
+    /**
+     * An account as published by its entity, and when.
+     */
+    @Value
+    public static class Entry {
+        public final ReadAccountDto account;
+        public final long publishedAt;
+
+        @JsonCreator
+        public Entry(ReadAccountDto account, long publishedAt) {
+            this.account = account;
+            this.publishedAt = publishedAt;
+        }
+    }
+
+    /**
+     * Keeps the latest replicated copy of every map, and takes the replies to updates.
+     */
+    private static class Subscriber extends AbstractActor {
+
+        private final ActorRef replicator;
+        private final List<Key<LWWMap<String, Entry>>> keys;
+        private final AtomicReferenceArray<LWWMap<String, Entry>> shards;
+
+        Subscriber(ActorRef replicator, List<Key<LWWMap<String, Entry>>> keys,
+                   AtomicReferenceArray<LWWMap<String, Entry>> shards) {
+            this.replicator = replicator;
+            this.keys = keys;
+            this.shards = shards;
+        }
+
+        @Override
+        public void preStart() {
+            keys.forEach(key -> replicator.tell(new Replicator.Subscribe<>(key, getSelf()), getSelf()));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(Replicator.Changed.class, changed ->
+                            shards.set(keys.indexOf(changed.key()), (LWWMap<String, Entry>) changed.dataValue()))
+                    .match(Replicator.UpdateSuccess.class, success -> {
+                    })
+                    .match(Replicator.UpdateFailure.class, failure ->
+                            log.warn("Account view update failed : {}", failure))
+                    .build();
+        }
+    }
+}
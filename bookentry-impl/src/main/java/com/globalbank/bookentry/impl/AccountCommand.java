@@ -8,12 +8,9 @@ import com.globalbank.bookentry.api.ReadAccountDto;
 import com.globalbank.bookentry.enums.CreditDebitIndicator;
 import com.google.common.base.Preconditions;
 import com.lightbend.lagom.javadsl.persistence.PersistentEntity;
-import com.lightbend.lagom.serialization.CompressedJsonable;
-import com.lightbend.lagom.serialization.Jsonable;
 import lombok.Value;
 import com.globalbank.bookentry.pojo.PostingResponse;
-
-import java.math.BigDecimal;
+import com.globalbank.bookentry.util.Money;
 
 /**
  * This interface defines all the commands that the AccountEntity supports.
@@ -21,8 +18,10 @@ import java.math.BigDecimal;
  * By convention, the commands should be inner classes of the interface, which
  * makes it simple to get a complete picture of what commands an entity
  * supports.
+ * <p>
+ * Commands are serialized by the binary {@link AccountSerializer}.
  */
-public interface AccountCommand extends Jsonable {
+public interface AccountCommand {
     /**
      * A command to add an account.
      * <p>
@@ -32,7 +31,7 @@ public interface AccountCommand extends Jsonable {
     @SuppressWarnings("serial")
     @Value
     @JsonDeserialize
-    final class AddAccount implements AccountCommand, CompressedJsonable, PersistentEntity.ReplyType<Done> {
+    final class AddAccount implements AccountCommand, PersistentEntity.ReplyType<Done> {
         public final String accountNumber;
         public final String accountName;
         public final String accountType;
@@ -122,13 +121,14 @@ public interface AccountCommand extends Jsonable {
     @SuppressWarnings("serial")
     @Value
     @JsonDeserialize
-    final class AddPost implements AccountCommand, CompressedJsonable, PersistentEntity.ReplyType<PostingResponse> {
+    final class AddPost implements AccountCommand, PersistentEntity.ReplyType<PostingResponse> {
         public final String accountNumber;
         public final String reference;
         public final String narrative;
         public final String currencyCode;
         public final CreditDebitIndicator creditDebitIndicator;
-        public final BigDecimal amount;
+        public final Money amount;
+        public final String counterpartyAccount;
 
         @JsonCreator
         public AddPost(@JsonProperty(value = "accountNumber") String accountNumber,
@@ -136,13 +136,23 @@ public interface AccountCommand extends Jsonable {
                          @JsonProperty(value = "narrative") String narrative,
                          @JsonProperty(value = "currencyCode") String currencyCode,
                          @JsonProperty(value = "creditDebitIndicator") CreditDebitIndicator creditDebitIndicator,
-                         @JsonProperty(value = "amount") BigDecimal amount) {
+                         @JsonProperty(value = "amount") Money amount,
+                         @JsonProperty(value = "counterpartyAccount") String counterpartyAccount) {
             this.accountNumber = Preconditions.checkNotNull(accountNumber, "accountNumber");
             this.reference = Preconditions.checkNotNull(reference, "reference");
             this.narrative = Preconditions.checkNotNull(narrative, "narrative");
             this.currencyCode = Preconditions.checkNotNull(currencyCode, "currencyCode");
             this.creditDebitIndicator = Preconditions.checkNotNull(creditDebitIndicator, "creditDebitIndicator");
             this.amount = amount;
+            this.counterpartyAccount = counterpartyAccount;
+        }
+
+        /**
+         * A post without a known counterparty, it is only recognised as a retry of the very same post.
+         */
+        public AddPost(String accountNumber, String reference, String narrative, String currencyCode,
+                       CreditDebitIndicator creditDebitIndicator, Money amount) {
+            this(accountNumber, reference, narrative, currencyCode, creditDebitIndicator, amount, null);
         }
     }
 }
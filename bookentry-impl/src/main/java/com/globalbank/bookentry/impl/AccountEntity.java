@@ -6,12 +6,15 @@ import com.globalbank.bookentry.enums.AccountType;
 import com.globalbank.bookentry.enums.CreditDebitIndicator;
 import com.globalbank.bookentry.pojo.PostingResponse;
 import com.globalbank.bookentry.util.Constants;
+import com.globalbank.bookentry.util.Money;
 import com.lightbend.lagom.javadsl.persistence.PersistentEntity;
 import lombok.extern.slf4j.Slf4j;
 
-import java.math.BigDecimal;
+import javax.inject.Inject;
 import java.time.Instant;
 import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 
 /**
  * This is an event sourced entity. It has a state, {@link AccountState}, which
@@ -35,6 +38,23 @@ import java.util.Optional;
 
 @Slf4j
 public class AccountEntity extends PersistentEntity<AccountCommand, AccountEvent, AccountState> {
+
+    private final BookentryMetrics metrics;
+    private final AccountBalanceView balanceView;
+
+    // when this incarnation last published its state to the balance view, 0 until it has
+    private long publishedAt;
+
+    public AccountEntity() {
+        this(new BookentryMetrics(), AccountBalanceView.DISABLED);
+    }
+
+    @Inject
+    public AccountEntity(BookentryMetrics metrics, AccountBalanceView balanceView) {
+        this.metrics = metrics;
+        this.balanceView = balanceView;
+    }
+
     /**
      * An entity can define different behaviours for different states, but it will
      * always start with an initial behaviour.
@@ -51,13 +71,13 @@ public class AccountEntity extends PersistentEntity<AccountCommand, AccountEvent
         BehaviorBuilder b = newBehaviorBuilder(
                 snapshotState.orElse(
                         new AccountState("init", "init", AccountType.System.name(), "NON",
-                                BigDecimal.ZERO.setScale(2, BigDecimal.ROUND_HALF_UP), Instant.now().toString()))
+                                Money.zero(Money.DEFAULT_EXPONENT), Instant.now().toString(), RecentPostings.EMPTY))
         );
 
         /*
          * Command handler for the AddAccount command.
          */
-        b.setCommandHandler(AccountCommand.AddAccount.class, (cmd, ctx) -> {
+        b.setCommandHandler(AccountCommand.AddAccount.class, timed(AccountCommand.AddAccount.class, (cmd, ctx) -> {
             // In response to this command, we want to persist it as a
             // AccountAdded event
             if (state().accountNumber.equals(cmd.accountNumber)) {
@@ -66,52 +86,87 @@ public class AccountEntity extends PersistentEntity<AccountCommand, AccountEvent
                 return ctx.done();
             } else {
                 log.info("Creating new account : {}|{}", cmd.accountNumber, cmd.accountName);
+                long persistStart = System.nanoTime();
                 return ctx.thenPersist(new AccountEvent.AccountAdded(cmd.accountNumber, cmd.accountName, cmd.accountType,
                                 cmd.currencyCode, Instant.now().toString()),
                         // Then once the event is successfully persisted, we respond with done.
-                        evt -> ctx.reply(Done.getInstance())
+                        evt -> {
+                            metrics.recordSince(BookentryMetrics.PERSIST, "AccountAdded", persistStart);
+                            publish();
+                            ctx.reply(Done.getInstance());
+                        }
                 );
             }
-        });
+        }));
 
         /*
          * Command handler for the UpdateAccount command.
          */
-        b.setCommandHandler(AccountCommand.UpdateAccount.class, (cmd, ctx) ->
-                // In response to this command, we want to persist it as a
-                // AccountDetailsChanged event
-                ctx.thenPersist(new AccountEvent.AccountDetailsChanged(cmd.accountNumber, cmd.accountName,
-                                        cmd.accountType, state().currencyCode, Instant.now().toString()),
-                        // Then once the event is successfully persisted, we respond with done.
-                        evt -> ctx.reply(Done.getInstance())
-                )
-        );
+        b.setCommandHandler(AccountCommand.UpdateAccount.class, timed(AccountCommand.UpdateAccount.class, (cmd, ctx) -> {
+            // In response to this command, we want to persist it as a
+            // AccountDetailsChanged event
+            long persistStart = System.nanoTime();
+            return ctx.thenPersist(new AccountEvent.AccountDetailsChanged(cmd.accountNumber, cmd.accountName,
+                            cmd.accountType, state().currencyCode, Instant.now().toString()),
+                    // Then once the event is successfully persisted, we respond with done.
+                    evt -> {
+                        metrics.recordSince(BookentryMetrics.PERSIST, "AccountDetailsChanged", persistStart);
+                        publish();
+                        ctx.reply(Done.getInstance());
+                    }
+            );
+        }));
 
         /*
          * Command handler for the GetOrInitSuspenseAccount command.
          */
-        b.setCommandHandler(AccountCommand.GetOrInitSuspenseAccount.class, (cmd, ctx) -> {
+        b.setCommandHandler(AccountCommand.GetOrInitSuspenseAccount.class, timed(AccountCommand.GetOrInitSuspenseAccount.class, (cmd, ctx) -> {
             // In response to this command, we want to get an existing account or persist a new
             // AccountAdded event
             if (AccountType.Suspense.name().equals(state().accountType)) {
                 log.info("Suspense account already initialized");
                 ctx.reply(new ReadAccountDto(state().accountNumber, state().accountName, state().accountType,
-                        state().currencyCode, state().balance, state().timestamp));
+                        state().currencyCode, state().balance.toBigDecimal(), state().timestamp));
                 return ctx.done();
             } else {
+                long persistStart = System.nanoTime();
                 return ctx.thenPersist(new AccountEvent.AccountAdded(cmd.accountNumber, cmd.accountName,
                                 AccountType.Suspense.name(), cmd.currencyCode, Instant.now().toString()),
                         // Then once the event is successfully persisted, we respond with done.
-                        evt -> ctx.reply(new ReadAccountDto(state().accountNumber, state().accountName, state().accountType,
-                                state().currencyCode, state().balance, state().timestamp))
+                        evt -> {
+                            metrics.recordSince(BookentryMetrics.PERSIST, "AccountAdded", persistStart);
+                            publish();
+                            ctx.reply(new ReadAccountDto(state().accountNumber, state().accountName, state().accountType,
+                                    state().currencyCode, state().balance.toBigDecimal(), state().timestamp));
+                        }
                 );
             }
-        });
+        }));
 
         /*
          * Command handler for the AddPost command.
          */
-        b.setCommandHandler(AccountCommand.AddPost.class, (cmd, ctx) -> {
+        b.setCommandHandler(AccountCommand.AddPost.class, timed(AccountCommand.AddPost.class, (cmd, ctx) -> {
+
+            //bring the amount to the exponent of the balance, a no-op unless the currencies differ
+            Money amount = cmd.amount.withExponent(state().balance.exponent);
+            Money postAmount = CreditDebitIndicator.Debit.equals(cmd.creditDebitIndicator) ? amount.negate() : amount;
+
+            //a retried posting that was already applied is answered without persisting it again
+            RecentPostings.Match recent = state().matchRecentPostings(cmd.reference, postAmount, cmd.counterpartyAccount);
+            if (recent == RecentPostings.Match.DUPLICATE) {
+                log.info("Duplicate {} posting {} on account {}, already applied", cmd.creditDebitIndicator,
+                        cmd.reference, state().accountNumber);
+                ctx.reply(new PostingResponse(Constants.RC_SUCCESS, "Success, already posted", cmd.creditDebitIndicator.name()));
+                return ctx.done();
+            } else if (recent == RecentPostings.Match.CONFLICT) {
+                //the same reference with the same counterparty but another amount is not a retry
+                log.info("Rejecting {} posting {} on account {}, reference already posted with another amount",
+                        cmd.creditDebitIndicator, cmd.reference, state().accountNumber);
+                ctx.reply(new PostingResponse(Constants.RC_DO_NOT_HONOUR, "Reference already used",
+                        cmd.creditDebitIndicator.name()));
+                return ctx.done();
+            }
 
             //check if debit entry (amount is NEGATIVE)
             if (CreditDebitIndicator.Debit.equals(cmd.creditDebitIndicator)) {
@@ -121,8 +176,8 @@ public class AccountEntity extends PersistentEntity<AccountCommand, AccountEvent
                     log.info("Proceed to post");
                 } else {
                     //check for overdraft
-                    if (state().balance.compareTo(cmd.amount) == -1) {
-                        log.info("Insufficient funds : Amount is {} but Balance is {}", cmd.amount, state().balance);
+                    if (state().balance.compareTo(amount) < 0) {
+                        log.info("Insufficient funds : Amount is {} but Balance is {}", amount, state().balance);
                         ctx.reply(new PostingResponse(Constants.RC_INSUFFICIENT_FUNDS, "Insufficient funds", cmd.creditDebitIndicator.name()));
                         return ctx.done();
                     } else {
@@ -135,32 +190,40 @@ public class AccountEntity extends PersistentEntity<AccountCommand, AccountEvent
 
             // In response to this command, we want to persist it as a
             // PostAdded event
-            BigDecimal amount = CreditDebitIndicator.Debit.equals(cmd.creditDebitIndicator) ?
-                    cmd.amount.negate().setScale(2, BigDecimal.ROUND_HALF_UP) : cmd.amount.setScale(2, BigDecimal.ROUND_HALF_UP);
-
+            long persistStart = System.nanoTime();
             return ctx.thenPersist(new AccountEvent.PostAdded(cmd.accountNumber, cmd.reference, cmd.narrative,
-                            cmd.currencyCode, amount, state().balance.add(amount), Instant.now().toString()),
+                            postAmount, state().balance.plus(postAmount), Instant.now().toString(), cmd.counterpartyAccount),
                     // Then once the event is successfully persisted, we respond with done.
-                    evt -> ctx.reply(new PostingResponse(Constants.RC_SUCCESS, "Success", cmd.creditDebitIndicator.name()))
+                    evt -> {
+                        metrics.recordSince(BookentryMetrics.PERSIST, "PostAdded", persistStart);
+                        publish();
+                        ctx.reply(new PostingResponse(Constants.RC_SUCCESS, "Success", cmd.creditDebitIndicator.name()));
+                    }
             );
-        });
+        }));
 
         /*
          * Command handler for the ReadAccount command.
          */
-        b.setReadOnlyCommandHandler(AccountCommand.ReadAccount.class,
+        b.setReadOnlyCommandHandler(AccountCommand.ReadAccount.class, timedReadOnly(AccountCommand.ReadAccount.class,
                 // Get the account from the current state, and return the details
-                (cmd, ctx) -> ctx.reply(new ReadAccountDto(state().accountNumber, state().accountName,
-                        state().accountType, state().currencyCode, state().balance, state().timestamp))
-        );
+                (cmd, ctx) -> {
+                    // an account that has not changed since it was loaded enters the balance view on its first read,
+                    // and is published again before its entry expires
+                    if (balanceView.isDue(publishedAt) && state().accountNumber.equals(cmd.accountNumber)) {
+                        publishedAt = balanceView.publish(state());
+                    }
+                    ctx.reply(new ReadAccountDto(state().accountNumber, state().accountName,
+                            state().accountType, state().currencyCode, state().balance.toBigDecimal(), state().timestamp));
+                }
+        ));
 
         /*
          * Event handler for the AccountAdded event.
          */
         b.setEventHandler(AccountEvent.AccountAdded.class,
                 // We simply update the current state to reflect the new account details
-                evt -> new AccountState(evt.accountNumber, evt.accountName, evt.accountType, evt.currencyCode,
-                            BigDecimal.ZERO.setScale(2, BigDecimal.ROUND_HALF_UP), Instant.now().toString())
+                AccountState::added
         );
 
 
@@ -170,25 +233,15 @@ public class AccountEntity extends PersistentEntity<AccountCommand, AccountEvent
         b.setEventHandler(AccountEvent.AccountDetailsChanged.class,
                 // We simply update the current state to reflect the new account details
                 // Maintain the balance that is already there
-                evt -> new AccountState(evt.accountNumber, evt.accountName, evt.accountType, evt.currencyCode,
-                                state().balance, Instant.now().toString())
+                evt -> state().withDetails(evt)
         );
 
         /*
          * Event handler for the PostAdded event.
          */
         b.setEventHandler(AccountEvent.PostAdded.class,
-                // We simply update the current state to reflect the new account details
-                evt -> {
-                    //log.info("Handling PostAdded Event : {} {}", evt.accountNumber, evt.currencyCode + "" + evt.amount);
-
-                    BigDecimal newBalance = state().balance.add(evt.amount);
-
-                    //log.info("New ledger balance for account {} is {}", evt.accountNumber, newBalance);
-
-                    return new AccountState(state().accountNumber, state().accountName, state().accountType,
-                                    state().currencyCode, newBalance, Instant.now().toString());
-                }
+                // We simply update the current state with the new ledger balance
+                evt -> state().withPost(evt)
         );
 
         /*
@@ -196,4 +249,37 @@ public class AccountEntity extends PersistentEntity<AccountCommand, AccountEvent
          */
         return b.build();
     }
+
+    private void publish() {
+        publishedAt = balanceView.publishThrottled(state(), publishedAt);
+    }
+
+    /**
+     * Records the time spent in a command handler, persisting is timed separately once the event is journaled.
+     */
+    private <A, R> BiFunction<A, CommandContext<R>, Persist<? extends AccountEvent>> timed(
+            Class<A> commandClass, BiFunction<A, CommandContext<R>, Persist<? extends AccountEvent>> handler) {
+        String command = commandClass.getSimpleName();
+        return (cmd, ctx) -> {
+            long start = System.nanoTime();
+            try {
+                return handler.apply(cmd, ctx);
+            } finally {
+                metrics.recordSince(BookentryMetrics.COMMAND, command, start);
+            }
+        };
+    }
+
+    private <A, R> BiConsumer<A, ReadOnlyCommandContext<R>> timedReadOnly(
+            Class<A> commandClass, BiConsumer<A, ReadOnlyCommandContext<R>> handler) {
+        String command = commandClass.getSimpleName();
+        return (cmd, ctx) -> {
+            long start = System.nanoTime();
+            try {
+                handler.accept(cmd, ctx);
+            } finally {
+                metrics.recordSince(BookentryMetrics.COMMAND, command, start);
+            }
+        };
+    }
 }
@@ -1,6 +1,7 @@
 package com.globalbank.bookentry.impl;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.google.common.base.Preconditions;
@@ -8,18 +9,20 @@ import com.lightbend.lagom.javadsl.persistence.AggregateEvent;
 import com.lightbend.lagom.javadsl.persistence.AggregateEventShards;
 import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
 import com.lightbend.lagom.javadsl.persistence.AggregateEventTagger;
-import com.lightbend.lagom.serialization.Jsonable;
 import lombok.Value;
 
-import java.math.BigDecimal;
+import com.globalbank.bookentry.util.Money;
 
 /**
  * This interface defines all the events that the AccountEntity supports.
  * <p>
  * By convention, the events should be inner classes of the interface, which
  * makes it simple to get a complete picture of what events an entity has.
+ * <p>
+ * Events are persisted by the binary {@link AccountSerializer}, entries written earlier as JSON
+ * are still read by the Lagom JSON serializer.
  */
-public interface AccountEvent extends Jsonable, AggregateEvent<AccountEvent> {
+public interface AccountEvent extends AggregateEvent<AccountEvent> {
     /**
      * Tags are used for getting and publishing streams of events. Each event
      * will have this tag, and in this case, we are partitioning the tags into
@@ -83,35 +86,45 @@ public interface AccountEvent extends Jsonable, AggregateEvent<AccountEvent> {
     }
 
     /**
-     * An event that represents that a post has been added to an account
+     * An event that represents that a post has been added to an account.
+     * <p>
+     * The currency is not repeated on every posting, it is the currency of the account. Older
+     * JSON entries still carry a currencyCode, which is ignored. The counterparty account is the
+     * account on the other side of the posting, empty when there are several, and null in entries
+     * journaled before it was recorded.
      */
-
     @Value
     @JsonDeserialize
+    @JsonIgnoreProperties(ignoreUnknown = true)
     final class PostAdded implements AccountEvent {
         public final String accountNumber;
         public final String reference;
         public final String narrative;
-        public final String currencyCode;
-        public final BigDecimal amount;
-        public final BigDecimal balance;
+        public final Money amount;
+        public final Money balance;
         public final String timestamp;
+        public final String counterpartyAccount;
 
         @JsonCreator
         public PostAdded(@JsonProperty(value = "accountNumber") String accountNumber,
                          @JsonProperty(value = "reference") String reference,
                          @JsonProperty(value = "narrative") String narrative,
-                         @JsonProperty(value = "currencyCode") String currencyCode,
-                         @JsonProperty(value = "amount") BigDecimal amount,
-                         @JsonProperty(value = "balance") BigDecimal balance,
-                         @JsonProperty(value = "timestamp") String timestamp) {
+                         @JsonProperty(value = "amount") Money amount,
+                         @JsonProperty(value = "balance") Money balance,
+                         @JsonProperty(value = "timestamp") String timestamp,
+                         @JsonProperty(value = "counterpartyAccount") String counterpartyAccount) {
             this.accountNumber = Preconditions.checkNotNull(accountNumber, "accountNumber");
             this.reference = Preconditions.checkNotNull(reference, "reference");
             this.narrative = Preconditions.checkNotNull(narrative, "narrative");
-            this.currencyCode = Preconditions.checkNotNull(currencyCode, "currencyCode");
             this.amount = amount;
             this.balance = balance;
             this.timestamp = timestamp;
+            this.counterpartyAccount = counterpartyAccount;
+        }
+
+        public PostAdded(String accountNumber, String reference, String narrative, Money amount, Money balance,
+                         String timestamp) {
+            this(accountNumber, reference, narrative, amount, balance, timestamp, null);
         }
     }
 
@@ -0,0 +1,70 @@
+package com.globalbank.bookentry.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.globalbank.bookentry.util.Money;
+import com.lightbend.lagom.serialization.JacksonJsonMigration;
+
+/**
+ * JSON migrations for journal entries and snapshots written before amounts and balances were
+ * {@link Money}. Version 1 stored them as plain decimal numbers, always at a scale of 2.
+ * <p>
+ * The migrations are registered under lagom.serialization.json.migrations in application.conf.
+ */
+public final class AccountJsonMigrations {
+
+    private AccountJsonMigrations() {
+    }
+
+    private static JsonNode migrateMoneyFields(int fromVersion, JsonNode json, String... fields) {
+        if (fromVersion < 2 && json instanceof ObjectNode) {
+            ObjectNode root = (ObjectNode) json;
+            for (String field : fields) {
+                JsonNode value = root.get(field);
+                if (value != null && value.isNumber()) {
+                    Money money = Money.of(value.decimalValue(), Money.DEFAULT_EXPONENT);
+                    ObjectNode moneyNode = JsonNodeFactory.instance.objectNode();
+                    moneyNode.put("minorUnits", money.minorUnits);
+                    moneyNode.put("exponent", money.exponent);
+                    root.set(field, moneyNode);
+                }
+            }
+        }
+        return json;
+    }
+
+    /**
+     * Migrates {@link AccountEvent.PostAdded} amount and balance, and drops the currencyCode version 1
+     * repeated from the account.
+     */
+    public static final class PostAddedMigration extends JacksonJsonMigration {
+        @Override
+        public int currentVersion() {
+            return 2;
+        }
+
+        @Override
+        public JsonNode transform(int fromVersion, JsonNode json) {
+            if (fromVersion < 2 && json instanceof ObjectNode) {
+                ((ObjectNode) json).remove("currencyCode");
+            }
+            return migrateMoneyFields(fromVersion, json, "amount", "balance");
+        }
+    }
+
+    /**
+     * Migrates the {@link AccountState} snapshot balance.
+     */
+    public static final class AccountStateMigration extends JacksonJsonMigration {
+        @Override
+        public int currentVersion() {
+            return 2;
+        }
+
+        @Override
+        public JsonNode transform(int fromVersion, JsonNode json) {
+            return migrateMoneyFields(fromVersion, json, "balance");
+        }
+    }
+}
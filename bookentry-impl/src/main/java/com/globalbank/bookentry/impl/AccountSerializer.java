@@ -0,0 +1,253 @@
+package com.globalbank.bookentry.impl;
+
+import akka.serialization.SerializerWithStringManifest;
+import com.globalbank.bookentry.enums.CreditDebitIndicator;
+import com.globalbank.bookentry.util.Money;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.UncheckedIOException;
+
+/**
+ * A compact binary Akka serializer for the {@link AccountCommand}s, {@link AccountEvent}s and the
+ * {@link AccountState}, bound to them in application.conf.
+ * <p>
+ * The manifest names the type and the version of its format, e.g. "EP1" for version 1 of
+ * {@link AccountEvent.PostAdded}. To evolve a format, add a new manifest version for the writer and
+ * keep the reader of every older version, as journal entries are never rewritten.
+ * <p>
+ * Journal entries written by the Lagom JSON serializer keep their serializer id and are still
+ * read by it.
+ */
+public class AccountSerializer extends SerializerWithStringManifest {
+
+    private static final String ADD_ACCOUNT_MANIFEST = "AA1";
+    private static final String UPDATE_ACCOUNT_MANIFEST = "UA1";
+    private static final String READ_ACCOUNT_MANIFEST = "RA1";
+    private static final String GET_OR_INIT_SUSPENSE_ACCOUNT_MANIFEST = "GS1";
+    private static final String ADD_POST_MANIFEST_V1 = "AP1";
+    private static final String ADD_POST_MANIFEST = "AP2";
+    private static final String ACCOUNT_ADDED_MANIFEST = "EA1";
+    private static final String ACCOUNT_DETAILS_CHANGED_MANIFEST = "ED1";
+    private static final String POST_ADDED_MANIFEST_V1 = "EP1";
+    private static final String POST_ADDED_MANIFEST = "EP2";
+    private static final String ACCOUNT_STATE_MANIFEST_V1 = "S1";
+    private static final String ACCOUNT_STATE_MANIFEST_V2 = "S2";
+    private static final String ACCOUNT_STATE_MANIFEST = "S3";
+
+    @Override
+    public int identifier() {
+        return 1210001;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        if (o instanceof AccountCommand.AddAccount) {
+            return ADD_ACCOUNT_MANIFEST;
+        } else if (o instanceof AccountCommand.UpdateAccount) {
+            return UPDATE_ACCOUNT_MANIFEST;
+        } else if (o instanceof AccountCommand.ReadAccount) {
+            return READ_ACCOUNT_MANIFEST;
+        } else if (o instanceof AccountCommand.GetOrInitSuspenseAccount) {
+            return GET_OR_INIT_SUSPENSE_ACCOUNT_MANIFEST;
+        } else if (o instanceof AccountCommand.AddPost) {
+            return ADD_POST_MANIFEST;
+        } else if (o instanceof AccountEvent.AccountAdded) {
+            return ACCOUNT_ADDED_MANIFEST;
+        } else if (o instanceof AccountEvent.AccountDetailsChanged) {
+            return ACCOUNT_DETAILS_CHANGED_MANIFEST;
+        } else if (o instanceof AccountEvent.PostAdded) {
+            return POST_ADDED_MANIFEST;
+        } else if (o instanceof AccountState) {
+            return ACCOUNT_STATE_MANIFEST;
+        } else {
+            throw new IllegalArgumentException("Can't serialize object of type " + o.getClass().getName());
+        }
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            if (o instanceof AccountCommand.AddAccount) {
+                AccountCommand.AddAccount cmd = (AccountCommand.AddAccount) o;
+                writeString(out, cmd.accountNumber);
+                writeString(out, cmd.accountName);
+                writeString(out, cmd.accountType);
+                writeString(out, cmd.currencyCode);
+            } else if (o instanceof AccountCommand.UpdateAccount) {
+                AccountCommand.UpdateAccount cmd = (AccountCommand.UpdateAccount) o;
+                writeString(out, cmd.accountNumber);
+                writeString(out, cmd.accountName);
+                writeString(out, cmd.accountType);
+            } else if (o instanceof AccountCommand.ReadAccount) {
+                writeString(out, ((AccountCommand.ReadAccount) o).accountNumber);
+            } else if (o instanceof AccountCommand.GetOrInitSuspenseAccount) {
+                AccountCommand.GetOrInitSuspenseAccount cmd = (AccountCommand.GetOrInitSuspenseAccount) o;
+                writeString(out, cmd.accountNumber);
+                writeString(out, cmd.accountName);
+                writeString(out, cmd.currencyCode);
+            } else if (o instanceof AccountCommand.AddPost) {
+                AccountCommand.AddPost cmd = (AccountCommand.AddPost) o;
+                writeString(out, cmd.accountNumber);
+                writeString(out, cmd.reference);
+                writeString(out, cmd.narrative);
+                writeString(out, cmd.currencyCode);
+                out.writeByte(cmd.creditDebitIndicator.ordinal());
+                writeMoney(out, cmd.amount);
+                writeString(out, cmd.counterpartyAccount);
+            } else if (o instanceof AccountEvent.AccountAdded) {
+                AccountEvent.AccountAdded evt = (AccountEvent.AccountAdded) o;
+                writeString(out, evt.accountNumber);
+                writeString(out, evt.accountName);
+                writeString(out, evt.accountType);
+                writeString(out, evt.currencyCode);
+                writeString(out, evt.timestamp);
+            } else if (o instanceof AccountEvent.AccountDetailsChanged) {
+                AccountEvent.AccountDetailsChanged evt = (AccountEvent.AccountDetailsChanged) o;
+                writeString(out, evt.accountNumber);
+                writeString(out, evt.accountName);
+                writeString(out, evt.accountType);
+                writeString(out, evt.currencyCode);
+                writeString(out, evt.timestamp);
+            } else if (o instanceof AccountEvent.PostAdded) {
+                AccountEvent.PostAdded evt = (AccountEvent.PostAdded) o;
+                writeString(out, evt.accountNumber);
+                writeString(out, evt.reference);
+                writeString(out, evt.narrative);
+                writeMoney(out, evt.amount);
+                writeMoney(out, evt.balance);
+                writeString(out, evt.timestamp);
+                writeString(out, evt.counterpartyAccount);
+            } else if (o instanceof AccountState) {
+                AccountState state = (AccountState) o;
+                writeString(out, state.accountNumber);
+                writeString(out, state.accountName);
+                writeString(out, state.accountType);
+                writeString(out, state.currencyCode);
+                writeMoney(out, state.balance);
+                writeString(out, state.timestamp);
+                long[] recentPostings = state.recentPostings.toArray();
+                writeVarLong(out, recentPostings.length);
+                for (long entry : recentPostings) {
+                    out.writeLong(entry);
+                }
+            } else {
+                throw new IllegalArgumentException("Can't serialize object of type " + o.getClass().getName());
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            switch (manifest) {
+                case ADD_ACCOUNT_MANIFEST:
+                    return new AccountCommand.AddAccount(readString(in), readString(in), readString(in), readString(in));
+                case UPDATE_ACCOUNT_MANIFEST:
+                    return new AccountCommand.UpdateAccount(readString(in), readString(in), readString(in));
+                case READ_ACCOUNT_MANIFEST:
+                    return new AccountCommand.ReadAccount(readString(in));
+                case GET_OR_INIT_SUSPENSE_ACCOUNT_MANIFEST:
+                    return new AccountCommand.GetOrInitSuspenseAccount(readString(in), readString(in), readString(in));
+                case ADD_POST_MANIFEST_V1:
+                    return new AccountCommand.AddPost(readString(in), readString(in), readString(in), readString(in),
+                            CreditDebitIndicator.values()[in.readByte()], readMoney(in));
+                case ADD_POST_MANIFEST:
+                    return new AccountCommand.AddPost(readString(in), readString(in), readString(in), readString(in),
+                            CreditDebitIndicator.values()[in.readByte()], readMoney(in), readString(in));
+                case ACCOUNT_ADDED_MANIFEST:
+                    return new AccountEvent.AccountAdded(readString(in), readString(in), readString(in), readString(in),
+                            readString(in));
+                case ACCOUNT_DETAILS_CHANGED_MANIFEST:
+                    return new AccountEvent.AccountDetailsChanged(readString(in), readString(in), readString(in),
+                            readString(in), readString(in));
+                case POST_ADDED_MANIFEST_V1:
+                    return new AccountEvent.PostAdded(readString(in), readString(in), readString(in), readMoney(in),
+                            readMoney(in), readString(in));
+                case POST_ADDED_MANIFEST:
+                    return new AccountEvent.PostAdded(readString(in), readString(in), readString(in), readMoney(in),
+                            readMoney(in), readString(in), readString(in));
+                case ACCOUNT_STATE_MANIFEST_V1:
+                case ACCOUNT_STATE_MANIFEST_V2:
+                    // S2 fingerprints lack the counterparty and amount, the record restarts empty
+                    return new AccountState(readString(in), readString(in), readString(in), readString(in),
+                            readMoney(in), readString(in), RecentPostings.EMPTY);
+                case ACCOUNT_STATE_MANIFEST:
+                    return new AccountState(readString(in), readString(in), readString(in), readString(in),
+                            readMoney(in), readString(in), readRecentPostings(in));
+                default:
+                    throw new NotSerializableException("Unimplemented deserialization of message with manifest [" +
+                            manifest + "] in " + getClass().getName());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeMoney(DataOutputStream out, Money money) throws IOException {
+        out.writeBoolean(money != null);
+        if (money != null) {
+            // zig-zag varint, small amounts take a byte or two instead of eight
+            writeVarLong(out, (money.minorUnits << 1) ^ (money.minorUnits >> 63));
+            out.writeByte(money.exponent);
+        }
+    }
+
+    private static Money readMoney(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        long zigZag = readVarLong(in);
+        return new Money((zigZag >>> 1) ^ -(zigZag & 1), in.readByte());
+    }
+
+    private static RecentPostings readRecentPostings(DataInputStream in) throws IOException {
+        long[] entries = new long[(int) readVarLong(in)];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = in.readLong();
+        }
+        return RecentPostings.of(entries);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
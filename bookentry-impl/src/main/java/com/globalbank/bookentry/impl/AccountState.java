@@ -4,37 +4,71 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.google.common.base.Preconditions;
-import com.lightbend.lagom.serialization.CompressedJsonable;
+import com.globalbank.bookentry.util.Money;
 import lombok.Value;
 
-import java.math.BigDecimal;
-
 /**
- * The state for the {@link AccountEntity} entity.
+ * The state for the {@link AccountEntity} entity, snapshotted by the binary {@link AccountSerializer}.
  */
-@SuppressWarnings("serial")
 @Value
 @JsonDeserialize
-public final class AccountState implements CompressedJsonable {
+public final class AccountState {
     public final String accountNumber;
     public final String accountName;
     public final String accountType;
     public final String currencyCode;
-    public final BigDecimal balance;
+    public final Money balance;
     public final String timestamp;
+    public final RecentPostings recentPostings;
 
     @JsonCreator
     AccountState(@JsonProperty(value = "accountNumber") String accountNumber,
               @JsonProperty(value = "accountName") String accountName,
               @JsonProperty(value = "accountType") String accountType,
               @JsonProperty(value = "currencyCode") String currencyCode,
-              @JsonProperty(value = "balance") BigDecimal balance,
-              @JsonProperty(value = "timestamp") String timestamp) {
+              @JsonProperty(value = "balance") Money balance,
+              @JsonProperty(value = "timestamp") String timestamp,
+              @JsonProperty(value = "recentPostings") RecentPostings recentPostings) {
         this.accountNumber = Preconditions.checkNotNull(accountNumber, "accountNumber");
         this.accountName = Preconditions.checkNotNull(accountName, "accountName");
         this.accountType = Preconditions.checkNotNull(accountType, "accountType");
         this.currencyCode = Preconditions.checkNotNull(currencyCode, "currencyCode");
         this.balance = balance;
         this.timestamp = Preconditions.checkNotNull(timestamp, "timestamp");
+        // snapshots taken before postings were recorded have none
+        this.recentPostings = recentPostings == null ? RecentPostings.EMPTY : recentPostings;
+    }
+
+    /**
+     * The state of a newly added account. The state timestamps are taken from the events so that
+     * replaying the journal during recovery does not have to read the clock for every event.
+     */
+    public static AccountState added(AccountEvent.AccountAdded evt) {
+        return new AccountState(evt.accountNumber, evt.accountName, evt.accountType, evt.currencyCode,
+                Money.zero(Money.exponentOf(evt.currencyCode)), evt.timestamp, RecentPostings.EMPTY);
+    }
+
+    /**
+     * The state with new account details, maintaining the balance that is already there.
+     */
+    public AccountState withDetails(AccountEvent.AccountDetailsChanged evt) {
+        return new AccountState(evt.accountNumber, evt.accountName, evt.accountType, evt.currencyCode,
+                balance, evt.timestamp, recentPostings);
+    }
+
+    /**
+     * The state with a posting applied to the balance and recorded in the recent postings.
+     */
+    public AccountState withPost(AccountEvent.PostAdded evt) {
+        return new AccountState(accountNumber, accountName, accountType, currencyCode,
+                balance.plus(evt.amount), evt.timestamp != null ? evt.timestamp : timestamp,
+                recentPostings.add(evt.reference, evt.amount, evt.counterpartyAccount));
+    }
+
+    /**
+     * Whether a posting was recently applied to the account, or its reference to another posting.
+     */
+    public RecentPostings.Match matchRecentPostings(String reference, Money postAmount, String counterpartyAccount) {
+        return recentPostings.match(reference, postAmount, counterpartyAccount);
     }
 }
@@ -0,0 +1,106 @@
+package com.globalbank.bookentry.impl;
+
+import com.lightbend.lagom.javadsl.api.transport.ResponseHeader;
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the postings in flight per account. A posting that would take an account above
+ * bookentry.admission.max-in-flight-per-account is rejected at once, instead of queueing in the mailbox
+ * of the account entity until its ask times out, so a flooded account answers quickly and the other
+ * accounts are not slowed down by it. Only accounts with postings in flight are tracked.
+ * <p>
+ * The postings are counted on each node, by the postings it was asked to make, so the limit holds per
+ * node: an account posted to through n nodes may have up to n times the limit in flight.
+ */
+@Slf4j
+@Singleton
+public class AdmissionControl {
+
+    private final int maxInFlight;
+    private final Duration retryAfter;
+    private final Map<String, Integer> inFlight = new ConcurrentHashMap<>();
+
+    @Inject
+    public AdmissionControl(Config config) {
+        this.maxInFlight = config.getInt("bookentry.admission.max-in-flight-per-account");
+        this.retryAfter = config.getDuration("bookentry.admission.retry-after");
+    }
+
+    /**
+     * Admits a posting on all of the given accounts, or none of them.
+     */
+    public Optional<Permit> tryAdmit(Collection<String> accountNumbers) {
+        List<String> admitted = new ArrayList<>();
+        for (String accountNumber : new LinkedHashSet<>(accountNumbers)) {
+            if (!acquire(accountNumber)) {
+                log.info("Rejecting posting, account {} has {} postings in flight", accountNumber, maxInFlight);
+                admitted.forEach(this::release);
+                return Optional.empty();
+            }
+            admitted.add(accountNumber);
+        }
+        return Optional.of(new Permit(admitted));
+    }
+
+    /**
+     * Seconds a rejected caller should wait before retrying, at least one.
+     */
+    public long retryAfterSeconds() {
+        return Math.max(1, retryAfter.getSeconds());
+    }
+
+    /**
+     * The response header of a rejected posting, 429 Too Many Requests telling the caller when to retry.
+     */
+    public ResponseHeader rejectedHeader() {
+        return ResponseHeader.OK.withStatus(429).withHeader("Retry-After", String.valueOf(retryAfterSeconds()));
+    }
+
+    private boolean acquire(String accountNumber) {
+        AtomicBoolean acquired = new AtomicBoolean();
+        inFlight.compute(accountNumber, (key, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= maxInFlight) {
+                return count;
+            }
+            acquired.set(true);
+            return current + 1;
+        });
+        return acquired.get();
+    }
+
+    private void release(String accountNumber) {
+        inFlight.computeIfPresent(accountNumber, (key, count) -> count <= 1 ? null : count - 1);
+    }
+
+    /**
+     * The admission of one posting, released once it completes.
+     */
+    public final class Permit {
+        private final List<String> accountNumbers;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(List<String> accountNumbers) {
+            this.accountNumbers = accountNumbers;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                accountNumbers.forEach(AdmissionControl.this::release);
+            }
+        }
+    }
+}
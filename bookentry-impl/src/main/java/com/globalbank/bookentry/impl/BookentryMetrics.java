@@ -0,0 +1,162 @@
+package com.globalbank.bookentry.impl;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import javax.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Latency histograms and response code counters of the posting hot paths, rendered in the
+ * Prometheus text format by {@link #scrape(PostingExecution)}.
+ * <ul>
+ * <li>bookentry_command_seconds - time spent in an AccountEntity command handler</li>
+ * <li>bookentry_persist_seconds - time from thenPersist until the event is journaled and the callback runs</li>
+ * <li>bookentry_ask_seconds - round trip of an entity ask made by the service</li>
+ * <li>bookentry_responses_total - responses per service operation and response code</li>
+ * <li>bookentry_posting_legs_seconds - time to post both legs of a deposit or reversal, per leg mode</li>
+ * <li>bookentry_posting_compensations_total - legs undone because the other leg failed, per leg mode</li>
+ * <li>bookentry_account_view_reads_total - lookups of the account balance view, per result (hit, miss or stale)</li>
+ * </ul>
+ */
+@Singleton
+public class BookentryMetrics {
+
+    public static final String COMMAND = "bookentry_command_seconds";
+    public static final String PERSIST = "bookentry_persist_seconds";
+    public static final String ASK = "bookentry_ask_seconds";
+    public static final String RESPONSES = "bookentry_responses_total";
+    public static final String POSTING_LEGS = "bookentry_posting_legs_seconds";
+    public static final String COMPENSATIONS = "bookentry_posting_compensations_total";
+    public static final String VIEW_READS = "bookentry_account_view_reads_total";
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, Map<String, Timer>> timers = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> responses = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> compensations = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> viewReads = new ConcurrentSkipListMap<>();
+
+    public void recordNanos(String name, String label, long nanos) {
+        timers.computeIfAbsent(name, key -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(label, key -> new Timer())
+                .record(nanos);
+    }
+
+    public void recordSince(String name, String label, long startNanos) {
+        recordNanos(name, label, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the time until the given ask completes, successfully or not.
+     */
+    public <T> CompletionStage<T> timeAsk(String command, Supplier<CompletionStage<T>> ask) {
+        long start = System.nanoTime();
+        return ask.get().whenComplete((result, throwable) -> recordSince(ASK, command, start));
+    }
+
+    public void countResponse(String operation, String responseCode) {
+        responses.computeIfAbsent("operation=\"" + operation + "\",code=\"" + responseCode + "\"", key -> new LongAdder())
+                .increment();
+    }
+
+    public long getResponseCount(String operation, String responseCode) {
+        LongAdder count = responses.get("operation=\"" + operation + "\",code=\"" + responseCode + "\"");
+        return count == null ? 0 : count.sum();
+    }
+
+    public void countCompensation(String mode) {
+        compensations.computeIfAbsent(mode, key -> new LongAdder()).increment();
+    }
+
+    public long getCompensationCount(String mode) {
+        LongAdder count = compensations.get(mode);
+        return count == null ? 0 : count.sum();
+    }
+
+    public void countViewRead(String result) {
+        viewReads.computeIfAbsent(result, key -> new LongAdder()).increment();
+    }
+
+    public long getViewReadCount(String result) {
+        LongAdder count = viewReads.get(result);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long getCount(String name, String label) {
+        Map<String, Timer> family = timers.get(name);
+        Timer timer = family == null ? null : family.get(label);
+        return timer == null ? 0 : timer.histogram.getTotalCount();
+    }
+
+    public String scrape(PostingExecution postingExecution) {
+        StringBuilder out = new StringBuilder();
+
+        for (Map.Entry<String, Map<String, Timer>> family : timers.entrySet()) {
+            String name = family.getKey();
+            String label = PERSIST.equals(name) ? "event" : POSTING_LEGS.equals(name) ? "mode" : "command";
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (Map.Entry<String, Timer> entry : family.getValue().entrySet()) {
+                String labels = label + "=\"" + entry.getKey() + "\"";
+                Histogram histogram = entry.getValue().histogram.copy();
+                for (double quantile : QUANTILES) {
+                    out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                            .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+                }
+                out.append(name).append("_sum{").append(labels).append("} ")
+                        .append(seconds(entry.getValue().sumNanos.sum())).append('\n');
+                out.append(name).append("_count{").append(labels).append("} ")
+                        .append(histogram.getTotalCount()).append('\n');
+            }
+        }
+
+        out.append("# TYPE ").append(RESPONSES).append(" counter\n");
+        for (Map.Entry<String, LongAdder> entry : responses.entrySet()) {
+            out.append(RESPONSES).append('{').append(entry.getKey()).append("} ").append(entry.getValue().sum()).append('\n');
+        }
+
+        out.append("# TYPE ").append(COMPENSATIONS).append(" counter\n");
+        for (Map.Entry<String, LongAdder> entry : compensations.entrySet()) {
+            out.append(COMPENSATIONS).append("{mode=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+        out.append("# TYPE ").append(VIEW_READS).append(" counter\n");
+        for (Map.Entry<String, LongAdder> entry : viewReads.entrySet()) {
+            out.append(VIEW_READS).append("{result=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+
+        counter(out, "bookentry_posting_requests_total", postingExecution.getRequests());
+        counter(out, "bookentry_posting_continuations_total", postingExecution.getContinuations());
+        counter(out, "bookentry_posting_thread_hops_total", postingExecution.getThreadHops());
+        out.append("# TYPE bookentry_posting_queue_seconds_total counter\n")
+                .append("bookentry_posting_queue_seconds_total ").append(seconds(postingExecution.getQueueNanos())).append('\n');
+
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static final class Timer {
+        private final Histogram histogram = new ConcurrentHistogram(HIGHEST_TRACKABLE_NANOS, 3);
+        private final LongAdder sumNanos = new LongAdder();
+
+        private void record(long nanos) {
+            //anything slower than the trackable range is already an ask timeout, keep it in the top bucket
+            histogram.recordValue(Math.min(Math.max(nanos, 0), HIGHEST_TRACKABLE_NANOS));
+            sumNanos.add(nanos);
+        }
+    }
+}
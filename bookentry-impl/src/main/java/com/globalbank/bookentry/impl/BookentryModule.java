@@ -14,5 +14,9 @@ public class BookentryModule extends AbstractModule implements ServiceGuiceSuppo
         bindService(BookentryService.class, BookentryServiceImpl.class);
 
         bind(AccountInitializer.class).asEagerSingleton();
+        // Eager so that scheduled reconciliation runs start with the service
+        bind(LedgerReconciliation.class).asEagerSingleton();
+        // Eager so that pending transfers are resumed after a restart
+        bind(TransferSaga.class).asEagerSingleton();
     }
 }
@@ -3,27 +3,51 @@ package com.globalbank.bookentry.impl;
 import akka.Done;
 import akka.NotUsed;
 import akka.japi.Pair;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
 import com.globalbank.bookentry.api.*;
 import com.globalbank.bookentry.util.ValidationUtil;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
 import com.lightbend.lagom.javadsl.api.broker.Topic;
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
+import com.lightbend.lagom.javadsl.api.transport.NotFound;
+import com.lightbend.lagom.javadsl.api.transport.ResponseHeader;
 import com.lightbend.lagom.javadsl.broker.TopicProducer;
 import com.lightbend.lagom.javadsl.persistence.PersistentEntityRef;
 import com.lightbend.lagom.javadsl.persistence.PersistentEntityRegistry;
+import com.lightbend.lagom.javadsl.persistence.ReadSide;
+import com.lightbend.lagom.javadsl.server.HeaderServiceCall;
+import com.typesafe.config.Config;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
 
 import javax.inject.Inject;
 
 import lombok.extern.slf4j.Slf4j;
 import com.globalbank.bookentry.api.*;
+import com.globalbank.bookentry.enums.AccountType;
 import com.globalbank.bookentry.enums.CreditDebitIndicator;
 import com.globalbank.bookentry.impl.AccountCommand.*;
 import com.globalbank.bookentry.init.AccountInitializer;
 import com.globalbank.bookentry.pojo.PostingRequest;
+import com.globalbank.bookentry.pojo.PostingResponse;
 import com.globalbank.bookentry.util.Constants;
+import com.globalbank.bookentry.util.Money;
 
 import java.math.BigDecimal;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static java.util.concurrent.CompletableFuture.*;
 
@@ -34,15 +58,46 @@ import static java.util.concurrent.CompletableFuture.*;
 @Slf4j
 public class BookentryServiceImpl implements BookentryService {
 
+    private static final String SEQUENTIAL = "sequential";
+    private static final String CONCURRENT = "concurrent";
+
     private final PersistentEntityRegistry persistentEntityRegistry;
     private final AccountInitializer accountInitializer;
+    private final PostingExecution postingExecution;
+    private final BookentryMetrics metrics;
+    private final AccountBalanceView balanceView;
+    private final LedgerReconciliation reconciliation;
+    private final TransferSaga transferSaga;
+    private final AdmissionControl admissionControl;
+    private final Materializer materializer;
+    private final int bulkParallelism;
+    private final int readBatchParallelism;
+    private final int readBatchMaxSize;
+    private final List<String> concurrentLegTypes;
 
     @Inject
-    public BookentryServiceImpl(PersistentEntityRegistry persistentEntityRegistry, AccountInitializer accountInitializer) {
+    public BookentryServiceImpl(PersistentEntityRegistry persistentEntityRegistry, AccountInitializer accountInitializer,
+                                PostingExecution postingExecution, BookentryMetrics metrics,
+                                AccountBalanceView balanceView, LedgerReconciliation reconciliation,
+                                TransferSaga transferSaga, AdmissionControl admissionControl, ReadSide readSide,
+                                Materializer materializer, Config config) {
         this.persistentEntityRegistry = persistentEntityRegistry;
         this.accountInitializer = accountInitializer;
+        this.postingExecution = postingExecution;
+        this.metrics = metrics;
+        this.balanceView = balanceView;
+        this.reconciliation = reconciliation;
+        this.transferSaga = transferSaga;
+        this.admissionControl = admissionControl;
+        this.materializer = materializer;
+        this.bulkParallelism = config.getInt("bookentry.posting.bulk-parallelism");
+        this.readBatchParallelism = config.getInt("bookentry.read-batch.parallelism");
+        this.readBatchMaxSize = config.getInt("bookentry.read-batch.max-size");
+        this.concurrentLegTypes = config.getStringList("bookentry.posting.concurrent-legs");
 
         persistentEntityRegistry.register(AccountEntity.class);
+        persistentEntityRegistry.register(TransferEntity.class);
+        readSide.register(PendingTransferProcessor.class);
     }
 
     @Override
@@ -51,7 +106,8 @@ public class BookentryServiceImpl implements BookentryService {
             // Look up the account entity for the given accountNumber.
             PersistentEntityRef<AccountCommand> ref = persistentEntityRegistry.refFor(AccountEntity.class, request.accountNumber);
             // Tell the entity to use the account info specified.
-            return ref.ask(new AddAccount(request.accountNumber, request.accountName, request.accountType, request.currencyCode));
+            return metrics.timeAsk("AddAccount", () -> ref.ask(new AddAccount(request.accountNumber, request.accountName,
+                    request.accountType, request.currencyCode)));
         };
     }
 
@@ -61,7 +117,8 @@ public class BookentryServiceImpl implements BookentryService {
             // Look up the account entity for the given accountNumber.
             PersistentEntityRef<AccountCommand> ref = persistentEntityRegistry.refFor(AccountEntity.class, request.accountNumber);
             // Tell the entity to update itself with provided details.
-            return ref.ask(new UpdateAccount(request.accountNumber, request.accountName, request.accountType));
+            return metrics.timeAsk("UpdateAccount", () -> ref.ask(new UpdateAccount(request.accountNumber, request.accountName,
+                    request.accountType)));
         };
     }
 
@@ -71,13 +128,63 @@ public class BookentryServiceImpl implements BookentryService {
             // Look up the account entity for the given ID.
             PersistentEntityRef<AccountCommand> ref = persistentEntityRegistry.refFor(AccountEntity.class, accountNumber);
             // Ask the entity the ReadAccount command.
-            return ref.ask(new ReadAccount(accountNumber));
+            return metrics.timeAsk("ReadAccount", () -> ref.ask(new ReadAccount(accountNumber)));
         };
     }
 
     @Override
-    public ServiceCall<DepositDto, ServiceResponse> performDeposit() {
+    public ServiceCall<NotUsed, ReadAccountDto> readAccountEventually(String accountNumber) {
         return request -> {
+            // Answer from the replicated view, the entity is only asked for accounts not in it or expired,
+            // and publishes them again.
+            Optional<ReadAccountDto> account = balanceView.get(accountNumber);
+            if (account.isPresent()) {
+                return completedFuture(account.get());
+            }
+            return readAccount(accountNumber).invoke();
+        };
+    }
+
+    @Override
+    public ServiceCall<PSequence<String>, PSequence<ReadAccountDto>> readAccounts() {
+        return accountNumbers -> {
+            if (accountNumbers.size() > readBatchMaxSize) {
+                throw new BadRequest("At most " + readBatchMaxSize + " accounts can be read at once");
+            }
+            // Ask each account entity with bounded parallelism, mapAsync keeps the requested order.
+            return Source.from(accountNumbers)
+                    .mapAsync(readBatchParallelism, accountNumber -> metrics.timeAsk("ReadAccount", () ->
+                            persistentEntityRegistry.refFor(AccountEntity.class, accountNumber)
+                                    .ask(new ReadAccount(accountNumber))))
+                    .runWith(Sink.seq(), materializer)
+                    .thenApply(TreePVector::from);
+        };
+    }
+
+    @Override
+    public ServiceCall<NotUsed, ReadAccountDto> readSuspenseBalance(String currencyCode) {
+        return request -> {
+            // Ask every suspense sub-account of the currency for its balance and add them up.
+            List<CompletionStage<ReadAccountDto>> balances = new ArrayList<>();
+            for (String accountNumber : accountInitializer.getDepositSuspenseAccountNumbers(currencyCode)) {
+                PersistentEntityRef<AccountCommand> ref = persistentEntityRegistry.refFor(AccountEntity.class, accountNumber);
+                balances.add(metrics.timeAsk("ReadAccount", () -> ref.ask(new ReadAccount(accountNumber))));
+            }
+
+            CompletionStage<BigDecimal> total = completedFuture(BigDecimal.ZERO.setScale(2, BigDecimal.ROUND_HALF_UP));
+            for (CompletionStage<ReadAccountDto> balance : balances) {
+                total = total.thenCombine(balance, (sum, readAccountDto) -> sum.add(readAccountDto.balance));
+            }
+
+            return total.thenApply(sum -> new ReadAccountDto(Constants.DEPOSIT_CASH_ACCOUNT_PREFIX.concat(currencyCode),
+                    AccountInitializer.getDepositSuspenseAccountName(currencyCode), AccountType.Suspense.name(), currencyCode, sum,
+                    Instant.now().toString()));
+        };
+    }
+
+    @Override
+    public HeaderServiceCall<DepositDto, ServiceResponse> performDeposit() {
+        return (requestHeader, request) -> counted("deposit", response -> response.second().responseCode, () -> {
             try {
                 log.info("Performing deposit : Account {}", request.accountNumber);
                 log.info("Deposit Amt : {} {}", request.currencyCode, request.amount);
@@ -85,35 +192,49 @@ public class BookentryServiceImpl implements BookentryService {
                 //reject if amount is less than or equal to zero
                 if (!ValidationUtil.isAmountValid(request.amount)) {
                     log.info("Rejecting deposit with invalid amount");
-                    return completedFuture(new ServiceResponse(Constants.RC_INVALID_AMOUNT, "Invalid amount"));
+                    return answered(ServiceResponse.of(Constants.RC_INVALID_AMOUNT, "Invalid amount"));
                 }
 
-                // Look up the account entities for the given account numbers and post.
-                String sourceAccountNr = Constants.DEPOSIT_CASH_ACCOUNT_PREFIX.concat(request.currencyCode);
-                String sourceAccountNm = "DEPOSIT CASH SUSPENSE " + request.currencyCode;
-
-                return accountInitializer.getSuspenseAccountEntityRef(sourceAccountNr, sourceAccountNm, request.currencyCode)
-                        .thenComposeAsync(sourceAccountRef -> {
-                            PersistentEntityRef<AccountCommand> destAccountRef = persistentEntityRegistry
-                                    .refFor(AccountEntity.class, request.accountNumber);
-
-                            return this.doPosting(sourceAccountRef, destAccountRef,
-                                    new PostingRequest(request.reference, sourceAccountNr, request.accountNumber,
-                                            "Cash Deposit", request.currencyCode, request.amount));
-                        });
+                //reject if a field the postings are routed by is missing
+                if (!ValidationUtil.isPresent(request.reference, request.accountNumber, request.currencyCode)) {
+                    log.info("Rejecting deposit with missing fields");
+                    return answered(ServiceResponse.of(Constants.RC_FORMAT_ERROR, "Missing field"));
+                }
 
+                // Look up the account entities for the given account numbers and post.
+                // The suspense sub-account is picked by the deposit reference so retries land on the same shard.
+                String sourceAccountNr = accountInitializer.getDepositSuspenseAccountNumber(request.currencyCode, request.reference);
+                String sourceAccountNm = AccountInitializer.getDepositSuspenseAccountName(request.currencyCode);
+
+                return admitted(Arrays.asList(request.accountNumber, sourceAccountNr), ServiceResponse::of, () -> {
+                    PostingExecution.Trace trace = postingExecution.trace();
+
+                    return trace.finish(accountInitializer.getSuspenseAccountEntityRef(sourceAccountNr, sourceAccountNm,
+                            request.currencyCode, trace)
+                            .thenComposeAsync(sourceAccountRef -> {
+                                PersistentEntityRef<AccountCommand> destAccountRef = persistentEntityRegistry
+                                        .refFor(AccountEntity.class, request.accountNumber);
+
+                                return this.doPosting(sourceAccountRef, destAccountRef,
+                                        new PostingRequest(request.reference, sourceAccountNr, request.accountNumber,
+                                                "Cash Deposit", request.currencyCode, request.amount),
+                                        Optional.of(AccountType.Suspense.name()), trace);
+                            }, trace)
+                            //reversals of the deposit debit the same sub-account
+                            .thenApply(response -> response.withSourceAccount(sourceAccountNr)));
+                });
             } catch (Exception e) {
                 log.error("Exception occurred performing deposit : {}", e.getMessage());
                 e.printStackTrace();
 
-                return completedFuture(ServiceResponse.of(Constants.RC_GENERAL_ERROR, "General error"));
+                return answered(ServiceResponse.of(Constants.RC_GENERAL_ERROR, "General error"));
             }
-        };
+        });
     }
 
     @Override
-    public ServiceCall<TransferDto, ServiceResponse> performTransfer() {
-        return request -> {
+    public HeaderServiceCall<TransferDto, ServiceResponse> performTransfer() {
+        return (requestHeader, request) -> counted("transfer", response -> response.second().responseCode, () -> {
             try {
                 log.info("Performing transfer : Src {} Dest {}", request.sourceAccount, request.destinationAccount);
                 log.info("Transfer Amt : {} {}", request.currencyCode, request.amount);
@@ -121,31 +242,105 @@ public class BookentryServiceImpl implements BookentryService {
                 //reject if amount is less than or equal to zero
                 if (!ValidationUtil.isAmountValid(request.amount)) {
                     log.info("Rejecting transfer with invalid amount");
-                    return completedFuture(ServiceResponse.of(Constants.RC_INVALID_AMOUNT, "Invalid amount"));
+                    return answered(ServiceResponse.of(Constants.RC_INVALID_AMOUNT, "Invalid amount"));
                 }
 
-                // Look up the account entities for the given account numbers.
-                PersistentEntityRef<AccountCommand> sourceAccountRef = persistentEntityRegistry
-                        .refFor(AccountEntity.class, request.sourceAccount);
-
-                PersistentEntityRef<AccountCommand> destAccountRef = persistentEntityRegistry
-                        .refFor(AccountEntity.class, request.destinationAccount);
+                //reject if a field the postings are routed by is missing
+                if (!ValidationUtil.isPresent(request.reference, request.sourceAccount, request.destinationAccount,
+                        request.currencyCode)) {
+                    log.info("Rejecting transfer with missing fields");
+                    return answered(ServiceResponse.of(Constants.RC_FORMAT_ERROR, "Missing field"));
+                }
 
-                return this.doPosting(sourceAccountRef, destAccountRef,
-                        new PostingRequest(request.reference, request.sourceAccount, request.destinationAccount,
-                                "Transfer", request.currencyCode, request.amount));
+                return admitted(Arrays.asList(request.sourceAccount, request.destinationAccount), ServiceResponse::of, () -> {
+                    PostingExecution.Trace trace = postingExecution.trace();
+
+                    // Record the transfer, then drive it to its end, each posting is recorded as it is made.
+                    return trace.finish(transferSaga.start(request, "Transfer")
+                            .thenComposeAsync(transfer -> transferSaga.drive(transfer.transferId, trace), trace)
+                            .thenApply(BookentryServiceImpl::toServiceResponse)
+                            .exceptionally(throwable -> {
+                                //the reference was already used for a transfer with other details
+                                if (throwable.getCause() instanceof BadRequest) {
+                                    log.info("Rejecting transfer : {}", throwable.getCause().getMessage());
+                                    return ServiceResponse.of(Constants.RC_DO_NOT_HONOUR, throwable.getCause().getMessage());
+                                }
+                                log.error("An error occurred performing transfer postings : {}", throwable.getMessage());
+                                //the transfer is resumed from its last recorded step by the TransferSaga
+                                return ServiceResponse.of(Constants.RC_GENERAL_ERROR, "Posting error");
+                            }));
+                });
             } catch (Exception e) {
                 log.error("Exception occurred performing transfer : {}", e.getMessage());
                 e.printStackTrace();
 
-                return completedFuture(ServiceResponse.of(Constants.RC_GENERAL_ERROR, "General error"));
+                return answered(ServiceResponse.of(Constants.RC_GENERAL_ERROR, "General error"));
             }
-        };
+        });
+    }
+
+    private static ServiceResponse toServiceResponse(TransferState transfer) {
+        if (transfer.isFinished()) {
+            return ServiceResponse.of(transfer.responseCode, transfer.responseNarrative);
+        }
+        //a step was rejected without being recorded, the transfer is resumed later
+        return ServiceResponse.of(Constants.RC_GENERAL_ERROR, "Posting error");
     }
 
     @Override
-    public ServiceCall<ReversalDto, ServiceResponse> performReversal() {
-        return request -> {
+    public HeaderServiceCall<TransferDto, TransferStatusDto> submitTransfer() {
+        //counted by response code, or by status while the transfer is in progress
+        return (requestHeader, request) -> counted("submit-transfer", response -> response.second().responseCode != null ?
+                response.second().responseCode : response.second().status, () -> {
+            log.info("Submitting transfer : Src {} Dest {}", request.sourceAccount, request.destinationAccount);
+
+            //reject if amount is less than or equal to zero
+            if (!ValidationUtil.isAmountValid(request.amount)) {
+                throw new BadRequest("Invalid amount");
+            }
+            if (!ValidationUtil.isPresent(request.reference, request.sourceAccount, request.destinationAccount,
+                    request.currencyCode)) {
+                throw new BadRequest("Missing field");
+            }
+
+            //a rejected transfer is not recorded, it has no status
+            BiFunction<String, String, TransferStatusDto> rejection = (responseCode, narrative) -> new TransferStatusDto(
+                    TransferSaga.transferIdOf(request.sourceAccount, request.reference), request.reference,
+                    request.sourceAccount, request.destinationAccount, request.currencyCode, request.amount, null,
+                    responseCode, narrative, Instant.now().toString());
+
+            return admittedUntilReleased(Arrays.asList(request.sourceAccount, request.destinationAccount), rejection,
+                    permit -> transferSaga.start(request, "Transfer").thenApply(transfer -> {
+                        // Driven in the background, the caller polls transferStatus for the outcome.
+                        PostingExecution.Trace trace = postingExecution.trace();
+                        trace.finish(transferSaga.drive(transfer.transferId, trace)).whenComplete((state, throwable) -> {
+                            permit.release();
+                            if (throwable != null) {
+                                log.error("An error occurred performing transfer {} : {}", transfer.transferId, throwable.getMessage());
+                            }
+                        });
+                        return Pair.create(ResponseHeader.OK.withStatus(202), transfer.toDto());
+                    }).whenComplete((response, throwable) -> {
+                        if (throwable != null) {
+                            permit.release();
+                        }
+                    }));
+        });
+    }
+
+    @Override
+    public ServiceCall<NotUsed, TransferStatusDto> transferStatus(String transferId) {
+        return request -> transferSaga.get(transferId).thenApply(transfer -> {
+            if (!transfer.isStarted()) {
+                throw new NotFound("Transfer " + transferId + " not found");
+            }
+            return transfer.toDto();
+        });
+    }
+
+    @Override
+    public HeaderServiceCall<ReversalDto, ServiceResponse> performReversal() {
+        return (requestHeader, request) -> counted("reversal", response -> response.second().responseCode, () -> {
             try {
                 log.info("Performing reversal : OrgnlSrc {} OrgnlDest {}", request.orgnlSourceAccount, request.orgnlDestinationAccount);
                 log.info("Reversal Amt : {} {}", request.orgnlCurrencyCode, request.orgnlAmount);
@@ -153,55 +348,129 @@ public class BookentryServiceImpl implements BookentryService {
                 //reject if amount is less than or equal to zero
                 if (!ValidationUtil.isAmountValid(request.orgnlAmount)) {
                     log.info("Rejecting reversal with invalid amount");
-                    return completedFuture(ServiceResponse.of(Constants.RC_INVALID_AMOUNT, "Invalid amount"));
+                    return answered(ServiceResponse.of(Constants.RC_INVALID_AMOUNT, "Invalid amount"));
+                }
+
+                //reject if a field the postings are routed by is missing
+                if (!ValidationUtil.isPresent(request.orgnlReference, request.orgnlSourceAccount,
+                        request.orgnlDestinationAccount, request.orgnlCurrencyCode)) {
+                    log.info("Rejecting reversal with missing fields");
+                    return answered(ServiceResponse.of(Constants.RC_FORMAT_ERROR, "Missing field"));
                 }
 
-                // Look up the account entities for the given account numbers.
-                PersistentEntityRef<AccountCommand> sourceAccountRef = persistentEntityRegistry
-                        .refFor(AccountEntity.class, request.orgnlSourceAccount);
+                return admitted(Arrays.asList(request.orgnlSourceAccount, request.orgnlDestinationAccount),
+                        ServiceResponse::of, () -> {
+                    // Look up the account entities for the given account numbers.
+                    PersistentEntityRef<AccountCommand> sourceAccountRef = persistentEntityRegistry
+                            .refFor(AccountEntity.class, request.orgnlSourceAccount);
+
+                    PersistentEntityRef<AccountCommand> destAccountRef = persistentEntityRegistry
+                            .refFor(AccountEntity.class, request.orgnlDestinationAccount);
 
-                PersistentEntityRef<AccountCommand> destAccountRef = persistentEntityRegistry
-                        .refFor(AccountEntity.class, request.orgnlDestinationAccount);
+                    //switch source and destination accounts
+                    //more validation may be needed to validate original postings to be reversed
+                    PostingExecution.Trace trace = postingExecution.trace();
 
-                //switch source and destination accounts
-                //more validation may be needed to validate original postings to be reversed
-                return this.doPosting(sourceAccountRef, destAccountRef,
-                        new PostingRequest(request.orgnlReference, request.orgnlDestinationAccount, request.orgnlSourceAccount,
-                                "Reversal", request.orgnlCurrencyCode, request.orgnlAmount));
+                    //the type of the account debited is not known here, reversals post their legs one after the other
+                    return trace.finish(this.doPosting(sourceAccountRef, destAccountRef,
+                            new PostingRequest(request.orgnlReference, request.orgnlDestinationAccount, request.orgnlSourceAccount,
+                                    "Reversal", request.orgnlCurrencyCode, request.orgnlAmount), Optional.empty(), trace));
+                });
             } catch (Exception e) {
                 log.error("Exception occurred performing reversal : {}", e.getMessage());
                 e.printStackTrace();
 
-                return completedFuture(ServiceResponse.of(Constants.RC_GENERAL_ERROR, "General error"));
+                return answered(ServiceResponse.of(Constants.RC_GENERAL_ERROR, "General error"));
             }
-        };
+        });
+    }
+
+    @Override
+    public HeaderServiceCall<BulkTransferDto, BulkTransferResponse> performBulkTransfer() {
+        return (requestHeader, request) -> counted("bulk-transfer", response -> response.second().responseCode, () -> {
+            try {
+                log.info("Performing bulk transfer : Src {} Legs {}", request.sourceAccount,
+                        request.credits == null ? 0 : request.credits.size());
+
+                //reject if a field the postings are routed by is missing
+                if (!ValidationUtil.isPresent(request.reference, request.sourceAccount, request.currencyCode) ||
+                        request.credits == null ||
+                        !request.credits.stream().allMatch(credit ->
+                                ValidationUtil.isPresent(credit.reference, credit.destinationAccount))) {
+                    log.info("Rejecting bulk transfer with missing fields");
+                    return answered(BulkTransferResponse.of(Constants.RC_FORMAT_ERROR, "Missing field"));
+                }
+
+                //reject the whole batch if it is empty or any leg amount is invalid
+                if (request.credits.isEmpty() ||
+                        !request.credits.stream().allMatch(credit -> ValidationUtil.isAmountValid(credit.amount))) {
+                    log.info("Rejecting bulk transfer with invalid amount");
+                    return answered(BulkTransferResponse.of(Constants.RC_INVALID_AMOUNT, "Invalid amount"));
+                }
+
+                return admitted(bulkAccounts(request), BulkTransferResponse::of, () -> {
+                    // Look up the source account entity, destination entities are looked up per leg.
+                    PersistentEntityRef<AccountCommand> sourceAccountRef = persistentEntityRegistry
+                            .refFor(AccountEntity.class, request.sourceAccount);
+
+                    PostingExecution.Trace trace = postingExecution.trace();
+
+                    return trace.finish(this.doBulkPosting(sourceAccountRef, request, trace));
+                });
+            } catch (Exception e) {
+                log.error("Exception occurred performing bulk transfer : {}", e.getMessage());
+                e.printStackTrace();
+
+                return answered(BulkTransferResponse.of(Constants.RC_GENERAL_ERROR, "General error"));
+            }
+        });
     }
 
+    /**
+     * Posts the debit and credit legs, one after the other, or both at once when the type of the source
+     * account is one of bookentry.posting.concurrent-legs.
+     */
     private CompletionStage<ServiceResponse> doPosting(PersistentEntityRef<AccountCommand> sourceAccountRef,
                                                        PersistentEntityRef<AccountCommand> destAccountRef,
-                                                       PostingRequest postingRequest) {
+                                                       PostingRequest postingRequest,
+                                                       Optional<String> sourceAccountType,
+                                                       Executor executor) {
+        String mode = sourceAccountType.filter(concurrentLegTypes::contains).isPresent() ? CONCURRENT : SEQUENTIAL;
+        long start = System.nanoTime();
+        CompletionStage<ServiceResponse> posting = CONCURRENT.equals(mode) ?
+                this.doConcurrentPosting(sourceAccountRef, destAccountRef, postingRequest, executor) :
+                this.doSequentialPosting(sourceAccountRef, destAccountRef, postingRequest, executor);
+        return posting.whenComplete((response, throwable) -> metrics.recordSince(BookentryMetrics.POSTING_LEGS, mode, start));
+    }
+
+    private CompletionStage<ServiceResponse> doSequentialPosting(PersistentEntityRef<AccountCommand> sourceAccountRef,
+                                                                 PersistentEntityRef<AccountCommand> destAccountRef,
+                                                                 PostingRequest postingRequest,
+                                                                 Executor executor) {
 
         log.info("Source Acc Entity : {}", sourceAccountRef);
         log.info("Dest Acc Entity : {}", destAccountRef);
 
+        Money amount = Money.of(postingRequest.amount, postingRequest.currencyCode);
+
         //Let's make sure we do atomic postings and rollbacks here
         //We cannot use transactional in distributed messaging context, using saga to ensure atomicity
-        return sourceAccountRef.withAskTimeout(Duration.ofSeconds(5))
+        return metrics.timeAsk("AddPost", () -> sourceAccountRef.withAskTimeout(Duration.ofSeconds(5))
                 .ask(new AddPost(postingRequest.sourceAccount, postingRequest.reference, postingRequest.narrative,
-                        postingRequest.currencyCode, CreditDebitIndicator.Debit, postingRequest.amount))
+                        postingRequest.currencyCode, CreditDebitIndicator.Debit, amount, postingRequest.destinationAccount)))
                 .thenComposeAsync(sourcePostingResponse -> {
                     log.info("Source Acc Resp : {}", sourcePostingResponse);
 
                     //if debit successful, proceed with credit
                     if (Constants.RC_SUCCESS.equals(sourcePostingResponse.responseCode)) {
-                        return destAccountRef.withAskTimeout(Duration.ofSeconds(5))
+                        return metrics.timeAsk("AddPost", () -> destAccountRef.withAskTimeout(Duration.ofSeconds(5))
                                 .ask(new AddPost(postingRequest.destinationAccount, postingRequest.reference, postingRequest.narrative,
-                                        postingRequest.currencyCode, CreditDebitIndicator.Credit, postingRequest.amount));
+                                        postingRequest.currencyCode, CreditDebitIndicator.Credit, amount, postingRequest.sourceAccount)));
                     } else {
                         //return the failure
                         return completedFuture(sourcePostingResponse);
                     }
-                }).thenComposeAsync(finalPostingResponse -> {
+                }, executor).thenComposeAsync(finalPostingResponse -> {
                     log.info("Final Posting Resp : {}", finalPostingResponse);
 
                     if (Constants.RC_SUCCESS.equals(finalPostingResponse.responseCode)) {
@@ -211,63 +480,309 @@ public class BookentryServiceImpl implements BookentryService {
                         log.info("Posting was not successful, check indicator..");
                         if (CreditDebitIndicator.Credit.name().equals(finalPostingResponse.creditDebitIndicator)) {
                             log.info("Credit step failed, reverse the Debit..");
-                            return sourceAccountRef.withAskTimeout(Duration.ofSeconds(5))
+                            metrics.countCompensation(SEQUENTIAL);
+                            return metrics.timeAsk("AddPost", () -> sourceAccountRef.withAskTimeout(Duration.ofSeconds(5))
                                     .ask(new AddPost(postingRequest.sourceAccount, postingRequest.reference, "AUTO REVERSAL",
-                                            postingRequest.currencyCode, CreditDebitIndicator.Credit, postingRequest.amount))
+                                            postingRequest.currencyCode, CreditDebitIndicator.Credit, amount, postingRequest.destinationAccount)))
                                     .thenApplyAsync(autoReversalResponse -> {
                                         log.info("Auto Reversal Response : {}", autoReversalResponse);
                                         return finalPostingResponse;
-                                    });
+                                    }, executor);
                         } else {
                             log.info("No further action needed");
                             return completedFuture(finalPostingResponse);
                         }
                     }
-                }).thenApplyAsync(postingResponse -> ServiceResponse.of(postingResponse.responseCode, postingResponse.narrative))
+                }, executor).thenApplyAsync(postingResponse -> ServiceResponse.of(postingResponse.responseCode,
+                        postingResponse.narrative), executor)
                 .exceptionally(throwable -> {
                     log.error("An error occurred performing postings : {}", throwable.getMessage());
                     throwable.printStackTrace();
-                    //auto-reconciliation tool will flag and correct any potential residual issues
+                    //LedgerReconciliation will flag any potential residual issues
                     return ServiceResponse.of(Constants.RC_GENERAL_ERROR, "Posting error");
                 });
     }
 
+    /**
+     * Sends the debit and the credit at once, then undoes the leg that went through if the other did not:
+     * a rejected credit reverses the debit, a rejected or timed out debit reverses the credit. A debit
+     * that went through while the credit timed out, and legs that both timed out, are left to
+     * LedgerReconciliation as the outcome of the credit is unknown.
+     */
+    private CompletionStage<ServiceResponse> doConcurrentPosting(PersistentEntityRef<AccountCommand> sourceAccountRef,
+                                                                 PersistentEntityRef<AccountCommand> destAccountRef,
+                                                                 PostingRequest postingRequest,
+                                                                 Executor executor) {
+
+        Money amount = Money.of(postingRequest.amount, postingRequest.currencyCode);
+
+        CompletionStage<Optional<PostingResponse>> debit = outcomeOf(metrics.timeAsk("AddPost", () -> sourceAccountRef
+                .withAskTimeout(Duration.ofSeconds(5))
+                .ask(new AddPost(postingRequest.sourceAccount, postingRequest.reference, postingRequest.narrative,
+                        postingRequest.currencyCode, CreditDebitIndicator.Debit, amount, postingRequest.destinationAccount))));
+        CompletionStage<Optional<PostingResponse>> credit = outcomeOf(metrics.timeAsk("AddPost", () -> destAccountRef
+                .withAskTimeout(Duration.ofSeconds(5))
+                .ask(new AddPost(postingRequest.destinationAccount, postingRequest.reference, postingRequest.narrative,
+                        postingRequest.currencyCode, CreditDebitIndicator.Credit, amount, postingRequest.sourceAccount))));
+
+        return debit.thenCombine(credit, Pair::create).thenComposeAsync(legs -> {
+            Optional<PostingResponse> debitResponse = legs.first();
+            Optional<PostingResponse> creditResponse = legs.second();
+            log.info("Source Acc Resp : {}, Dest Acc Resp : {}", debitResponse, creditResponse);
+
+            boolean debited = debitResponse.filter(response -> Constants.RC_SUCCESS.equals(response.responseCode)).isPresent();
+            boolean credited = creditResponse.filter(response -> Constants.RC_SUCCESS.equals(response.responseCode)).isPresent();
+
+            if (debited && credited) {
+                log.info("Posting Successful");
+                return completedFuture(ServiceResponse.of(creditResponse.get().responseCode, creditResponse.get().narrative));
+            } else if (debited && creditResponse.isPresent()) {
+                log.info("Credit leg failed, reverse the Debit..");
+                metrics.countCompensation(CONCURRENT);
+                return metrics.timeAsk("AddPost", () -> sourceAccountRef.withAskTimeout(Duration.ofSeconds(5))
+                        .ask(new AddPost(postingRequest.sourceAccount, postingRequest.reference, "AUTO REVERSAL",
+                                postingRequest.currencyCode, CreditDebitIndicator.Credit, amount, postingRequest.destinationAccount)))
+                        .thenApply(autoReversalResponse -> {
+                            log.info("Auto Reversal Response : {}", autoReversalResponse);
+                            return ServiceResponse.of(creditResponse.get().responseCode, creditResponse.get().narrative);
+                        });
+            } else if (credited) {
+                log.info("Debit leg failed, reverse the Credit..");
+                metrics.countCompensation(CONCURRENT);
+                return metrics.timeAsk("AddPost", () -> destAccountRef.withAskTimeout(Duration.ofSeconds(5))
+                        .ask(new AddPost(postingRequest.destinationAccount, postingRequest.reference, "AUTO REVERSAL",
+                                postingRequest.currencyCode, CreditDebitIndicator.Debit, amount, postingRequest.sourceAccount)))
+                        .thenApply(autoReversalResponse -> {
+                            log.info("Auto Reversal Response : {}", autoReversalResponse);
+                            return debitResponse.map(response -> ServiceResponse.of(response.responseCode, response.narrative))
+                                    .orElse(ServiceResponse.of(Constants.RC_GENERAL_ERROR, "Posting error"));
+                        });
+            } else if (debitResponse.isPresent() && !debited) {
+                log.info("Debit leg failed, no further action needed");
+                return completedFuture(ServiceResponse.of(debitResponse.get().responseCode, debitResponse.get().narrative));
+            }
+            //LedgerReconciliation will flag any potential residual issues
+            return completedFuture(ServiceResponse.of(Constants.RC_GENERAL_ERROR, "Posting error"));
+        }, executor).exceptionally(throwable -> {
+            log.error("An error occurred performing postings : {}", throwable.getMessage());
+            //LedgerReconciliation will flag any potential residual issues
+            return ServiceResponse.of(Constants.RC_GENERAL_ERROR, "Posting error");
+        });
+    }
+
+    /**
+     * The response to a posting, empty if the ask failed or timed out.
+     */
+    private static CompletionStage<Optional<PostingResponse>> outcomeOf(CompletionStage<PostingResponse> posting) {
+        return posting.handle((response, throwable) -> {
+            if (throwable != null) {
+                log.error("An error occurred performing posting : {}", throwable.getMessage());
+                return Optional.empty();
+            }
+            return Optional.of(response);
+        });
+    }
+
+    private CompletionStage<BulkTransferResponse> doBulkPosting(PersistentEntityRef<AccountCommand> sourceAccountRef,
+                                                                BulkTransferDto bulkTransfer,
+                                                                Executor executor) {
+
+        //legs are rounded to the currency exponent before they are added up, so the debit matches the credits
+        int exponent = Money.exponentOf(bulkTransfer.currencyCode);
+        Money total = bulkTransfer.credits.stream()
+                .map(credit -> Money.of(credit.amount, exponent))
+                .reduce(Money.zero(exponent), Money::plus);
+
+        log.info("Bulk debit of {} {} from {}", bulkTransfer.currencyCode, total, bulkTransfer.sourceAccount);
+
+        //The source is debited once for the whole batch, the credits are then fanned out with bounded parallelism.
+        //Each credit leg is posted under "<batch reference>/<leg reference>" so legs stay distinct per account.
+        //The debit has a counterparty per leg, it is posted with an empty one.
+        return metrics.timeAsk("AddPost", () -> sourceAccountRef.withAskTimeout(Duration.ofSeconds(5))
+                .ask(new AddPost(bulkTransfer.sourceAccount, bulkTransfer.reference, "Bulk Transfer",
+                        bulkTransfer.currencyCode, CreditDebitIndicator.Debit, total, "")))
+                .thenComposeAsync(sourcePostingResponse -> {
+                    log.info("Bulk Source Acc Resp : {}", sourcePostingResponse);
+
+                    if (!Constants.RC_SUCCESS.equals(sourcePostingResponse.responseCode)) {
+                        //return the failure, no leg has been credited
+                        return completedFuture(BulkTransferResponse.of(sourcePostingResponse.responseCode,
+                                sourcePostingResponse.narrative));
+                    }
+
+                    return Source.from(bulkTransfer.credits)
+                            .mapAsync(bulkParallelism, credit -> metrics.timeAsk("AddPost", () -> persistentEntityRegistry
+                                    .refFor(AccountEntity.class, credit.destinationAccount)
+                                    .withAskTimeout(Duration.ofSeconds(5))
+                                    .ask(new AddPost(credit.destinationAccount, bulkTransfer.reference + "/" + credit.reference,
+                                            "Bulk Transfer", bulkTransfer.currencyCode, CreditDebitIndicator.Credit,
+                                            Money.of(credit.amount, exponent), bulkTransfer.sourceAccount)))
+                                    .thenApply(postingResponse -> new BulkTransferResponse.Leg(credit.reference,
+                                            credit.destinationAccount, postingResponse.responseCode, postingResponse.narrative))
+                                    .exceptionally(throwable -> {
+                                        log.error("An error occurred posting bulk leg {} : {}", credit.reference, throwable.getMessage());
+                                        //outcome unknown, leave it to LedgerReconciliation
+                                        return new BulkTransferResponse.Leg(credit.reference, credit.destinationAccount,
+                                                Constants.RC_GENERAL_ERROR, "Posting error");
+                                    }))
+                            .runWith(Sink.seq(), materializer)
+                            .thenComposeAsync(legs -> this.reverseFailedLegs(sourceAccountRef, bulkTransfer, legs, executor),
+                                    executor);
+                }, executor)
+                .exceptionally(throwable -> {
+                    log.error("An error occurred performing bulk postings : {}", throwable.getMessage());
+                    throwable.printStackTrace();
+                    //LedgerReconciliation will flag any potential residual issues
+                    return BulkTransferResponse.of(Constants.RC_GENERAL_ERROR, "Posting error");
+                });
+    }
+
+    private CompletionStage<BulkTransferResponse> reverseFailedLegs(PersistentEntityRef<AccountCommand> sourceAccountRef,
+                                                                    BulkTransferDto bulkTransfer,
+                                                                    List<BulkTransferResponse.Leg> legs,
+                                                                    Executor executor) {
+
+        //Legs that were definitely rejected are reversed on the source in one posting for the whole batch.
+        //Legs that errored have an unknown outcome and are left for reconciliation, as in doPosting.
+        Money failedTotal = Money.zero(Money.exponentOf(bulkTransfer.currencyCode));
+        List<BulkTransferResponse.Leg> failedLegs = new ArrayList<>();
+
+        for (int i = 0; i < legs.size(); i++) {
+            BulkTransferResponse.Leg leg = legs.get(i);
+            if (!Constants.RC_SUCCESS.equals(leg.responseCode)) {
+                failedLegs.add(leg);
+                if (!Constants.RC_GENERAL_ERROR.equals(leg.responseCode)) {
+                    failedTotal = failedTotal.plus(Money.of(bulkTransfer.credits.get(i).amount, failedTotal.exponent));
+                }
+            }
+        }
+
+        BulkTransferResponse bulkTransferResponse = failedLegs.isEmpty() ?
+                new BulkTransferResponse(Constants.RC_SUCCESS, "Success", TreePVector.from(legs)) :
+                new BulkTransferResponse(Constants.RC_GENERAL_ERROR, failedLegs.size() + " of " + legs.size() + " legs failed",
+                        TreePVector.from(legs));
+
+        if (failedTotal.signum() == 0) {
+            return completedFuture(bulkTransferResponse);
+        }
+
+        log.info("Bulk credit legs failed, reverse {} of the Debit..", failedTotal);
+        return metrics.timeAsk("AddPost", () -> sourceAccountRef.withAskTimeout(Duration.ofSeconds(5))
+                .ask(new AddPost(bulkTransfer.sourceAccount, bulkTransfer.reference, "AUTO REVERSAL",
+                        bulkTransfer.currencyCode, CreditDebitIndicator.Credit, failedTotal, "")))
+                .thenApplyAsync(autoReversalResponse -> {
+                    log.info("Bulk Auto Reversal Response : {}", autoReversalResponse);
+                    return bulkTransferResponse;
+                }, executor);
+    }
+
+    private static List<String> bulkAccounts(BulkTransferDto bulkTransfer) {
+        List<String> accountNumbers = new ArrayList<>();
+        accountNumbers.add(bulkTransfer.sourceAccount);
+        bulkTransfer.credits.forEach(credit -> accountNumbers.add(credit.destinationAccount));
+        return accountNumbers;
+    }
+
+    /**
+     * Makes a posting if {@link AdmissionControl} admits it on all of its accounts, otherwise answers at
+     * once with a 429 status, a Retry-After header and RC_DO_NOT_HONOUR.
+     */
+    private <T> CompletionStage<Pair<ResponseHeader, T>> admitted(Collection<String> accountNumbers,
+                                                                  BiFunction<String, String, T> rejection,
+                                                                  Supplier<CompletionStage<T>> call) {
+        return admittedUntilReleased(accountNumbers, rejection, permit -> call.get()
+                .whenComplete((response, throwable) -> permit.release())
+                .thenApply(response -> Pair.create(ResponseHeader.OK, response)));
+    }
+
+    /**
+     * Like {@link #admitted}, for a call that answers before its postings are done: the call is given the
+     * permit and releases it once they are.
+     */
+    private <T> CompletionStage<Pair<ResponseHeader, T>> admittedUntilReleased(
+            Collection<String> accountNumbers, BiFunction<String, String, T> rejection,
+            Function<AdmissionControl.Permit, CompletionStage<Pair<ResponseHeader, T>>> call) {
+        Optional<AdmissionControl.Permit> permit = admissionControl.tryAdmit(accountNumbers);
+        if (!permit.isPresent()) {
+            return completedFuture(Pair.create(admissionControl.rejectedHeader(), rejection.apply(Constants.RC_DO_NOT_HONOUR,
+                    "Account busy, retry after " + admissionControl.retryAfterSeconds() + "s")));
+        }
+        try {
+            return call.apply(permit.get());
+        } catch (RuntimeException e) {
+            permit.get().release();
+            throw e;
+        }
+    }
+
+    /**
+     * A response decided without posting, e.g. a rejected request.
+     */
+    private static <T> CompletionStage<Pair<ResponseHeader, T>> answered(T response) {
+        return completedFuture(Pair.create(ResponseHeader.OK, response));
+    }
+
+    /**
+     * Counts the response code of an operation once its response is complete.
+     */
+    private <T> CompletionStage<T> counted(String operation, Function<T, String> responseCode,
+                                           Supplier<CompletionStage<T>> call) {
+        return call.get().whenComplete((response, throwable) ->
+                metrics.countResponse(operation, response != null ? responseCode.apply(response) : Constants.RC_GENERAL_ERROR));
+    }
+
+    @Override
+    public ServiceCall<NotUsed, ReconciliationReport> reconcile() {
+        return request -> reconciliation.run();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, PSequence<ReconciliationReport.Break>> reconciliationBreaks() {
+        return request -> reconciliation.breaks();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, String> metrics() {
+        return request -> completedFuture(metrics.scrape(postingExecution));
+    }
+
     @Override
     public Topic<com.globalbank.bookentry.api.AccountEvent> accountEvents() {
         // We want to publish all the shards of the account event
         return TopicProducer.taggedStreamWithOffset(AccountEvent.TAG.allTags(), (tag, offset) ->
                 // Load the event stream for the passed in shard tag
-                persistentEntityRegistry.eventStream(tag, offset).map(eventAndOffset -> {
-                    // Now we want to convert from the persisted event to the published event.
-                    // Although these two events are currently identical, in future they may
-                    // change and need to evolve separately, by separating them now we save
-                    // a lot of potential trouble in future.
-                    com.globalbank.bookentry.api.AccountEvent eventToPublish;
-
-                    if (eventAndOffset.first() instanceof AccountEvent.AccountDetailsChanged) {
-                        AccountEvent.AccountDetailsChanged accountChanged = (AccountEvent.AccountDetailsChanged) eventAndOffset.first();
-                        eventToPublish = new com.globalbank.bookentry.api.AccountEvent.AccountDetailsChanged(
-                                accountChanged.accountNumber, accountChanged.accountName, accountChanged.accountType,
-                                    accountChanged.timestamp);
-                    } else if (eventAndOffset.first() instanceof AccountEvent.AccountAdded) {
-                        AccountEvent.AccountAdded accountAdded = (AccountEvent.AccountAdded) eventAndOffset.first();
-                        eventToPublish = new com.globalbank.bookentry.api.AccountEvent.AccountAdded(
-                                accountAdded.accountNumber, accountAdded.accountName, accountAdded.accountType,
-                                    accountAdded.currencyCode, accountAdded.timestamp);
-                    } else if (eventAndOffset.first() instanceof AccountEvent.PostAdded) {
-                            AccountEvent.PostAdded postAdded = (AccountEvent.PostAdded) eventAndOffset.first();
-                            eventToPublish = new com.globalbank.bookentry.api.AccountEvent.PostAdded(
-                                    postAdded.accountNumber, postAdded.reference, postAdded.narrative,
-                                    postAdded.amount, postAdded.balance, postAdded.timestamp
-                            );
-                    } else {
-                        throw new IllegalArgumentException("Unknown event: " + eventAndOffset.first());
-                    }
-
-                    // We return a pair of the translated event, and its offset, so that
-                    // Lagom can track which offsets have been published.
-                    return Pair.create(eventToPublish, eventAndOffset.second());
-                })
+                persistentEntityRegistry.eventStream(tag, offset).map(eventAndOffset ->
+                        // We return a pair of the translated event, and its offset, so that
+                        // Lagom can track which offsets have been published.
+                        Pair.create(toApiEvent(eventAndOffset.first()), eventAndOffset.second())
+                )
         );
     }
+
+    /**
+     * Converts a persisted event to the published event.
+     * Although these two events are currently identical, in future they may
+     * change and need to evolve separately, by separating them now we save
+     * a lot of potential trouble in future.
+     */
+    public static com.globalbank.bookentry.api.AccountEvent toApiEvent(AccountEvent event) {
+        if (event instanceof AccountEvent.AccountDetailsChanged) {
+            AccountEvent.AccountDetailsChanged accountChanged = (AccountEvent.AccountDetailsChanged) event;
+            return new com.globalbank.bookentry.api.AccountEvent.AccountDetailsChanged(
+                    accountChanged.accountNumber, accountChanged.accountName, accountChanged.accountType,
+                    accountChanged.timestamp);
+        } else if (event instanceof AccountEvent.AccountAdded) {
+            AccountEvent.AccountAdded accountAdded = (AccountEvent.AccountAdded) event;
+            return new com.globalbank.bookentry.api.AccountEvent.AccountAdded(
+                    accountAdded.accountNumber, accountAdded.accountName, accountAdded.accountType,
+                    accountAdded.currencyCode, accountAdded.timestamp);
+        } else if (event instanceof AccountEvent.PostAdded) {
+            AccountEvent.PostAdded postAdded = (AccountEvent.PostAdded) event;
+            return new com.globalbank.bookentry.api.AccountEvent.PostAdded(
+                    postAdded.accountNumber, postAdded.reference, postAdded.narrative,
+                    postAdded.amount.toBigDecimal(), postAdded.balance.toBigDecimal(), postAdded.timestamp);
+        } else {
+            throw new IllegalArgumentException("Unknown event: " + event);
+        }
+    }
 }
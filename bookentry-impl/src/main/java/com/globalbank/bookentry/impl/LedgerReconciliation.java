@@ -0,0 +1,247 @@
+package com.globalbank.bookentry.impl;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.persistence.cassandra.query.javadsl.CassandraReadJournal;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.Offset;
+import akka.persistence.query.PersistenceQuery;
+import akka.persistence.query.TimeBasedUUID;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.globalbank.bookentry.api.ReconciliationReport;
+import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraSession;
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
+import scala.concurrent.duration.FiniteDuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Checks that the legs of every posting reference net to zero.
+ * <p>
+ * A run reads the PostAdded events of each tag shard of the journal in parallel, from the offset the
+ * previous run reached, and records them as legs of their reference. Bulk transfer legs, posted as
+ * "reference/leg", are grouped under the part of the reference before the first '/'. The references
+ * that got new legs are then checked, those that do not net to zero are recorded as breaks, those that
+ * do again are cleared. Events newer than the settle time are left to the next run, so postings still
+ * in flight are not flagged. Legs are keyed by the persistence id and sequence number of their event, so
+ * a leg read twice is recorded once while two identical legs of one reference are both counted. All
+ * writes are idempotent, a run that fails is simply repeated.
+ */
+@Slf4j
+@Singleton
+public class LedgerReconciliation {
+
+    static final String AUTO_REVERSAL = "AUTO REVERSAL";
+
+    private static final String SELECT_OFFSET = "SELECT last_offset FROM reconciliation_offset WHERE tag = ?";
+    private static final String INSERT_OFFSET = "INSERT INTO reconciliation_offset (tag, last_offset) VALUES (?, ?)";
+    private static final String INSERT_LEG = "INSERT INTO reconciliation_leg (group_reference, persistence_id, " +
+            "sequence_nr, account_number, reference, amount, narrative, date_created) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_LEGS = "SELECT amount, narrative FROM reconciliation_leg WHERE group_reference = ?";
+    private static final String INSERT_BREAK = "INSERT INTO reconciliation_break (group_reference, net, legs, " +
+            "auto_reversal, detected_at) VALUES (?, ?, ?, ?, ?)";
+    private static final String DELETE_BREAK = "DELETE FROM reconciliation_break WHERE group_reference = ?";
+    private static final String SELECT_BREAKS = "SELECT group_reference, net, legs, auto_reversal, detected_at " +
+            "FROM reconciliation_break";
+
+    private final CassandraSession session;
+    private final CassandraReadJournal readJournal;
+    private final Materializer materializer;
+    private final Duration settleTime;
+    private final long maxEventsPerShard;
+    private final int parallelism;
+
+    // the leg insert, prepared once the tables have been created
+    private CompletableFuture<PreparedStatement> insertLeg;
+    private CompletableFuture<ReconciliationReport> running;
+
+    @Inject
+    public LedgerReconciliation(CassandraSession session, ActorSystem system, Materializer materializer, Config config) {
+        this.session = session;
+        this.readJournal = PersistenceQuery.get(system)
+                .getReadJournalFor(CassandraReadJournal.class, CassandraReadJournal.Identifier());
+        this.materializer = materializer;
+        this.settleTime = config.getDuration("bookentry.reconciliation.settle-time");
+        this.maxEventsPerShard = config.getLong("bookentry.reconciliation.max-events-per-shard");
+        this.parallelism = config.getInt("bookentry.reconciliation.parallelism");
+
+        if (config.getBoolean("bookentry.reconciliation.scheduled")) {
+            FiniteDuration interval = FiniteDuration.create(
+                    config.getDuration("bookentry.reconciliation.interval").toMillis(), TimeUnit.MILLISECONDS);
+            system.scheduler().schedule(interval, interval, this::run, system.dispatcher());
+        }
+    }
+
+    /**
+     * Starts a run, or returns the one in progress.
+     */
+    public synchronized CompletionStage<ReconciliationReport> run() {
+        if (running == null || running.isDone()) {
+            running = reconcile().toCompletableFuture();
+            running.whenComplete((report, throwable) -> {
+                if (throwable != null) {
+                    log.error("Reconciliation run failed : {}", throwable.getMessage());
+                } else {
+                    log.info("Reconciliation run read {} postings, checked {} references, {} breaks",
+                            report.postings, report.references, report.breaks.size());
+                }
+            });
+        }
+        return running;
+    }
+
+    /**
+     * The references that did not net to zero when last checked.
+     */
+    public CompletionStage<PSequence<ReconciliationReport.Break>> breaks() {
+        return prepared().thenCompose(statement -> session.selectAll(SELECT_BREAKS))
+                .thenApply(rows -> TreePVector.from(rows.stream()
+                        .map(row -> new ReconciliationReport.Break(row.getString("group_reference"),
+                                row.getDecimal("net"), row.getInt("legs"), row.getBool("auto_reversal"),
+                                row.getTimestamp("detected_at").toInstant().toString()))
+                        .collect(Collectors.toList())));
+    }
+
+    private CompletionStage<ReconciliationReport> reconcile() {
+        Instant cutoff = Instant.now().minus(settleTime);
+        Set<String> touched = ConcurrentHashMap.newKeySet();
+        LongAdder postings = new LongAdder();
+        Map<String, Offset> reached = new ConcurrentHashMap<>();
+
+        return prepared().thenCompose(insert -> {
+            List<CompletableFuture<Done>> shards = AccountEvent.TAG.allTags().stream()
+                    .map(tag -> readShard(tag.tag(), insert, cutoff, touched, postings)
+                            .thenApply(last -> {
+                                last.ifPresent(offset -> reached.put(tag.tag(), offset));
+                                return Done.getInstance();
+                            })
+                            .toCompletableFuture())
+                    .collect(Collectors.toList());
+            return CompletableFuture.allOf(shards.toArray(new CompletableFuture[0]));
+        }).thenCompose(allRead -> Source.from(touched)
+                .mapAsyncUnordered(parallelism, this::check)
+                .runWith(Sink.seq(), materializer)
+        ).thenCompose(checked -> {
+            // offsets are stored once their references are checked, a failed run reads the same events again
+            List<CompletableFuture<Done>> offsets = reached.entrySet().stream()
+                    .map(entry -> session.executeWrite(INSERT_OFFSET, entry.getKey(),
+                            ((TimeBasedUUID) entry.getValue()).value()).toCompletableFuture())
+                    .collect(Collectors.toList());
+            return CompletableFuture.allOf(offsets.toArray(new CompletableFuture[0]))
+                    .thenApply(done -> new ReconciliationReport(postings.sum(), checked.size(), TreePVector.from(
+                            checked.stream()
+                                    .filter(Optional::isPresent)
+                                    .map(Optional::get)
+                                    .collect(Collectors.toList()))));
+        });
+    }
+
+    /**
+     * Records the legs of one tag shard from its stored offset up to the cutoff, returns the offset reached.
+     */
+    private CompletionStage<Optional<Offset>> readShard(String tag, PreparedStatement insert, Instant cutoff,
+                                                        Set<String> touched, LongAdder postings) {
+        return session.selectOne(SELECT_OFFSET, tag).thenCompose(stored -> {
+            Offset offset = stored.map(row -> Offset.timeBasedUUID(row.getUUID("last_offset"))).orElse(Offset.noOffset());
+            return readJournal.currentEventsByTag(tag, offset)
+                    .takeWhile(envelope -> !isAfter(envelope.event(), cutoff))
+                    .take(maxEventsPerShard)
+                    // mapAsync emits in order, so the last offset emitted has all legs before it recorded
+                    .mapAsync(parallelism, envelope -> recordLeg(envelope, insert, touched, postings)
+                            .thenApply(done -> envelope.offset()))
+                    .runWith(Sink.lastOption(), materializer);
+        });
+    }
+
+    private CompletionStage<Done> recordLeg(EventEnvelope envelope, PreparedStatement insert, Set<String> touched,
+                                            LongAdder postings) {
+        if (!(envelope.event() instanceof AccountEvent.PostAdded)) {
+            return CompletableFuture.completedFuture(Done.getInstance());
+        }
+        AccountEvent.PostAdded post = (AccountEvent.PostAdded) envelope.event();
+        String group = groupOf(post.reference);
+        touched.add(group);
+        postings.increment();
+        return session.executeWrite(insert.bind(group, envelope.persistenceId(), envelope.sequenceNr(),
+                post.accountNumber, post.reference, post.amount.toBigDecimal(), post.narrative,
+                Timestamp.from(Instant.parse(post.timestamp))));
+    }
+
+    /**
+     * Nets the legs of a reference, records a break if they do not net to zero and clears it if they do.
+     */
+    private CompletionStage<Optional<ReconciliationReport.Break>> check(String group) {
+        return session.selectAll(SELECT_LEGS, group).thenCompose(rows -> {
+            BigDecimal net = BigDecimal.ZERO;
+            boolean autoReversal = false;
+            for (Row row : rows) {
+                net = net.add(row.getDecimal("amount"));
+                autoReversal |= AUTO_REVERSAL.equals(row.getString("narrative"));
+            }
+            if (net.signum() == 0) {
+                return session.executeWrite(DELETE_BREAK, group)
+                        .thenApply(done -> Optional.<ReconciliationReport.Break>empty());
+            }
+
+            Instant detectedAt = Instant.now();
+            log.warn("Reconciliation break on {} : {} legs net to {}{}", group, rows.size(), net,
+                    autoReversal ? ", with an AUTO REVERSAL leg" : "");
+            ReconciliationReport.Break reconciliationBreak = new ReconciliationReport.Break(group, net, rows.size(),
+                    autoReversal, detectedAt.toString());
+            return session.executeWrite(INSERT_BREAK, group, net, rows.size(), autoReversal, Timestamp.from(detectedAt))
+                    .thenApply(done -> Optional.of(reconciliationBreak));
+        });
+    }
+
+    static String groupOf(String reference) {
+        int separator = reference.indexOf('/');
+        return separator < 0 ? reference : reference.substring(0, separator);
+    }
+
+    private static boolean isAfter(Object event, Instant cutoff) {
+        return event instanceof AccountEvent.PostAdded &&
+                Instant.parse(((AccountEvent.PostAdded) event).timestamp).isAfter(cutoff);
+    }
+
+    private synchronized CompletionStage<PreparedStatement> prepared() {
+        if (insertLeg == null || insertLeg.isCompletedExceptionally()) {
+            insertLeg = createTables().thenCompose(done -> session.prepare(INSERT_LEG)).toCompletableFuture();
+        }
+        return insertLeg;
+    }
+
+    private CompletionStage<Done> createTables() {
+        return session.executeCreateTable(
+                "CREATE TABLE IF NOT EXISTS reconciliation_offset (tag text PRIMARY KEY, last_offset timeuuid)"
+        ).thenCompose(done1 -> session.executeCreateTable(
+                "CREATE TABLE IF NOT EXISTS reconciliation_leg (group_reference text, persistence_id text, " +
+                        "sequence_nr bigint, account_number text, reference text, amount decimal, narrative text, " +
+                        "date_created timestamp, PRIMARY KEY (group_reference, persistence_id, sequence_nr))"
+        )).thenCompose(done2 -> session.executeCreateTable(
+                "CREATE TABLE IF NOT EXISTS reconciliation_break (group_reference text PRIMARY KEY, net decimal, " +
+                        "legs int, auto_reversal boolean, detected_at timestamp)"
+        ));
+    }
+}
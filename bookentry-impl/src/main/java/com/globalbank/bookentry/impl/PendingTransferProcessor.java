@@ -0,0 +1,79 @@
+package com.globalbank.bookentry.impl;
+
+import akka.Done;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.ReadSideProcessor;
+import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraReadSide;
+import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraSession;
+import org.pcollections.PSequence;
+
+import javax.inject.Inject;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Keeps the transfers that are not finished in pending_transfer, from which the {@link TransferSaga}
+ * resumes those that were interrupted.
+ */
+public class PendingTransferProcessor extends ReadSideProcessor<TransferEvent> {
+
+    static final String SELECT_PENDING = "SELECT transfer_id, date_started FROM pending_transfer";
+
+    private final CassandraReadSide readSide;
+    private final CassandraSession session;
+
+    private PreparedStatement insertPending;
+    private PreparedStatement deletePending;
+
+    @Inject
+    public PendingTransferProcessor(CassandraReadSide readSide, CassandraSession session) {
+        this.readSide = readSide;
+        this.session = session;
+    }
+
+    @Override
+    public ReadSideHandler<TransferEvent> buildHandler() {
+        return readSide.<TransferEvent>builder("pending-transfer-offset")
+                .setGlobalPrepare(this::createTable)
+                .setPrepare(tag -> prepareStatements())
+                .setEventHandler(TransferEvent.TransferStarted.class, evt -> pending(evt.transferId, evt.timestamp))
+                .setEventHandler(TransferEvent.TransferFailed.class, evt -> finished(evt.transferId))
+                .setEventHandler(TransferEvent.CreditPosted.class, evt -> finished(evt.transferId))
+                .setEventHandler(TransferEvent.DebitReversed.class, evt -> finished(evt.transferId))
+                .build();
+    }
+
+    @Override
+    public PSequence<AggregateEventTag<TransferEvent>> aggregateTags() {
+        return TransferEvent.TAG.allTags();
+    }
+
+    private CompletionStage<Done> createTable() {
+        return session.executeCreateTable(
+                "CREATE TABLE IF NOT EXISTS pending_transfer (transfer_id text PRIMARY KEY, date_started timestamp)");
+    }
+
+    private CompletionStage<Done> prepareStatements() {
+        return session.prepare("INSERT INTO pending_transfer (transfer_id, date_started) VALUES (?, ?)")
+                .thenCompose(insert -> {
+                    this.insertPending = insert;
+                    return session.prepare("DELETE FROM pending_transfer WHERE transfer_id = ?");
+                })
+                .thenApply(delete -> {
+                    this.deletePending = delete;
+                    return Done.getInstance();
+                });
+    }
+
+    private CompletionStage<List<BoundStatement>> pending(String transferId, String timestamp) {
+        return CassandraReadSide.completedStatement(insertPending.bind(transferId, Timestamp.from(Instant.parse(timestamp))));
+    }
+
+    private CompletionStage<List<BoundStatement>> finished(String transferId) {
+        return CassandraReadSide.completedStatement(deletePending.bind(transferId));
+    }
+}
@@ -0,0 +1,128 @@
+package com.globalbank.bookentry.impl;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The execution model of the posting pipelines, set with bookentry.posting.execution:
+ * <ul>
+ * <li>dispatcher - continuations run on the dedicated bookentry.posting-dispatcher</li>
+ * <li>same-thread - continuations run on the thread that completed the previous stage, this is safe
+ * as they only build commands and send asks, they never block</li>
+ * <li>common-pool - continuations run on the common ForkJoinPool, as the default async methods do</li>
+ * </ul>
+ * Each request gets a {@link Trace} whose executor counts the continuations, the thread hops they
+ * cause and the time they spend queued.
+ */
+@Slf4j
+@Singleton
+public class PostingExecution {
+
+    private final Executor executor;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder continuations = new LongAdder();
+    private final LongAdder threadHops = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+
+    @Inject
+    public PostingExecution(ActorSystem actorSystem, Config config) {
+        String mode = config.getString("bookentry.posting.execution");
+        switch (mode) {
+            case "dispatcher":
+                this.executor = actorSystem.dispatchers().lookup("bookentry.posting-dispatcher");
+                break;
+            case "same-thread":
+                this.executor = Runnable::run;
+                break;
+            case "common-pool":
+                this.executor = ForkJoinPool.commonPool();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown bookentry.posting.execution: " + mode);
+        }
+        log.info("Posting pipelines use the {} execution model", mode);
+    }
+
+    public Trace trace() {
+        return new Trace();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getContinuations() {
+        return continuations.sum();
+    }
+
+    public long getThreadHops() {
+        return threadHops.sum();
+    }
+
+    public long getQueueNanos() {
+        return queueNanos.sum();
+    }
+
+    /**
+     * Instruments the continuations of one request.
+     */
+    public final class Trace implements Executor {
+        private final AtomicInteger continuationCount = new AtomicInteger();
+        private final AtomicInteger threadHopCount = new AtomicInteger();
+        private final AtomicLong queueNanoCount = new AtomicLong();
+
+        private Trace() {
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            Thread submitter = Thread.currentThread();
+            long enqueued = System.nanoTime();
+            executor.execute(() -> {
+                continuationCount.incrementAndGet();
+                queueNanoCount.addAndGet(System.nanoTime() - enqueued);
+                if (Thread.currentThread() != submitter) {
+                    threadHopCount.incrementAndGet();
+                }
+                command.run();
+            });
+        }
+
+        public int getContinuations() {
+            return continuationCount.get();
+        }
+
+        public int getThreadHops() {
+            return threadHopCount.get();
+        }
+
+        public long getQueueNanos() {
+            return queueNanoCount.get();
+        }
+
+        /**
+         * Adds this request to the totals once the posting pipeline completes.
+         */
+        public <T> CompletionStage<T> finish(CompletionStage<T> stage) {
+            return stage.whenComplete((result, throwable) -> {
+                requests.increment();
+                continuations.add(continuationCount.get());
+                threadHops.add(threadHopCount.get());
+                queueNanos.add(queueNanoCount.get());
+                log.debug("Posting pipeline ran {} continuations with {} thread hops, queued {} us",
+                        continuationCount.get(), threadHopCount.get(), queueNanoCount.get() / 1000);
+            });
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.globalbank.bookentry.impl;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.globalbank.bookentry.util.Money;
+
+import java.util.Arrays;
+
+/**
+ * A bounded record of the postings most recently applied to an account, used to answer retried
+ * {@link AccountCommand.AddPost} commands without persisting them again.
+ * <p>
+ * Each posting is kept as a 64 bit fingerprint of its (reference, direction, counterparty) and its
+ * amount, so the record costs at most two {@link #CAPACITY} longs per account. A posting matching a
+ * recorded one on all four is a duplicate. One with a known counterparty matching on all but the amount
+ * reuses the reference of another posting and is a conflict.
+ * <p>
+ * Like the rest of the {@link AccountState} a record never changes, but the records of successive states
+ * share an append-only buffer: a posting added to the newest record of its buffer is written in place
+ * after it, and only every few hundred postings the newest are moved to a new buffer. Replaying a journal
+ * therefore neither copies the record nor allocates more than the record itself, and a record handed to
+ * the snapshot store still reads the postings it had, which are never overwritten.
+ */
+public final class RecentPostings {
+
+    public static final int CAPACITY = 128;
+
+    // postings a buffer takes before the newest are moved to a new one
+    private static final int BUFFER_POSTINGS = 4 * CAPACITY;
+
+    public static final RecentPostings EMPTY = new RecentPostings(new Buffer(0), 0, 0);
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    // stands for an unknown counterparty, as in postings journaled before they recorded one
+    private static final long UNKNOWN_COUNTERPARTY = 0x9e3779b97f4a7c15L;
+
+    public enum Match {
+        NONE, DUPLICATE, CONFLICT
+    }
+
+    private final Buffer buffer;
+    private final int start;
+    private final int end;
+
+    private RecentPostings(Buffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * A record of the given (fingerprint, amount) pairs, oldest first.
+     */
+    @JsonCreator
+    public static RecentPostings of(long[] entries) {
+        if (entries == null || entries.length < 2) {
+            return EMPTY;
+        }
+        int postings = Math.min(entries.length / 2, CAPACITY);
+        Buffer buffer = new Buffer(BUFFER_POSTINGS);
+        System.arraycopy(entries, entries.length / 2 * 2 - 2 * postings, buffer.entries, 0, 2 * postings);
+        buffer.written = postings;
+        return new RecentPostings(buffer, 0, postings);
+    }
+
+    /**
+     * Whether the posting of postAmount, signed by its direction, is a duplicate of a recorded posting,
+     * conflicts with one, or is new. A posting without a counterparty never conflicts. A recorded
+     * posting without a counterparty is a duplicate of any posting matching it on the rest.
+     */
+    public Match match(String reference, Money postAmount, String counterpartyAccount) {
+        long fingerprint = fingerprint(reference, postAmount, counterpartyAccount);
+        long unknownCounterparty = fingerprint(reference, postAmount, null);
+        boolean conflict = false;
+        for (int i = end - 1; i >= start; i--) {
+            long recorded = buffer.entries[2 * i];
+            if (recorded == fingerprint || recorded == unknownCounterparty) {
+                if (buffer.entries[2 * i + 1] == postAmount.minorUnits) {
+                    return Match.DUPLICATE;
+                }
+                conflict |= recorded == fingerprint && counterpartyAccount != null;
+            }
+        }
+        return conflict ? Match.CONFLICT : Match.NONE;
+    }
+
+    /**
+     * The record with a posting of postAmount, signed by its direction, added as the newest.
+     */
+    public RecentPostings add(String reference, Money postAmount, String counterpartyAccount) {
+        long fingerprint = fingerprint(reference, postAmount, counterpartyAccount);
+        if (end == buffer.written && end < buffer.capacity()) {
+            buffer.entries[2 * end] = fingerprint;
+            buffer.entries[2 * end + 1] = postAmount.minorUnits;
+            buffer.written = end + 1;
+            return new RecentPostings(buffer, Math.max(start, end + 1 - CAPACITY), end + 1);
+        }
+
+        // the buffer is full, or this is not its newest record: move the postings kept to a new one
+        int kept = Math.min(size(), CAPACITY - 1);
+        Buffer moved = new Buffer(BUFFER_POSTINGS);
+        System.arraycopy(buffer.entries, 2 * (end - kept), moved.entries, 0, 2 * kept);
+        moved.entries[2 * kept] = fingerprint;
+        moved.entries[2 * kept + 1] = postAmount.minorUnits;
+        moved.written = kept + 1;
+        return new RecentPostings(moved, 0, kept + 1);
+    }
+
+    /**
+     * The fingerprint of a posting, the direction is taken from the sign of the posted amount so the
+     * command handler and the replayed PostAdded events agree. FNV-1a over the characters, then the
+     * murmur3 finalizer, so that no bytes are encoded and nothing is allocated.
+     */
+    static long fingerprint(String reference, Money postAmount, String counterpartyAccount) {
+        long hash = hashChars(FNV_OFFSET, reference);
+        hash = (hash ^ (postAmount.signum() < 0 ? 'D' : 'C')) * FNV_PRIME;
+        hash = counterpartyAccount == null ? (hash ^ UNKNOWN_COUNTERPARTY) * FNV_PRIME :
+                hashChars((hash ^ '/') * FNV_PRIME, counterpartyAccount);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static long hashChars(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * The (fingerprint, amount) pairs of the record, oldest first.
+     */
+    @JsonValue
+    public long[] toArray() {
+        return Arrays.copyOfRange(buffer.entries, 2 * start, 2 * end);
+    }
+
+    public int size() {
+        return end - start;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof RecentPostings && Arrays.equals(toArray(), ((RecentPostings) o).toArray()));
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toArray());
+    }
+
+    @Override
+    public String toString() {
+        return "RecentPostings(" + size() + ")";
+    }
+
+    /**
+     * Postings as (fingerprint, amount) pairs, written by the entity only, up to written.
+     */
+    private static final class Buffer {
+        private final long[] entries;
+        private int written;
+
+        private Buffer(int postings) {
+            this.entries = new long[2 * postings];
+        }
+
+        private int capacity() {
+            return entries.length / 2;
+        }
+    }
+}
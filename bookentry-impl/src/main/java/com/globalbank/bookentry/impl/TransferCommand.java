@@ -0,0 +1,87 @@
+package com.globalbank.bookentry.impl;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.globalbank.bookentry.enums.TransferStatus;
+import com.google.common.base.Preconditions;
+import com.lightbend.lagom.javadsl.persistence.PersistentEntity;
+import lombok.Value;
+
+import java.math.BigDecimal;
+
+/**
+ * The commands that the {@link TransferEntity} supports, serialized as JSON.
+ */
+public interface TransferCommand {
+    /**
+     * A command to start a transfer, replied with the state of the transfer, that of the transfer
+     * already started when it is sent again.
+     */
+    @SuppressWarnings("serial")
+    @Value
+    @JsonDeserialize
+    final class StartTransfer implements TransferCommand, PersistentEntity.ReplyType<TransferState> {
+        public final String transferId;
+        public final String reference;
+        public final String sourceAccount;
+        public final String destinationAccount;
+        public final String narrative;
+        public final String currencyCode;
+        public final BigDecimal amount;
+
+        @JsonCreator
+        public StartTransfer(@JsonProperty(value = "transferId") String transferId,
+                             @JsonProperty(value = "reference") String reference,
+                             @JsonProperty(value = "sourceAccount") String sourceAccount,
+                             @JsonProperty(value = "destinationAccount") String destinationAccount,
+                             @JsonProperty(value = "narrative") String narrative,
+                             @JsonProperty(value = "currencyCode") String currencyCode,
+                             @JsonProperty(value = "amount") BigDecimal amount) {
+            this.transferId = Preconditions.checkNotNull(transferId, "transferId");
+            this.reference = Preconditions.checkNotNull(reference, "reference");
+            this.sourceAccount = Preconditions.checkNotNull(sourceAccount, "sourceAccount");
+            this.destinationAccount = Preconditions.checkNotNull(destinationAccount, "destinationAccount");
+            this.narrative = Preconditions.checkNotNull(narrative, "narrative");
+            this.currencyCode = Preconditions.checkNotNull(currencyCode, "currencyCode");
+            this.amount = Preconditions.checkNotNull(amount, "amount");
+        }
+    }
+
+    /**
+     * A command to record the response to the posting of a step, replied with the resulting state.
+     * A response to a step the transfer is no longer at, e.g. from a second driver, is ignored.
+     */
+    @SuppressWarnings("serial")
+    @Value
+    @JsonDeserialize
+    final class RecordOutcome implements TransferCommand, PersistentEntity.ReplyType<TransferState> {
+        public final TransferStatus step;
+        public final String responseCode;
+        public final String narrative;
+
+        @JsonCreator
+        public RecordOutcome(@JsonProperty(value = "step") TransferStatus step,
+                             @JsonProperty(value = "responseCode") String responseCode,
+                             @JsonProperty(value = "narrative") String narrative) {
+            this.step = Preconditions.checkNotNull(step, "step");
+            this.responseCode = Preconditions.checkNotNull(responseCode, "responseCode");
+            this.narrative = narrative;
+        }
+    }
+
+    /**
+     * A command to get the state of a transfer, its status is null if it was never started.
+     */
+    @SuppressWarnings("serial")
+    @Value
+    @JsonDeserialize
+    final class GetTransfer implements TransferCommand, PersistentEntity.ReplyType<TransferState> {
+        public final String transferId;
+
+        @JsonCreator
+        public GetTransfer(@JsonProperty(value = "transferId") String transferId) {
+            this.transferId = Preconditions.checkNotNull(transferId, "transferId");
+        }
+    }
+}
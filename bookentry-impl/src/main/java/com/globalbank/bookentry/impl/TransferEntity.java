@@ -0,0 +1,99 @@
+package com.globalbank.bookentry.impl;
+
+import com.globalbank.bookentry.enums.TransferStatus;
+import com.globalbank.bookentry.util.Constants;
+import com.lightbend.lagom.javadsl.persistence.PersistentEntity;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * An event sourced transfer saga, with the state {@link TransferState}. It records each step of a
+ * transfer as it happens, the postings themselves are made by the {@link TransferSaga}, which reads
+ * the recorded step to know what to post next. A transfer interrupted between two steps is resumed
+ * from the last step recorded.
+ */
+@Slf4j
+public class TransferEntity extends PersistentEntity<TransferCommand, TransferEvent, TransferState> {
+
+    @Override
+    public Behavior initialBehavior(Optional<TransferState> snapshotState) {
+        BehaviorBuilder b = newBehaviorBuilder(snapshotState.orElse(TransferState.EMPTY));
+
+        /*
+         * Command handler for the StartTransfer command.
+         */
+        b.setCommandHandler(TransferCommand.StartTransfer.class, (cmd, ctx) -> {
+            if (state().isStarted()) {
+                log.info("Transfer {} already started, reference {}", state().transferId, state().reference);
+                ctx.reply(state());
+                return ctx.done();
+            }
+            return ctx.thenPersist(new TransferEvent.TransferStarted(cmd.transferId, cmd.reference, cmd.sourceAccount,
+                            cmd.destinationAccount, cmd.narrative, cmd.currencyCode, cmd.amount, Instant.now().toString()),
+                    evt -> ctx.reply(state()));
+        });
+
+        /*
+         * Command handler for the RecordOutcome command.
+         */
+        b.setCommandHandler(TransferCommand.RecordOutcome.class, (cmd, ctx) -> {
+            if (cmd.step != state().status) {
+                // the step was already recorded, by this driver or another one
+                ctx.reply(state());
+                return ctx.done();
+            }
+
+            boolean success = Constants.RC_SUCCESS.equals(cmd.responseCode);
+            String timestamp = Instant.now().toString();
+            TransferEvent event;
+            switch (state().status) {
+                case Started:
+                    event = success ? new TransferEvent.DebitPosted(state().transferId, timestamp) :
+                            new TransferEvent.TransferFailed(state().transferId, cmd.responseCode, cmd.narrative, timestamp);
+                    break;
+                case Debited:
+                    event = success ?
+                            new TransferEvent.CreditPosted(state().transferId, cmd.responseCode, cmd.narrative, timestamp) :
+                            new TransferEvent.CreditRejected(state().transferId, cmd.responseCode, cmd.narrative, timestamp);
+                    break;
+                case Compensating:
+                    if (!success) {
+                        // the reversal is retried when the transfer is resumed
+                        log.warn("Reversal of transfer {} rejected : {}", state().transferId, cmd.responseCode);
+                        ctx.reply(state());
+                        return ctx.done();
+                    }
+                    event = new TransferEvent.DebitReversed(state().transferId, timestamp);
+                    break;
+                default:
+                    ctx.reply(state());
+                    return ctx.done();
+            }
+            return ctx.thenPersist(event, evt -> ctx.reply(state()));
+        });
+
+        /*
+         * Command handler for the GetTransfer command.
+         */
+        b.setReadOnlyCommandHandler(TransferCommand.GetTransfer.class, (cmd, ctx) -> ctx.reply(state()));
+
+        /*
+         * Event handlers, each moves the transfer to its next status.
+         */
+        b.setEventHandler(TransferEvent.TransferStarted.class, TransferState::started);
+        b.setEventHandler(TransferEvent.DebitPosted.class,
+                evt -> state().withStatus(TransferStatus.Debited, evt.timestamp));
+        b.setEventHandler(TransferEvent.TransferFailed.class,
+                evt -> state().withOutcome(TransferStatus.Failed, evt.responseCode, evt.narrative, evt.timestamp));
+        b.setEventHandler(TransferEvent.CreditPosted.class,
+                evt -> state().withOutcome(TransferStatus.Completed, evt.responseCode, evt.narrative, evt.timestamp));
+        b.setEventHandler(TransferEvent.CreditRejected.class,
+                evt -> state().withOutcome(TransferStatus.Compensating, evt.responseCode, evt.narrative, evt.timestamp));
+        b.setEventHandler(TransferEvent.DebitReversed.class,
+                evt -> state().withStatus(TransferStatus.Reversed, evt.timestamp));
+
+        return b.build();
+    }
+}
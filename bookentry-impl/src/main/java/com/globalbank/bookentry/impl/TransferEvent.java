@@ -0,0 +1,173 @@
+package com.globalbank.bookentry.impl;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import com.lightbend.lagom.javadsl.persistence.AggregateEvent;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventShards;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTagger;
+import lombok.Value;
+
+import java.math.BigDecimal;
+
+/**
+ * The steps of a transfer saga, persisted by the {@link TransferEntity} as JSON.
+ * <p>
+ * A transfer is Started, then Debited once the source is debited and Completed once the destination is
+ * credited. A rejected debit fails it, a rejected credit makes it Compensating until the debit is
+ * reversed on the source.
+ */
+public interface TransferEvent extends AggregateEvent<TransferEvent> {
+    /**
+     * The transfer events are tagged in 4 shards, read by the {@link PendingTransferProcessor}.
+     */
+    AggregateEventShards<TransferEvent> TAG = AggregateEventTag.sharded(TransferEvent.class, 4);
+
+    @SuppressWarnings("serial")
+    @Value
+    @JsonDeserialize
+    final class TransferStarted implements TransferEvent {
+        public final String transferId;
+        public final String reference;
+        public final String sourceAccount;
+        public final String destinationAccount;
+        public final String narrative;
+        public final String currencyCode;
+        public final BigDecimal amount;
+        public final String timestamp;
+
+        @JsonCreator
+        public TransferStarted(@JsonProperty(value = "transferId") String transferId,
+                               @JsonProperty(value = "reference") String reference,
+                               @JsonProperty(value = "sourceAccount") String sourceAccount,
+                               @JsonProperty(value = "destinationAccount") String destinationAccount,
+                               @JsonProperty(value = "narrative") String narrative,
+                               @JsonProperty(value = "currencyCode") String currencyCode,
+                               @JsonProperty(value = "amount") BigDecimal amount,
+                               @JsonProperty(value = "timestamp") String timestamp) {
+            this.transferId = Preconditions.checkNotNull(transferId, "transferId");
+            this.reference = Preconditions.checkNotNull(reference, "reference");
+            this.sourceAccount = Preconditions.checkNotNull(sourceAccount, "sourceAccount");
+            this.destinationAccount = Preconditions.checkNotNull(destinationAccount, "destinationAccount");
+            this.narrative = Preconditions.checkNotNull(narrative, "narrative");
+            this.currencyCode = Preconditions.checkNotNull(currencyCode, "currencyCode");
+            this.amount = Preconditions.checkNotNull(amount, "amount");
+            this.timestamp = Preconditions.checkNotNull(timestamp, "timestamp");
+        }
+    }
+
+    /**
+     * The source account was debited.
+     */
+    @SuppressWarnings("serial")
+    @Value
+    @JsonDeserialize
+    final class DebitPosted implements TransferEvent {
+        public final String transferId;
+        public final String timestamp;
+
+        @JsonCreator
+        public DebitPosted(@JsonProperty(value = "transferId") String transferId,
+                           @JsonProperty(value = "timestamp") String timestamp) {
+            this.transferId = Preconditions.checkNotNull(transferId, "transferId");
+            this.timestamp = Preconditions.checkNotNull(timestamp, "timestamp");
+        }
+    }
+
+    /**
+     * The debit of the source account was rejected, nothing was posted.
+     */
+    @SuppressWarnings("serial")
+    @Value
+    @JsonDeserialize
+    final class TransferFailed implements TransferEvent {
+        public final String transferId;
+        public final String responseCode;
+        public final String narrative;
+        public final String timestamp;
+
+        @JsonCreator
+        public TransferFailed(@JsonProperty(value = "transferId") String transferId,
+                              @JsonProperty(value = "responseCode") String responseCode,
+                              @JsonProperty(value = "narrative") String narrative,
+                              @JsonProperty(value = "timestamp") String timestamp) {
+            this.transferId = Preconditions.checkNotNull(transferId, "transferId");
+            this.responseCode = Preconditions.checkNotNull(responseCode, "responseCode");
+            this.narrative = narrative;
+            this.timestamp = Preconditions.checkNotNull(timestamp, "timestamp");
+        }
+    }
+
+    /**
+     * The destination account was credited, the transfer is complete.
+     */
+    @SuppressWarnings("serial")
+    @Value
+    @JsonDeserialize
+    final class CreditPosted implements TransferEvent {
+        public final String transferId;
+        public final String responseCode;
+        public final String narrative;
+        public final String timestamp;
+
+        @JsonCreator
+        public CreditPosted(@JsonProperty(value = "transferId") String transferId,
+                            @JsonProperty(value = "responseCode") String responseCode,
+                            @JsonProperty(value = "narrative") String narrative,
+                            @JsonProperty(value = "timestamp") String timestamp) {
+            this.transferId = Preconditions.checkNotNull(transferId, "transferId");
+            this.responseCode = Preconditions.checkNotNull(responseCode, "responseCode");
+            this.narrative = narrative;
+            this.timestamp = Preconditions.checkNotNull(timestamp, "timestamp");
+        }
+    }
+
+    /**
+     * The credit of the destination account was rejected, the debit is to be reversed.
+     */
+    @SuppressWarnings("serial")
+    @Value
+    @JsonDeserialize
+    final class CreditRejected implements TransferEvent {
+        public final String transferId;
+        public final String responseCode;
+        public final String narrative;
+        public final String timestamp;
+
+        @JsonCreator
+        public CreditRejected(@JsonProperty(value = "transferId") String transferId,
+                              @JsonProperty(value = "responseCode") String responseCode,
+                              @JsonProperty(value = "narrative") String narrative,
+                              @JsonProperty(value = "timestamp") String timestamp) {
+            this.transferId = Preconditions.checkNotNull(transferId, "transferId");
+            this.responseCode = Preconditions.checkNotNull(responseCode, "responseCode");
+            this.narrative = narrative;
+            this.timestamp = Preconditions.checkNotNull(timestamp, "timestamp");
+        }
+    }
+
+    /**
+     * The debit of the source account was reversed after the credit was rejected.
+     */
+    @SuppressWarnings("serial")
+    @Value
+    @JsonDeserialize
+    final class DebitReversed implements TransferEvent {
+        public final String transferId;
+        public final String timestamp;
+
+        @JsonCreator
+        public DebitReversed(@JsonProperty(value = "transferId") String transferId,
+                             @JsonProperty(value = "timestamp") String timestamp) {
+            this.transferId = Preconditions.checkNotNull(transferId, "transferId");
+            this.timestamp = Preconditions.checkNotNull(timestamp, "timestamp");
+        }
+    }
+
+    @Override
+    default AggregateEventTagger<TransferEvent> aggregateTag() {
+        return TAG;
+    }
+}
@@ -0,0 +1,353 @@
+package com.globalbank.bookentry.impl;
+
+import akka.Done;
+import akka.actor.AbstractActor;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.cluster.singleton.ClusterSingletonManager;
+import akka.cluster.singleton.ClusterSingletonManagerSettings;
+import akka.persistence.cassandra.query.javadsl.CassandraReadJournal;
+import akka.persistence.query.PersistenceQuery;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import com.globalbank.bookentry.api.TransferDto;
+import com.globalbank.bookentry.enums.CreditDebitIndicator;
+import com.globalbank.bookentry.impl.AccountCommand.AddPost;
+import com.globalbank.bookentry.util.Constants;
+import com.globalbank.bookentry.util.Money;
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
+import com.lightbend.lagom.javadsl.persistence.PersistentEntityRef;
+import com.lightbend.lagom.javadsl.persistence.PersistentEntityRegistry;
+import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraSession;
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+import scala.concurrent.duration.FiniteDuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+
+/**
+ * Drives transfers recorded by the {@link TransferEntity}: posts the step the transfer is at, records
+ * its outcome and moves on, until the transfer is finished or a posting errors.
+ * <p>
+ * The debit, the credit and the reversal of the debit are made in that order, exactly as the in-memory
+ * chain did, but each outcome is persisted before the next posting, so a transfer interrupted by an
+ * error or a restart is resumed from the step it was at. Transfers still pending resume-after their
+ * start are driven again from pending_transfer every resume-interval, by one node of the cluster at a
+ * time. Before posting the step a transfer is resumed at, the journal of the account itself is read from
+ * the time the step was recorded, and a posting found there is recorded as the outcome of the step instead
+ * of being posted again, however many postings the account took since. Driving a transfer twice at once posts nothing twice as the account answers a
+ * posting among its {@link RecentPostings} as already posted, and only the first outcome of a step is
+ * recorded.
+ * <p>
+ * A transfer is identified by its source account and reference, the same reference sent again with
+ * another destination, currency or amount is rejected.
+ */
+@Slf4j
+@Singleton
+public class TransferSaga {
+
+    // journal timestamps come from the clock of the node that persisted the posting
+    private static final Duration CLOCK_SKEW = Duration.ofMinutes(1);
+
+    private final PersistentEntityRegistry persistentEntityRegistry;
+    private final BookentryMetrics metrics;
+    private final PostingExecution postingExecution;
+    private final CassandraSession session;
+    private final CassandraReadJournal readJournal;
+    private final Materializer materializer;
+    private final Duration askTimeout;
+    private final Duration resumeAfter;
+    private final int resumeParallelism;
+    private final AtomicBoolean resuming = new AtomicBoolean();
+
+    @Inject
+    public TransferSaga(PersistentEntityRegistry persistentEntityRegistry, BookentryMetrics metrics,
+                        PostingExecution postingExecution, CassandraSession session, ActorSystem system,
+                        Materializer materializer, Config config) {
+        this.persistentEntityRegistry = persistentEntityRegistry;
+        this.metrics = metrics;
+        this.postingExecution = postingExecution;
+        this.session = session;
+        this.readJournal = PersistenceQuery.get(system)
+                .getReadJournalFor(CassandraReadJournal.class, CassandraReadJournal.Identifier());
+        this.materializer = materializer;
+        this.askTimeout = config.getDuration("bookentry.transfer.ask-timeout");
+        this.resumeAfter = config.getDuration("bookentry.transfer.resume-after");
+        this.resumeParallelism = config.getInt("bookentry.transfer.resume-parallelism");
+
+        FiniteDuration interval = FiniteDuration.create(
+                config.getDuration("bookentry.transfer.resume-interval").toMillis(), TimeUnit.MILLISECONDS);
+        system.actorOf(ClusterSingletonManager.props(Props.create(Resumer.class, () -> new Resumer(this, interval)),
+                PoisonPill.getInstance(), ClusterSingletonManagerSettings.create(system)), "transfer-resumer");
+    }
+
+    /**
+     * The id of the transfer of a reference from a source account, so a transfer sent again is found
+     * instead of started twice.
+     */
+    static String transferIdOf(String sourceAccount, String reference) {
+        return UUID.nameUUIDFromBytes((sourceAccount + "/" + reference).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Records a transfer, or returns the transfer already recorded for its reference. Fails with a
+     * BadRequest if the reference was recorded for a transfer with other details.
+     */
+    public CompletionStage<TransferState> start(TransferDto transfer, String narrative) {
+        String transferId = transferIdOf(transfer.sourceAccount, transfer.reference);
+        return metrics.timeAsk("StartTransfer", () -> transferRef(transferId)
+                .ask(new TransferCommand.StartTransfer(transferId, transfer.reference, transfer.sourceAccount,
+                        transfer.destinationAccount, narrative, transfer.currencyCode, transfer.amount)))
+                .thenApply(state -> {
+                    if (!state.isFor(transfer)) {
+                        log.info("Rejecting transfer {}, reference already used for another transfer", transferId);
+                        throw new BadRequest("Reference already used for another transfer");
+                    }
+                    return state;
+                });
+    }
+
+    public CompletionStage<TransferState> get(String transferId) {
+        return metrics.timeAsk("GetTransfer", () -> transferRef(transferId).ask(new TransferCommand.GetTransfer(transferId)));
+    }
+
+    /**
+     * Drives a transfer from the step it is at, completes with its state once it is finished or a step
+     * could not be made, and fails if a posting errors.
+     */
+    public CompletionStage<TransferState> drive(String transferId, Executor executor) {
+        return get(transferId).thenComposeAsync(state -> step(state, executor), executor);
+    }
+
+    /**
+     * Drives a transfer interrupted after its start, first recording the posting of its current step if
+     * the account journaled it already.
+     */
+    private CompletionStage<TransferState> resume(String transferId, Executor executor) {
+        return get(transferId).thenComposeAsync(state -> {
+            Optional<AddPost> post = postOf(state);
+            if (!post.isPresent()) {
+                return completedFuture(state);
+            }
+            return isJournaled(post.get(), Instant.parse(state.timestamp)).thenComposeAsync(journaled -> {
+                if (!journaled) {
+                    return step(state, executor);
+                }
+                log.info("Transfer {} {} already posted, recording it", state.transferId, state.status);
+                return record(state, Constants.RC_SUCCESS, "Success, already posted")
+                        .thenComposeAsync(next -> continueFrom(state, next, executor), executor);
+            }, executor);
+        }, executor);
+    }
+
+    private CompletionStage<TransferState> step(TransferState state, Executor executor) {
+        Optional<AddPost> post = postOf(state);
+        if (!post.isPresent()) {
+            return completedFuture(state);
+        }
+
+        return metrics.timeAsk("AddPost", () -> persistentEntityRegistry.refFor(AccountEntity.class, post.get().accountNumber)
+                .withAskTimeout(askTimeout)
+                .ask(post.get()))
+                .thenComposeAsync(postingResponse -> {
+                    log.info("Transfer {} {} Resp : {}", state.transferId, state.status, postingResponse);
+                    return record(state, postingResponse.responseCode, postingResponse.narrative);
+                }, executor)
+                .thenComposeAsync(next -> continueFrom(state, next, executor), executor);
+    }
+
+    private CompletionStage<TransferState> record(TransferState state, String responseCode, String narrative) {
+        return metrics.timeAsk("RecordOutcome", () -> transferRef(state.transferId)
+                .ask(new TransferCommand.RecordOutcome(state.status, responseCode, narrative)));
+    }
+
+    private CompletionStage<TransferState> continueFrom(TransferState state, TransferState next, Executor executor) {
+        return next.status == state.status ? completedFuture(next) : step(next, executor);
+    }
+
+    /**
+     * The posting of the step a transfer is at, none once it is finished.
+     */
+    private static Optional<AddPost> postOf(TransferState state) {
+        if (!state.isStarted() || state.isFinished()) {
+            return Optional.empty();
+        }
+
+        Money amount = Money.of(state.amount, state.currencyCode);
+        switch (state.status) {
+            case Started:
+                return Optional.of(new AddPost(state.sourceAccount, state.reference, state.narrative, state.currencyCode,
+                        CreditDebitIndicator.Debit, amount, state.destinationAccount));
+            case Debited:
+                return Optional.of(new AddPost(state.destinationAccount, state.reference, state.narrative,
+                        state.currencyCode, CreditDebitIndicator.Credit, amount, state.sourceAccount));
+            case Compensating:
+                log.info("Credit step of transfer {} failed, reverse the Debit..", state.transferId);
+                return Optional.of(new AddPost(state.sourceAccount, state.reference, LedgerReconciliation.AUTO_REVERSAL,
+                        state.currencyCode, CreditDebitIndicator.Credit, amount, state.destinationAccount));
+            default:
+                return Optional.empty();
+        }
+    }
+
+    /**
+     * Whether the account journaled the given posting since its step was recorded, read from the journal
+     * of the account from the first event it persisted since then.
+     */
+    private CompletionStage<Boolean> isJournaled(AddPost post, Instant recordedAt) {
+        BigDecimal postAmount = CreditDebitIndicator.Debit.equals(post.creditDebitIndicator) ?
+                post.amount.toBigDecimal().negate() : post.amount.toBigDecimal();
+        String persistenceId = persistenceIdOf(post.accountNumber);
+        return firstSequenceNrSince(persistenceId, recordedAt.minus(CLOCK_SKEW))
+                .thenCompose(from -> readJournal.currentEventsByPersistenceId(persistenceId, from, Long.MAX_VALUE)
+                        .map(envelope -> envelope.event())
+                        .filter(event -> event instanceof AccountEvent.PostAdded
+                                && isPostingOf((AccountEvent.PostAdded) event, post, postAmount))
+                        .runWith(Sink.headOption(), materializer))
+                .thenApply(Optional::isPresent);
+    }
+
+    private static String persistenceIdOf(String accountNumber) {
+        // as Lagom names the journal of an entity, its type name and id
+        return AccountEntity.class.getSimpleName() + "|" + accountNumber;
+    }
+
+    /**
+     * The sequence number of the first event of a journal persisted at or after the given moment, found
+     * reading one event at a time: doubling the sequence number until past the moment, then halving the
+     * range left, so a journal of n events is read at about 2 log2(n) events.
+     */
+    private CompletionStage<Long> firstSequenceNrSince(String persistenceId, Instant since) {
+        return widen(persistenceId, since, 0, 1);
+    }
+
+    // events up to below are before the moment, find an upper bound
+    private CompletionStage<Long> widen(String persistenceId, Instant since, long below, long probe) {
+        return isBefore(persistenceId, probe, since).thenCompose(before -> before ?
+                widen(persistenceId, since, probe, probe * 2) : narrow(persistenceId, since, below, probe));
+    }
+
+    // events up to below are before the moment, from above on they are not
+    private CompletionStage<Long> narrow(String persistenceId, Instant since, long below, long above) {
+        if (above - below <= 1) {
+            return completedFuture(above);
+        }
+        long middle = below + (above - below) / 2;
+        return isBefore(persistenceId, middle, since).thenCompose(before -> before ?
+                narrow(persistenceId, since, middle, above) : narrow(persistenceId, since, below, middle));
+    }
+
+    /**
+     * Whether the event of the given sequence number was persisted before the given moment, false if
+     * there is no such event yet.
+     */
+    private CompletionStage<Boolean> isBefore(String persistenceId, long sequenceNr, Instant since) {
+        return readJournal.currentEventsByPersistenceId(persistenceId, sequenceNr, sequenceNr)
+                .runWith(Sink.headOption(), materializer)
+                .thenApply(envelope -> envelope.map(found -> {
+                    String timestamp = timestampOf(found.event());
+                    // postings journaled before their timestamp was recorded are older still
+                    return timestamp == null || Instant.parse(timestamp).isBefore(since);
+                }).orElse(false));
+    }
+
+    private static String timestampOf(Object event) {
+        if (event instanceof AccountEvent.PostAdded) {
+            return ((AccountEvent.PostAdded) event).timestamp;
+        } else if (event instanceof AccountEvent.AccountAdded) {
+            return ((AccountEvent.AccountAdded) event).timestamp;
+        } else if (event instanceof AccountEvent.AccountDetailsChanged) {
+            return ((AccountEvent.AccountDetailsChanged) event).timestamp;
+        }
+        return null;
+    }
+
+    private static boolean isPostingOf(AccountEvent.PostAdded event, AddPost post, BigDecimal postAmount) {
+        return event.accountNumber.equals(post.accountNumber) && event.reference.equals(post.reference)
+                && event.narrative.equals(post.narrative) && Objects.equals(event.counterpartyAccount, post.counterpartyAccount)
+                && event.amount.toBigDecimal().compareTo(postAmount) == 0;
+    }
+
+    /**
+     * Drives again the transfers pending since before resume-after, one pass at a time, called by the
+     * {@link Resumer}.
+     */
+    private void resumePending() {
+        if (!resuming.compareAndSet(false, true)) {
+            return;
+        }
+        Instant startedBefore = Instant.now().minus(resumeAfter);
+        session.select(PendingTransferProcessor.SELECT_PENDING)
+                .filter(row -> row.getTimestamp("date_started").toInstant().isBefore(startedBefore))
+                .mapAsyncUnordered(resumeParallelism, row -> {
+                    String transferId = row.getString("transfer_id");
+                    PostingExecution.Trace trace = postingExecution.trace();
+                    return trace.finish(resume(transferId, trace))
+                            .handle((state, throwable) -> {
+                                if (throwable != null) {
+                                    log.warn("Transfer {} not resumed : {}", transferId, throwable.getMessage());
+                                } else {
+                                    log.info("Resumed transfer {}, now {}", transferId, state.status);
+                                }
+                                return Done.getInstance();
+                            });
+                })
+                .runWith(Sink.ignore(), materializer)
+                .whenComplete((done, throwable) -> {
+                    resuming.set(false);
+                    if (throwable != null) {
+                        log.error("Resuming pending transfers failed : {}", throwable.getMessage());
+                    }
+                });
+    }
+
+    private PersistentEntityRef<TransferCommand> transferRef(String transferId) {
+        return persistentEntityRegistry.refFor(TransferEntity.class, transferId);
+    }
+
+    /**
+     * Resumes pending transfers every resume-interval, a cluster singleton so that only one node drives
+     * them.
+     */
+    private static class Resumer extends AbstractActor {
+
+        private static final String TICK = "tick";
+
+        private final TransferSaga saga;
+        private final Cancellable ticks;
+
+        Resumer(TransferSaga saga, FiniteDuration interval) {
+            this.saga = saga;
+            this.ticks = getContext().getSystem().scheduler().schedule(interval, interval, getSelf(), TICK,
+                    getContext().getDispatcher(), getSelf());
+        }
+
+        @Override
+        public void postStop() {
+            ticks.cancel();
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .matchEquals(TICK, tick -> saga.resumePending())
+                    .build();
+        }
+    }
+}
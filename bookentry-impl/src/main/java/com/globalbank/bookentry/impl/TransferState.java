@@ -0,0 +1,96 @@
+package com.globalbank.bookentry.impl;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.globalbank.bookentry.api.TransferDto;
+import com.globalbank.bookentry.api.TransferStatusDto;
+import com.globalbank.bookentry.enums.TransferStatus;
+import lombok.Value;
+
+import java.math.BigDecimal;
+
+/**
+ * The state for the {@link TransferEntity} entity, snapshotted as JSON. Every field is null until
+ * the transfer is started.
+ */
+@Value
+@JsonDeserialize
+public final class TransferState {
+
+    static final TransferState EMPTY = new TransferState(null, null, null, null, null, null, null, null, null,
+            null, null);
+
+    public final String transferId;
+    public final String reference;
+    public final String sourceAccount;
+    public final String destinationAccount;
+    public final String narrative;
+    public final String currencyCode;
+    public final BigDecimal amount;
+    public final TransferStatus status;
+    public final String responseCode;
+    public final String responseNarrative;
+    public final String timestamp;
+
+    @JsonCreator
+    TransferState(@JsonProperty(value = "transferId") String transferId,
+                  @JsonProperty(value = "reference") String reference,
+                  @JsonProperty(value = "sourceAccount") String sourceAccount,
+                  @JsonProperty(value = "destinationAccount") String destinationAccount,
+                  @JsonProperty(value = "narrative") String narrative,
+                  @JsonProperty(value = "currencyCode") String currencyCode,
+                  @JsonProperty(value = "amount") BigDecimal amount,
+                  @JsonProperty(value = "status") TransferStatus status,
+                  @JsonProperty(value = "responseCode") String responseCode,
+                  @JsonProperty(value = "responseNarrative") String responseNarrative,
+                  @JsonProperty(value = "timestamp") String timestamp) {
+        this.transferId = transferId;
+        this.reference = reference;
+        this.sourceAccount = sourceAccount;
+        this.destinationAccount = destinationAccount;
+        this.narrative = narrative;
+        this.currencyCode = currencyCode;
+        this.amount = amount;
+        this.status = status;
+        this.responseCode = responseCode;
+        this.responseNarrative = responseNarrative;
+        this.timestamp = timestamp;
+    }
+
+    static TransferState started(TransferEvent.TransferStarted evt) {
+        return new TransferState(evt.transferId, evt.reference, evt.sourceAccount, evt.destinationAccount,
+                evt.narrative, evt.currencyCode, evt.amount, TransferStatus.Started, null, null, evt.timestamp);
+    }
+
+    TransferState withStatus(TransferStatus status, String timestamp) {
+        return withOutcome(status, responseCode, responseNarrative, timestamp);
+    }
+
+    TransferState withOutcome(TransferStatus status, String responseCode, String responseNarrative, String timestamp) {
+        return new TransferState(transferId, reference, sourceAccount, destinationAccount, narrative, currencyCode,
+                amount, status, responseCode, responseNarrative, timestamp);
+    }
+
+    boolean isStarted() {
+        return status != null;
+    }
+
+    /**
+     * Whether this transfer was started for the given request, and not for another one with the same reference.
+     */
+    boolean isFor(TransferDto transfer) {
+        return reference.equals(transfer.reference) && sourceAccount.equals(transfer.sourceAccount)
+                && destinationAccount.equals(transfer.destinationAccount) && currencyCode.equals(transfer.currencyCode)
+                && amount.compareTo(transfer.amount) == 0;
+    }
+
+    boolean isFinished() {
+        return status == TransferStatus.Completed || status == TransferStatus.Failed || status == TransferStatus.Reversed;
+    }
+
+    TransferStatusDto toDto() {
+        return new TransferStatusDto(transferId, reference, sourceAccount, destinationAccount, currencyCode, amount,
+                status.name(), responseCode, responseNarrative, timestamp);
+    }
+}
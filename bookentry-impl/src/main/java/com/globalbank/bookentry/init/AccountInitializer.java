@@ -1,36 +1,138 @@
 package com.globalbank.bookentry.init;
 
 import akka.Done;
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
 import com.globalbank.bookentry.enums.AccountType;
 import com.globalbank.bookentry.impl.AccountCommand;
 import com.globalbank.bookentry.util.Constants;
 import com.lightbend.lagom.javadsl.persistence.PersistentEntityRef;
 import com.lightbend.lagom.javadsl.persistence.PersistentEntityRegistry;
+import com.typesafe.config.Config;
 import lombok.extern.slf4j.Slf4j;
 import com.globalbank.bookentry.impl.AccountEntity;
+import scala.concurrent.duration.FiniteDuration;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 
 @Slf4j
 public class AccountInitializer {
 
     private final PersistentEntityRegistry persistentEntityRegistry;
+    private final ActorSystem system;
+    private final int suspenseShards;
+    private final FiniteDuration initializeRetry;
+    private final int initializeAttempts;
+    // suspense accounts this node has seen initialized, they are not asked again before posting
+    private final Set<String> initializedSuspenseAccounts = ConcurrentHashMap.newKeySet();
 
     @Inject
-    public AccountInitializer(PersistentEntityRegistry persistentEntityRegistry) {
+    public AccountInitializer(PersistentEntityRegistry persistentEntityRegistry, ActorSystem system, Config config) {
         this.persistentEntityRegistry = persistentEntityRegistry;
+        this.system = system;
+        this.suspenseShards = config.getInt("bookentry.suspense.shards");
+        this.initializeRetry = FiniteDuration.create(
+                config.getDuration("bookentry.suspense.initialize-retry").toMillis(), TimeUnit.MILLISECONDS);
+        this.initializeAttempts = config.getInt("bookentry.suspense.initialize-attempts");
         persistentEntityRegistry.register(AccountEntity.class);
+
+        //the accounts are asked once this node is up, the entities are not reachable before the cluster is formed
+        List<String> currencyCodes = config.getStringList("bookentry.suspense.initialize-currencies");
+        if (!currencyCodes.isEmpty()) {
+            Cluster.get(system).registerOnMemberUp(() -> currencyCodes.forEach(this::initializeDepositSuspenseAccounts));
+        }
+    }
+
+    public static String getDepositSuspenseAccountName(String currencyCode) {
+        return "DEPOSIT CASH SUSPENSE " + currencyCode;
+    }
+
+    /**
+     * Resolves the deposit suspense account for a currency. Deposits are spread over the configured
+     * number of suspense sub-accounts by hashing the routing key, with a single shard the legacy
+     * un-suffixed account is used.
+     */
+    public String getDepositSuspenseAccountNumber(String currencyCode, String routingKey) {
+        if (suspenseShards <= 1) {
+            return Constants.DEPOSIT_CASH_ACCOUNT_PREFIX.concat(currencyCode);
+        }
+        return suspenseShardAccountNumber(currencyCode, Math.floorMod(routingKey.hashCode(), suspenseShards));
+    }
+
+    /**
+     * All deposit suspense accounts of a currency, the legacy un-suffixed account included as it may
+     * still hold a balance from before sharding was enabled.
+     */
+    public List<String> getDepositSuspenseAccountNumbers(String currencyCode) {
+        List<String> accountNumbers = new ArrayList<>();
+        accountNumbers.add(Constants.DEPOSIT_CASH_ACCOUNT_PREFIX.concat(currencyCode));
+        if (suspenseShards > 1) {
+            for (int shard = 0; shard < suspenseShards; shard++) {
+                accountNumbers.add(suspenseShardAccountNumber(currencyCode, shard));
+            }
+        }
+        return accountNumbers;
+    }
+
+    private String suspenseShardAccountNumber(String currencyCode, int shard) {
+        int digits = String.valueOf(suspenseShards - 1).length();
+        return Constants.DEPOSIT_CASH_ACCOUNT_PREFIX + currencyCode + "-" + String.format("%0" + digits + "d", shard);
+    }
+
+    /**
+     * Initializes the suspense accounts deposits of a currency are posted to, so that the first deposits
+     * after a start do not have to. An account that fails here is retried every initialize-retry, up to
+     * initialize-attempts times, and is otherwise initialized by its first deposit.
+     */
+    private void initializeDepositSuspenseAccounts(String currencyCode) {
+        List<String> accountNumbers = suspenseShards <= 1 ?
+                getDepositSuspenseAccountNumbers(currencyCode) :
+                getDepositSuspenseAccountNumbers(currencyCode).subList(1, suspenseShards + 1);
+
+        for (String accountNumber : accountNumbers) {
+            initializeDepositSuspenseAccount(accountNumber, currencyCode, 1);
+        }
+    }
+
+    private void initializeDepositSuspenseAccount(String accountNumber, String currencyCode, int attempt) {
+        getSuspenseAccountEntityRef(accountNumber, getDepositSuspenseAccountName(currencyCode), currencyCode,
+                system.dispatcher())
+                .whenComplete((ref, throwable) -> {
+                    if (throwable == null) {
+                        return;
+                    }
+                    if (attempt < initializeAttempts) {
+                        log.info("Suspense account {} not initialized, attempt {} : {}", accountNumber, attempt,
+                                throwable.getMessage());
+                        system.scheduler().scheduleOnce(initializeRetry,
+                                () -> initializeDepositSuspenseAccount(accountNumber, currencyCode, attempt + 1),
+                                system.dispatcher());
+                    } else {
+                        log.warn("Suspense account {} not initialized : {}", accountNumber, throwable.getMessage());
+                    }
+                });
     }
 
     public CompletionStage<PersistentEntityRef<AccountCommand>> getSuspenseAccountEntityRef(
-            String accountNumber, String accountName, String currencyCode) {
+            String accountNumber, String accountName, String currencyCode, Executor executor) {
 
         PersistentEntityRef<AccountCommand> sourceAccountRef = persistentEntityRegistry
                 .refFor(AccountEntity.class, accountNumber);
 
+        //a suspense account once initialized stays so, only the first posting to it on this node needs to ask
+        if (initializedSuspenseAccounts.contains(accountNumber)) {
+            return CompletableFuture.completedFuture(sourceAccountRef);
+        }
+
         //get or initialize suspense account (avoids race conditions on init)
         return sourceAccountRef.ask(new AccountCommand.GetOrInitSuspenseAccount(accountNumber, accountName, currencyCode))
-                .thenApplyAsync(doneCompletionStage -> sourceAccountRef);
+                .thenApplyAsync(readAccountDto -> {
+                    initializedSuspenseAccounts.add(accountNumber);
+                    return sourceAccountRef;
+                }, executor);
     }
 }
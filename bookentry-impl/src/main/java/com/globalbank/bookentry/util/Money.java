@@ -0,0 +1,118 @@
+package com.globalbank.bookentry.util;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import lombok.Value;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+
+/**
+ * An immutable amount of money held as a number of minor units (e.g. pence) and the currency
+ * exponent (e.g. 2 for GBP), so that ledger arithmetic is plain long arithmetic without
+ * BigDecimal/BigInteger temporaries.
+ * <p>
+ * BigDecimal is only used at the edges, when converting to and from the public DTOs.
+ */
+@Value
+@JsonDeserialize
+public final class Money implements Comparable<Money> {
+
+    /**
+     * Amounts used to be kept at a fixed scale of 2, so no currency gets a smaller exponent than
+     * this, otherwise amounts that were valid before would get rounded.
+     */
+    public static final int DEFAULT_EXPONENT = 2;
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L
+    };
+
+    public final long minorUnits;
+    public final int exponent;
+
+    @JsonCreator
+    public Money(@JsonProperty(value = "minorUnits") long minorUnits,
+                 @JsonProperty(value = "exponent") int exponent) {
+        this.minorUnits = minorUnits;
+        this.exponent = exponent;
+    }
+
+    public static Money zero(int exponent) {
+        return new Money(0L, exponent);
+    }
+
+    public static Money of(BigDecimal amount, int exponent) {
+        return new Money(amount.setScale(exponent, BigDecimal.ROUND_HALF_UP).unscaledValue().longValueExact(), exponent);
+    }
+
+    public static Money of(BigDecimal amount, String currencyCode) {
+        return of(amount, exponentOf(currencyCode));
+    }
+
+    /**
+     * The exponent used for a currency: its ISO 4217 minor unit digits, but never less than
+     * {@link #DEFAULT_EXPONENT}. Unknown currency codes get the default.
+     */
+    public static int exponentOf(String currencyCode) {
+        try {
+            return Math.max(DEFAULT_EXPONENT, Currency.getInstance(currencyCode).getDefaultFractionDigits());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return DEFAULT_EXPONENT;
+        }
+    }
+
+    public Money plus(Money other) {
+        return new Money(Math.addExact(minorUnits, other.minorUnitsAt(exponent)), exponent);
+    }
+
+    public Money negate() {
+        return new Money(Math.negateExact(minorUnits), exponent);
+    }
+
+    public int signum() {
+        return Long.signum(minorUnits);
+    }
+
+    /**
+     * The same amount at another exponent. Scaling up is exact, scaling down rounds half up.
+     */
+    public Money withExponent(int exponent) {
+        if (exponent == this.exponent) {
+            return this;
+        } else if (exponent > this.exponent) {
+            return new Money(minorUnitsAt(exponent), exponent);
+        } else {
+            return of(toBigDecimal(), exponent);
+        }
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        if (exponent >= other.exponent) {
+            return Long.compare(minorUnits, other.minorUnitsAt(exponent));
+        } else {
+            return Long.compare(minorUnitsAt(other.exponent), other.minorUnits);
+        }
+    }
+
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(minorUnits, exponent);
+    }
+
+    @Override
+    public String toString() {
+        return toBigDecimal().toPlainString();
+    }
+
+    private long minorUnitsAt(int targetExponent) {
+        if (targetExponent == exponent) {
+            return minorUnits;
+        } else if (targetExponent > exponent && targetExponent - exponent < POWERS_OF_TEN.length) {
+            return Math.multiplyExact(minorUnits, POWERS_OF_TEN[targetExponent - exponent]);
+        } else {
+            return toBigDecimal().setScale(targetExponent, BigDecimal.ROUND_HALF_UP).unscaledValue().longValueExact();
+        }
+    }
+}
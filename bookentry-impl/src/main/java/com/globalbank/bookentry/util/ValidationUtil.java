@@ -5,6 +5,15 @@ import java.math.BigDecimal;
 public class ValidationUtil {
 
     public static boolean isAmountValid(BigDecimal amount) {
-        return BigDecimal.ZERO.compareTo(amount) <= 0;
+        return amount != null && BigDecimal.ZERO.compareTo(amount) <= 0;
+    }
+
+    public static boolean isPresent(String... values) {
+        for (String value : values) {
+            if (value == null || value.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
     }
 }
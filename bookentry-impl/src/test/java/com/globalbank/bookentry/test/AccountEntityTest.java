@@ -23,6 +23,9 @@ import com.globalbank.bookentry.impl.AccountCommand.ReadAccount;
 import com.globalbank.bookentry.impl.AccountEntity;
 import com.globalbank.bookentry.impl.AccountEvent;
 import com.globalbank.bookentry.impl.AccountState;
+import com.globalbank.bookentry.impl.RecentPostings;
+import com.globalbank.bookentry.pojo.PostingResponse;
+import com.globalbank.bookentry.util.Money;
 
 import static org.junit.Assert.*;
 
@@ -67,7 +70,7 @@ public class AccountEntityTest {
         assertEquals("Stan Bangaba", outcome1.state().accountName);
         assertEquals(AccountType.Savings.name(), outcome1.state().accountType);
         assertEquals("GBP", outcome1.state().currencyCode);
-        assertEquals(BigDecimal.ZERO.setScale(2, BigDecimal.ROUND_HALF_UP), outcome1.state().balance);
+        assertEquals(BigDecimal.ZERO.setScale(2, BigDecimal.ROUND_HALF_UP), outcome1.state().balance.toBigDecimal());
         assertNotNull(outcome1.state().timestamp);
 
         assertEquals(1, outcome1.events().size());
@@ -126,7 +129,7 @@ public class AccountEntityTest {
         assertEquals("Stanford Bangaba", outcome3.state().accountName);
         assertEquals(AccountType.Savings.name(), outcome3.state().accountType);
         assertEquals("GBP", outcome3.state().currencyCode);
-        assertEquals(BigDecimal.ZERO.setScale(2, BigDecimal.ROUND_HALF_UP), outcome3.state().balance);
+        assertEquals(BigDecimal.ZERO.setScale(2, BigDecimal.ROUND_HALF_UP), outcome3.state().balance.toBigDecimal());
         assertNotNull(outcome3.state().timestamp);
 
         assertEquals(1, outcome3.events().size());
@@ -147,7 +150,7 @@ public class AccountEntityTest {
 
         Outcome<AccountEvent, AccountState> outcome4 = driver.run(
                 new AccountCommand.AddPost("123", "ref1", "Deposit", "GBP",
-                        CreditDebitIndicator.Credit, BigDecimal.valueOf(10.00)));
+                        CreditDebitIndicator.Credit, Money.of(BigDecimal.valueOf(10.00), "GBP")));
 
         System.out.println("Add Post: Replies -> " + outcome4.getReplies().get(0));
         System.out.println("Add Post: State -> " + outcome4.state());
@@ -156,7 +159,7 @@ public class AccountEntityTest {
         assertEquals(1, outcome4.getReplies().size());
         //assertEquals(Collections.emptyList(), outcome4.issues());
 
-        assertEquals(BigDecimal.TEN.setScale(2, BigDecimal.ROUND_HALF_UP), outcome4.state().balance);
+        assertEquals(BigDecimal.TEN.setScale(2, BigDecimal.ROUND_HALF_UP), outcome4.state().balance.toBigDecimal());
 
         assertEquals(1, outcome4.events().size());
 
@@ -164,9 +167,9 @@ public class AccountEntityTest {
 
         assertEquals("123", event4.accountNumber);
         assertEquals("ref1", event4.reference);
-        assertEquals("GBP", event4.currencyCode);
-        assertEquals(BigDecimal.TEN.setScale(2, BigDecimal.ROUND_HALF_UP), event4.amount);
-        assertEquals(BigDecimal.TEN.setScale(2, BigDecimal.ROUND_HALF_UP), event4.balance);
+        assertEquals("GBP", outcome4.state().currencyCode);
+        assertEquals(BigDecimal.TEN.setScale(2, BigDecimal.ROUND_HALF_UP), event4.amount.toBigDecimal());
+        assertEquals(BigDecimal.TEN.setScale(2, BigDecimal.ROUND_HALF_UP), event4.balance.toBigDecimal());
         assertNotNull("Deposit", event4.narrative);
         assertNotNull(event4.timestamp);
 
@@ -174,7 +177,7 @@ public class AccountEntityTest {
 
         Outcome<AccountEvent, AccountState> outcome5 = driver.run(
                 new AccountCommand.AddPost("123", "ref2", "Transfer", "GBP",
-                        CreditDebitIndicator.Credit, BigDecimal.valueOf(50.00)));
+                        CreditDebitIndicator.Credit, Money.of(BigDecimal.valueOf(50.00), "GBP")));
 
         System.out.println("Add Post: Replies -> " + outcome5.getReplies().get(0));
         System.out.println("Add Post: State -> " + outcome5.state());
@@ -183,7 +186,7 @@ public class AccountEntityTest {
         assertEquals(1, outcome5.getReplies().size());
         //assertEquals(Collections.emptyList(), outcome5.issues());
 
-        assertEquals(new BigDecimal(60.00).setScale(2, BigDecimal.ROUND_HALF_UP), outcome5.state().balance);
+        assertEquals(new BigDecimal(60.00).setScale(2, BigDecimal.ROUND_HALF_UP), outcome5.state().balance.toBigDecimal());
 
         assertEquals(1, outcome5.events().size());
 
@@ -191,9 +194,9 @@ public class AccountEntityTest {
 
         assertEquals("123", event5.accountNumber);
         assertEquals("ref2", event5.reference);
-        assertEquals("GBP", event5.currencyCode);
-        assertEquals(new BigDecimal(50.00).setScale(2, BigDecimal.ROUND_HALF_UP), event5.amount);
-        assertEquals(new BigDecimal(60.00).setScale(2, BigDecimal.ROUND_HALF_UP), event5.balance);
+        assertEquals("GBP", outcome5.state().currencyCode);
+        assertEquals(new BigDecimal(50.00).setScale(2, BigDecimal.ROUND_HALF_UP), event5.amount.toBigDecimal());
+        assertEquals(new BigDecimal(60.00).setScale(2, BigDecimal.ROUND_HALF_UP), event5.balance.toBigDecimal());
         assertNotNull("Deposit", event5.narrative);
         assertNotNull(event5.timestamp);
 
@@ -201,7 +204,7 @@ public class AccountEntityTest {
 
         Outcome<AccountEvent, AccountState> outcome6 = driver.run(
                 new AccountCommand.AddPost("123", "ref3", "Transfer", "GBP",
-                        CreditDebitIndicator.Debit, BigDecimal.valueOf(10.00)));
+                        CreditDebitIndicator.Debit, Money.of(BigDecimal.valueOf(10.00), "GBP")));
 
         System.out.println("Add Post: Replies -> " + outcome6.getReplies().get(0));
         System.out.println("Add Post: State -> " + outcome6.state());
@@ -210,7 +213,7 @@ public class AccountEntityTest {
         assertEquals(1, outcome6.getReplies().size());
         //assertEquals(Collections.emptyList(), outcome6.issues());
 
-        assertEquals(new BigDecimal(50.00).setScale(2, BigDecimal.ROUND_HALF_UP), outcome6.state().balance);
+        assertEquals(new BigDecimal(50.00).setScale(2, BigDecimal.ROUND_HALF_UP), outcome6.state().balance.toBigDecimal());
 
         assertEquals(1, outcome5.events().size());
 
@@ -218,9 +221,9 @@ public class AccountEntityTest {
 
         assertEquals("123", event6.accountNumber);
         assertEquals("ref3", event6.reference);
-        assertEquals("GBP", event6.currencyCode);
-        assertEquals(BigDecimal.TEN.setScale(2, BigDecimal.ROUND_HALF_UP).negate(), event6.amount);
-        assertEquals(new BigDecimal(50.00).setScale(2, BigDecimal.ROUND_HALF_UP), event6.balance);
+        assertEquals("GBP", outcome6.state().currencyCode);
+        assertEquals(BigDecimal.TEN.setScale(2, BigDecimal.ROUND_HALF_UP).negate(), event6.amount.toBigDecimal());
+        assertEquals(new BigDecimal(50.00).setScale(2, BigDecimal.ROUND_HALF_UP), event6.balance.toBigDecimal());
         assertNotNull("Transfer", event6.narrative);
         assertNotNull(event6.timestamp);
 
@@ -228,7 +231,7 @@ public class AccountEntityTest {
 
         Outcome<AccountEvent, AccountState> outcome7 = driver.run(
                 new AccountCommand.AddPost("123", "ref3", "Transfer", "GBP",
-                        CreditDebitIndicator.Debit, BigDecimal.valueOf(50.00)));
+                        CreditDebitIndicator.Debit, Money.of(BigDecimal.valueOf(50.00), "GBP")));
 
         System.out.println("Add Post: Replies -> " + outcome7.getReplies().get(0));
         System.out.println("Add Post: State -> " + outcome7.state());
@@ -237,7 +240,7 @@ public class AccountEntityTest {
         assertEquals(1, outcome7.getReplies().size());
         //assertEquals(Collections.emptyList(), outcome7.issues());
 
-        assertEquals(new BigDecimal(0.00).setScale(2, BigDecimal.ROUND_HALF_UP), outcome7.state().balance);
+        assertEquals(new BigDecimal(0.00).setScale(2, BigDecimal.ROUND_HALF_UP), outcome7.state().balance.toBigDecimal());
 
         assertEquals(1, outcome7.events().size());
 
@@ -245,12 +248,79 @@ public class AccountEntityTest {
 
         assertEquals("123", event7.accountNumber);
         assertEquals("ref3", event7.reference);
-        assertEquals("GBP", event7.currencyCode);
-        assertEquals(new BigDecimal(50.00).setScale(2, BigDecimal.ROUND_HALF_UP).negate(), event7.amount);
-        assertEquals(BigDecimal.ZERO.setScale(2, BigDecimal.ROUND_HALF_UP), event7.balance);
+        assertEquals("GBP", outcome7.state().currencyCode);
+        assertEquals(new BigDecimal(50.00).setScale(2, BigDecimal.ROUND_HALF_UP).negate(), event7.amount.toBigDecimal());
+        assertEquals(BigDecimal.ZERO.setScale(2, BigDecimal.ROUND_HALF_UP), event7.balance.toBigDecimal());
         assertNotNull("Transfer", event7.narrative);
         assertNotNull(event7.timestamp);
 
+        log.info("OUTCOME 8 : Should answer a retried CREDIT POST without persisting it again");
+
+        Outcome<AccountEvent, AccountState> outcome8 = driver.run(
+                new AccountCommand.AddPost("123", "ref2", "Transfer", "GBP",
+                        CreditDebitIndicator.Credit, Money.of(BigDecimal.valueOf(50.00), "GBP")));
+
+        assertEquals(1, outcome8.getReplies().size());
+        assertEquals("00", ((PostingResponse) outcome8.getReplies().get(0)).responseCode);
+        assertEquals(0, outcome8.events().size());
+        assertEquals(BigDecimal.ZERO.setScale(2, BigDecimal.ROUND_HALF_UP), outcome8.state().balance.toBigDecimal());
+
         log.info("End AccountEntity Tests");
     }
+
+    @Test
+    public void testPostingReferenceReuse() {
+        PersistentEntityTestDriver<AccountCommand, AccountEvent, AccountState> driver = new PersistentEntityTestDriver<>(system,
+                new AccountEntity(), "456");
+        driver.run(new AddAccount("456", "Farai Bangaba", AccountType.Savings.name(), "GBP"));
+
+        Outcome<AccountEvent, AccountState> posted = driver.run(new AccountCommand.AddPost("456", "DEP1", "Cash Deposit",
+                "GBP", CreditDebitIndicator.Credit, Money.of(BigDecimal.TEN, "GBP"), "DEP-SUSP-GBP"));
+        assertEquals(1, posted.events().size());
+
+        log.info("A retry of the same posting is answered without persisting it again");
+        Outcome<AccountEvent, AccountState> retried = driver.run(new AccountCommand.AddPost("456", "DEP1", "Cash Deposit",
+                "GBP", CreditDebitIndicator.Credit, Money.of(BigDecimal.TEN, "GBP"), "DEP-SUSP-GBP"));
+        assertEquals("00", ((PostingResponse) retried.getReplies().get(0)).responseCode);
+        assertEquals(0, retried.events().size());
+
+        log.info("The same reference and counterparty with another amount is rejected");
+        Outcome<AccountEvent, AccountState> mismatched = driver.run(new AccountCommand.AddPost("456", "DEP1", "Cash Deposit",
+                "GBP", CreditDebitIndicator.Credit, Money.of(BigDecimal.valueOf(20), "GBP"), "DEP-SUSP-GBP"));
+        assertEquals("05", ((PostingResponse) mismatched.getReplies().get(0)).responseCode);
+        assertEquals(0, mismatched.events().size());
+        assertEquals(BigDecimal.TEN.setScale(2, BigDecimal.ROUND_HALF_UP), mismatched.state().balance.toBigDecimal());
+
+        log.info("The same reference from another counterparty is another posting");
+        Outcome<AccountEvent, AccountState> other = driver.run(new AccountCommand.AddPost("456", "DEP1", "Cash Deposit",
+                "GBP", CreditDebitIndicator.Credit, Money.of(BigDecimal.TEN, "GBP"), "DEP-SUSP-GBP-01"));
+        assertEquals("00", ((PostingResponse) other.getReplies().get(0)).responseCode);
+        assertEquals(1, other.events().size());
+        assertEquals(BigDecimal.valueOf(20).setScale(2, BigDecimal.ROUND_HALF_UP), other.state().balance.toBigDecimal());
+    }
+
+    @Test
+    public void testRecentPostingsKeepNewest() {
+        Money amount = new Money(1000L, 2);
+        RecentPostings recent = RecentPostings.EMPTY;
+        for (int i = 0; i < 1000; i++) {
+            recent = recent.add("ref" + i, amount, "789");
+        }
+
+        assertEquals(RecentPostings.CAPACITY, recent.size());
+        assertEquals(RecentPostings.Match.DUPLICATE, recent.match("ref999", amount, "789"));
+        assertEquals(RecentPostings.Match.DUPLICATE, recent.match("ref" + (1000 - RecentPostings.CAPACITY), amount, "789"));
+        assertEquals(RecentPostings.Match.NONE, recent.match("ref" + (999 - RecentPostings.CAPACITY), amount, "789"));
+        assertEquals(RecentPostings.Match.NONE, recent.match("ref999", amount.negate(), "789"));
+
+        // records sharing a buffer do not see the postings added to one another
+        RecentPostings first = recent.add("first", amount, "789");
+        RecentPostings second = recent.add("second", amount, "789");
+        assertEquals(RecentPostings.Match.NONE, first.match("second", amount, "789"));
+        assertEquals(RecentPostings.Match.NONE, second.match("first", amount, "789"));
+        assertEquals(RecentPostings.Match.NONE, recent.match("first", amount, "789"));
+        assertEquals(RecentPostings.Match.DUPLICATE, first.match("first", amount, "789"));
+        assertEquals(RecentPostings.Match.DUPLICATE, second.match("second", amount, "789"));
+        assertEquals(recent, RecentPostings.of(recent.toArray()));
+    }
 }
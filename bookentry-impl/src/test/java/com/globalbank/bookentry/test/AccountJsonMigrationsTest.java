@@ -0,0 +1,83 @@
+package com.globalbank.bookentry.test;
+
+import akka.actor.ActorSystem;
+import akka.serialization.SerializationExtension;
+import akka.serialization.SerializerWithStringManifest;
+import akka.testkit.javadsl.TestKit;
+import com.globalbank.bookentry.impl.AccountEvent;
+import com.globalbank.bookentry.impl.AccountState;
+import com.globalbank.bookentry.impl.RecentPostings;
+import com.globalbank.bookentry.util.Money;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Journal entries and snapshots written as version 1 JSON, with decimal amounts and balances, read back
+ * through the Lagom JSON serializer and the migrations configured in application.conf.
+ */
+public class AccountJsonMigrationsTest {
+
+    private static ActorSystem system;
+    private static SerializerWithStringManifest serializer;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("AccountJsonMigrationsTest");
+        serializer = (SerializerWithStringManifest) SerializationExtension.get(system)
+                .serializerOf(system.settings().config().getString("akka.actor.serializers.lagom-json")).get();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    // version 1 entries were written without a version in their manifest
+    private static Object fromVersion1(String json, Class<?> type) {
+        return serializer.fromBinary(json.getBytes(StandardCharsets.UTF_8), type.getName());
+    }
+
+    @Test
+    public void shouldReplayVersion1PostAdded() {
+        AccountEvent.PostAdded postAdded = (AccountEvent.PostAdded) fromVersion1("{\"accountNumber\":\"123\"," +
+                "\"reference\":\"ref1\",\"narrative\":\"Deposit\",\"currencyCode\":\"GBP\",\"amount\":-10.5," +
+                "\"balance\":1234.56,\"timestamp\":\"2019-06-01T10:15:30Z\"}", AccountEvent.PostAdded.class);
+
+        assertEquals("123", postAdded.accountNumber);
+        assertEquals("ref1", postAdded.reference);
+        assertEquals("Deposit", postAdded.narrative);
+        assertEquals(new Money(-1050L, 2), postAdded.amount);
+        assertEquals(new Money(123456L, 2), postAdded.balance);
+        assertEquals("2019-06-01T10:15:30Z", postAdded.timestamp);
+        assertNull(postAdded.counterpartyAccount);
+    }
+
+    @Test
+    public void shouldReplayVersion1AccountStateSnapshot() {
+        AccountState state = (AccountState) fromVersion1("{\"accountNumber\":\"123\",\"accountName\":\"Stan Bangaba\"," +
+                "\"accountType\":\"Savings\",\"currencyCode\":\"GBP\",\"balance\":99.99," +
+                "\"timestamp\":\"2019-06-01T10:15:30Z\"}", AccountState.class);
+
+        assertEquals("123", state.accountNumber);
+        assertEquals("GBP", state.currencyCode);
+        assertEquals(new Money(9999L, 2), state.balance);
+        assertSame(RecentPostings.EMPTY, state.recentPostings);
+    }
+
+    @Test
+    public void shouldReadVersion2PostAddedUnchanged() {
+        AccountEvent.PostAdded postAdded = (AccountEvent.PostAdded) serializer.fromBinary(("{\"accountNumber\":\"123\"," +
+                "\"reference\":\"ref1\",\"narrative\":\"Deposit\",\"amount\":{\"minorUnits\":-1050,\"exponent\":2}," +
+                "\"balance\":{\"minorUnits\":5,\"exponent\":3},\"timestamp\":\"2019-06-01T10:15:30Z\"}")
+                .getBytes(StandardCharsets.UTF_8), AccountEvent.PostAdded.class.getName() + "#2");
+
+        assertEquals(new Money(-1050L, 2), postAdded.amount);
+        assertEquals(new Money(5L, 3), postAdded.balance);
+    }
+}
@@ -0,0 +1,51 @@
+package com.globalbank.bookentry.test;
+
+import com.globalbank.bookentry.enums.AccountType;
+import com.globalbank.bookentry.enums.CreditDebitIndicator;
+import com.globalbank.bookentry.impl.AccountCommand;
+import com.globalbank.bookentry.impl.AccountEvent;
+import com.globalbank.bookentry.impl.AccountSerializer;
+import com.globalbank.bookentry.impl.AccountState;
+import com.globalbank.bookentry.util.Money;
+import org.junit.Test;
+
+import java.time.Instant;
+
+import static org.junit.Assert.*;
+
+public class AccountSerializerTest {
+
+    private final AccountSerializer serializer = new AccountSerializer();
+
+    private Object roundTrip(Object message) throws Exception {
+        return serializer.fromBinary(serializer.toBinary(message), serializer.manifest(message));
+    }
+
+    @Test
+    public void shouldRoundTripCommands() throws Exception {
+        AccountCommand.AddAccount addAccount = new AccountCommand.AddAccount("123", "Stan Bangaba",
+                AccountType.Savings.name(), "GBP");
+        AccountCommand.AddPost addPost = new AccountCommand.AddPost("123", "ref1", "Deposit", "GBP",
+                CreditDebitIndicator.Debit, new Money(-1050L, 2));
+
+        assertEquals(addAccount, roundTrip(addAccount));
+        assertEquals(addPost, roundTrip(addPost));
+        AccountCommand.AddPost addPostWithCounterparty = new AccountCommand.AddPost("123", "ref1", "Deposit", "GBP",
+                CreditDebitIndicator.Debit, new Money(-1050L, 2), "456");
+        assertEquals(addPostWithCounterparty, roundTrip(addPostWithCounterparty));
+        assertEquals(new AccountCommand.ReadAccount("123"), roundTrip(new AccountCommand.ReadAccount("123")));
+    }
+
+    @Test
+    public void shouldRoundTripEventsAndState() throws Exception {
+        AccountEvent.AccountAdded accountAdded = new AccountEvent.AccountAdded("123", "Stan Bangaba",
+                AccountType.Savings.name(), "GBP", Instant.now().toString());
+        AccountEvent.PostAdded postAdded = new AccountEvent.PostAdded("123", "ref1", "Deposit",
+                new Money(1000L, 2), new Money(Long.MAX_VALUE, 2), Instant.now().toString());
+        AccountState state = AccountState.added(accountAdded).withPost(postAdded);
+
+        assertEquals(accountAdded, roundTrip(accountAdded));
+        assertEquals(postAdded, roundTrip(postAdded));
+        assertEquals(state, roundTrip(state));
+    }
+}
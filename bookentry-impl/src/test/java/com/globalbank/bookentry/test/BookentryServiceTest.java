@@ -5,9 +5,29 @@ import com.globalbank.bookentry.api.*;
 import org.junit.Test;
 
 import com.globalbank.bookentry.enums.AccountType;
-
+import com.globalbank.bookentry.enums.CreditDebitIndicator;
+import com.globalbank.bookentry.impl.AccountCommand;
+import com.globalbank.bookentry.impl.AccountEntity;
+import com.globalbank.bookentry.impl.TransferCommand;
+import com.globalbank.bookentry.impl.TransferEntity;
+import com.globalbank.bookentry.impl.TransferState;
+import com.globalbank.bookentry.pojo.PostingResponse;
+import com.globalbank.bookentry.util.Money;
+import com.lightbend.lagom.javadsl.api.transport.TransportException;
+import com.lightbend.lagom.javadsl.persistence.PersistentEntityRegistry;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
+
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Scanner;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
 
 import static com.lightbend.lagom.javadsl.testkit.ServiceTest.defaultSetup;
 import static com.lightbend.lagom.javadsl.testkit.ServiceTest.withServer;
@@ -16,6 +36,8 @@ import static org.junit.Assert.*;
 
 public class BookentryServiceTest {
 
+    private static final String VIEW_HIT = "bookentry_account_view_reads_total{result=\"hit\"}";
+
     @Test
     public void shouldAddAccount() {
         withServer(defaultSetup().withCassandra(), server -> {
@@ -48,6 +70,58 @@ public class BookentryServiceTest {
         });
     }
 
+    @Test
+    public void shouldReadAccountEventually() {
+        withServer(defaultSetup().withCassandra(), server -> {
+            BookentryService service = server.client(BookentryService.class);
+
+            final ServiceResponse deposit = service.addAccount().invoke(
+                    new AddAccountDto("18", "Bester Bangaba", AccountType.Current.name(), "ZAR"))
+                    .thenComposeAsync(done -> service.performDeposit().invoke(
+                            new DepositDto("DEP18", "18", "ZAR", new BigDecimal(40))))
+                    .toCompletableFuture().get(5, SECONDS);
+            assertEquals("00", deposit.responseCode);
+
+            // the account answers until its state is replicated, then the view answers without asking it
+            ReadAccountDto readAccountDto = null;
+            String metrics = "";
+            for (int attempt = 0; attempt < 50 && !metrics.contains(VIEW_HIT); attempt++) {
+                Thread.sleep(100);
+                readAccountDto = service.readAccountEventually("18").invoke().toCompletableFuture().get(5, SECONDS);
+                metrics = service.metrics().invoke().toCompletableFuture().get(5, SECONDS);
+            }
+
+            assertTrue(metrics.contains(VIEW_HIT));
+            assertEquals("18", readAccountDto.accountNumber);
+            assertEquals("Bester Bangaba", readAccountDto.accountName);
+            assertEquals("ZAR", readAccountDto.currencyCode);
+            assertEquals(new BigDecimal(40).setScale(2, BigDecimal.ROUND_HALF_UP), readAccountDto.balance);
+        });
+    }
+
+    @Test
+    public void shouldReadAccountsInBatch() {
+        withServer(defaultSetup().withCassandra(), server -> {
+            BookentryService service = server.client(BookentryService.class);
+
+            final CompletionStage<Done> account1Future = service.addAccount().invoke(
+                    new AddAccountDto("16", "Ethan Bangaba", AccountType.Current.name(), "GBP"));
+            final CompletionStage<Done> account2Future = service.addAccount().invoke(
+                    new AddAccountDto("17", "Sharon Bangaba", AccountType.Savings.name(), "GBP"));
+
+            final PSequence<ReadAccountDto> accounts = account1Future
+                    .thenCombine(account2Future, (done1, done2) -> done2)
+                    .thenComposeAsync(done -> service.readAccounts().invoke(TreePVector.from(Arrays.asList("17", "16"))))
+                    .toCompletableFuture().get(5, SECONDS);
+
+            assertEquals(2, accounts.size());
+            assertEquals("17", accounts.get(0).accountNumber);
+            assertEquals(AccountType.Savings.name(), accounts.get(0).accountType);
+            assertEquals("16", accounts.get(1).accountNumber);
+            assertEquals("Ethan Bangaba", accounts.get(1).accountName);
+        });
+    }
+
     @Test
     public void shouldUpdateAccountDetails() {
         withServer(defaultSetup().withCassandra(), server -> {
@@ -85,6 +159,20 @@ public class BookentryServiceTest {
 
             assertEquals("00", serviceResponse.responseCode);
             assertTrue(serviceResponse.narrative.contains("Success"));
+            assertEquals(Optional.of("DEP-SUSP-ZWL"), serviceResponse.sourceAccount);
+        });
+    }
+
+    @Test
+    public void shouldRejectDepositWithoutReference() {
+        withServer(defaultSetup().withCassandra(), server -> {
+            BookentryService service = server.client(BookentryService.class);
+
+            final ServiceResponse serviceResponse = service.performDeposit().invoke(
+                    new DepositDto(null, "42", "ZWL", new BigDecimal(30)))
+                    .toCompletableFuture().get(5, SECONDS);
+
+            assertEquals("30", serviceResponse.responseCode);
         });
     }
 
@@ -131,6 +219,137 @@ public class BookentryServiceTest {
         });
     }
 
+    @Test
+    public void shouldSubmitTransferAndReportItsStatus() {
+        withServer(defaultSetup().withCassandra(), server -> {
+            BookentryService service = server.client(BookentryService.class);
+
+            final CompletionStage<Done> account1Future = service.addAccount().invoke(
+                    new AddAccountDto("21", "Tinashe Bangaba", AccountType.Savings.name(), "GBP"));
+
+            final CompletionStage<Done> account2Future = service.addAccount().invoke(
+                    new AddAccountDto("22", "Rudo Bangaba", AccountType.Savings.name(), "GBP"));
+
+            final TransferStatusDto accepted = account1Future
+                    .thenCombine(account2Future, (done1, done2) -> done2)
+                    .thenComposeAsync(done -> service.performDeposit().invoke(
+                            new DepositDto("DEP21", "21", "GBP", new BigDecimal(30))))
+                    .thenComposeAsync(serviceResponse -> service.submitTransfer().invoke(
+                            new TransferDto("TRF21", "21", "22", "GBP", new BigDecimal(25))))
+                    .toCompletableFuture().get(5, SECONDS);
+
+            assertNotNull(accepted.transferId);
+
+            // the transfer completes in the background
+            TransferStatusDto status = accepted;
+            for (int attempt = 0; attempt < 50 && !"Completed".equals(status.status); attempt++) {
+                Thread.sleep(100);
+                status = service.transferStatus(accepted.transferId).invoke().toCompletableFuture().get(5, SECONDS);
+            }
+
+            assertEquals("Completed", status.status);
+            assertEquals("00", status.responseCode);
+        });
+    }
+
+    @Test
+    public void shouldRejectReferenceReusedForAnotherTransfer() {
+        withServer(defaultSetup().withCassandra(), server -> {
+            BookentryService service = server.client(BookentryService.class);
+
+            final CompletionStage<Done> account1Future = service.addAccount().invoke(
+                    new AddAccountDto("27", "Ethan Bangaba", AccountType.Savings.name(), "GBP"));
+            final CompletionStage<Done> account2Future = service.addAccount().invoke(
+                    new AddAccountDto("28", "Sharon Bangaba", AccountType.Savings.name(), "GBP"));
+
+            final ServiceResponse first = account1Future
+                    .thenCombine(account2Future, (done1, done2) -> done2)
+                    .thenComposeAsync(done -> service.performDeposit().invoke(
+                            new DepositDto("DEP27", "27", "GBP", new BigDecimal(100))))
+                    .thenComposeAsync(serviceResponse -> service.performTransfer().invoke(
+                            new TransferDto("TRF27", "27", "28", "GBP", new BigDecimal(10))))
+                    .toCompletableFuture().get(10, SECONDS);
+            assertEquals("00", first.responseCode);
+
+            // the same request again is answered with the outcome of the transfer
+            final ServiceResponse retried = service.performTransfer().invoke(
+                    new TransferDto("TRF27", "27", "28", "GBP", new BigDecimal(10))).toCompletableFuture().get(5, SECONDS);
+            assertEquals("00", retried.responseCode);
+
+            final ServiceResponse otherAmount = service.performTransfer().invoke(
+                    new TransferDto("TRF27", "27", "28", "GBP", new BigDecimal(20))).toCompletableFuture().get(5, SECONDS);
+            assertEquals("05", otherAmount.responseCode);
+
+            try {
+                service.submitTransfer().invoke(new TransferDto("TRF27", "27", "4", "GBP", new BigDecimal(10)))
+                        .toCompletableFuture().get(5, SECONDS);
+                fail("A transfer to another destination was accepted under a used reference");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TransportException);
+                assertEquals(400, ((TransportException) e.getCause()).errorCode().http());
+            }
+
+            final ReadAccountDto source = service.readAccount("27").invoke().toCompletableFuture().get(5, SECONDS);
+            assertEquals(new BigDecimal(90).setScale(2, BigDecimal.ROUND_HALF_UP), source.balance);
+        });
+    }
+
+    @Test
+        // resumed once the postings below are made, by the one node of the cluster
+        // resumed once the debit below is visible by tag
+        withServer(defaultSetup().withCassandra()
+                .configureBuilder(builder -> builder
+                        .configure("bookentry.transfer.resume-after", "15s")
+                        .configure("bookentry.transfer.resume-interval", "1s")), server -> {
+            BookentryService service = server.client(BookentryService.class);
+            PersistentEntityRegistry registry = server.injector().instanceOf(PersistentEntityRegistry.class);
+
+            final CompletionStage<Done> account1Future = service.addAccount().invoke(
+                    new AddAccountDto("29", "Ethan Bangaba", AccountType.Savings.name(), "GBP"));
+            final CompletionStage<Done> account2Future = service.addAccount().invoke(
+                    new AddAccountDto("30", "Sharon Bangaba", AccountType.Savings.name(), "GBP"));
+
+            final ServiceResponse deposit = account1Future
+                    .thenCombine(account2Future, (done1, done2) -> done2)
+                    .thenComposeAsync(done -> service.performDeposit().invoke(
+                            new DepositDto("DEP29", "29", "GBP", new BigDecimal(100))))
+                    .toCompletableFuture().get(10, SECONDS);
+            assertEquals("00", deposit.responseCode);
+
+            // a transfer interrupted after its debit was posted but before the outcome was recorded
+            final TransferState started = registry.refFor(TransferEntity.class, "TRF29-ID")
+                    .ask(new TransferCommand.StartTransfer("TRF29-ID", "TRF29", "29", "30", "Transfer", "GBP",
+                            new BigDecimal(40)))
+                    .toCompletableFuture().get(5, SECONDS);
+            assertEquals("Started", started.status.name());
+            final PostingResponse debit = registry.refFor(AccountEntity.class, "29")
+                    .ask(new AccountCommand.AddPost("29", "TRF29", "Transfer", "GBP", CreditDebitIndicator.Debit,
+                            Money.of(new BigDecimal(40), "GBP"), "30"))
+                    .toCompletableFuture().get(5, SECONDS);
+            assertEquals("00", debit.responseCode);
+
+            // more postings than the account remembers, so only its journal still knows of the debit
+            for (int i = 0; i < 130; i++) {
+                registry.refFor(AccountEntity.class, "29")
+                        .ask(new AccountCommand.AddPost("29", "FILL" + i, "Fill", "GBP", CreditDebitIndicator.Credit,
+                                Money.of(BigDecimal.ONE, "GBP")))
+                        .toCompletableFuture().get(5, SECONDS);
+            }
+
+            TransferStatusDto status = null;
+            for (int attempt = 0; attempt < 60 && (status == null || !"Completed".equals(status.status)); attempt++) {
+                Thread.sleep(1000);
+                status = service.transferStatus("TRF29-ID").invoke().toCompletableFuture().get(5, SECONDS);
+            }
+
+            assertEquals("Completed", status.status);
+            final ReadAccountDto source = service.readAccount("29").invoke().toCompletableFuture().get(5, SECONDS);
+            assertEquals(new BigDecimal(190).setScale(2, BigDecimal.ROUND_HALF_UP), source.balance);
+            final ReadAccountDto destination = service.readAccount("30").invoke().toCompletableFuture().get(5, SECONDS);
+            assertEquals(new BigDecimal(40).setScale(2, BigDecimal.ROUND_HALF_UP), destination.balance);
+        });
+    }
+
     @Test
     public void shouldRejectTransferWithInvalidAmount() {
         withServer(defaultSetup().withCassandra(), server -> {
@@ -206,4 +425,215 @@ public class BookentryServiceTest {
             assertTrue(serviceResponse.narrative.contains("Success"));
         });
     }
+
+    @Test
+    public void shouldBulkTransfer() {
+        withServer(defaultSetup().withCassandra(), server -> {
+            BookentryService service = server.client(BookentryService.class);
+
+            final CompletionStage<Done> account1Future = service.addAccount().invoke(
+                    new AddAccountDto("11", "Plaxcedes Bangaba", AccountType.Current.name(), "GBP"));
+
+            final CompletionStage<Done> account2Future = service.addAccount().invoke(
+                    new AddAccountDto("12", "Devine Bangaba", AccountType.Savings.name(), "GBP"));
+
+            final CompletionStage<Done> account3Future = service.addAccount().invoke(
+                    new AddAccountDto("13", "Stan Bangaba", AccountType.Savings.name(), "GBP"));
+
+            final BulkTransferResponse bulkTransferResponse = account1Future.thenCombineAsync(account2Future, (done, done2) -> done)
+                    .thenCombineAsync(account3Future, (done, done3) -> done)
+                    .thenComposeAsync(done -> service.performDeposit().invoke(
+                            new DepositDto("DEP11", "11", "GBP", new BigDecimal(100))))
+                    .thenComposeAsync(serviceResponse1 -> {
+                        assertEquals("00", serviceResponse1.responseCode);
+                        return service.performBulkTransfer().invoke(
+                                new BulkTransferDto("BULK01", "11", "GBP", TreePVector.from(java.util.Arrays.asList(
+                                        new BulkTransferDto.Credit("L1", "12", new BigDecimal(30)),
+                                        new BulkTransferDto.Credit("L2", "13", new BigDecimal(20))))));
+                    }).toCompletableFuture().get(10, SECONDS);
+
+            assertEquals("00", bulkTransferResponse.responseCode);
+            assertEquals(2, bulkTransferResponse.legs.size());
+            assertEquals("00", bulkTransferResponse.legs.get(0).responseCode);
+            assertEquals("00", bulkTransferResponse.legs.get(1).responseCode);
+
+            final ReadAccountDto source = service.readAccount("11").invoke().toCompletableFuture().get(5, SECONDS);
+            assertEquals(new BigDecimal(50).setScale(2, BigDecimal.ROUND_HALF_UP), source.balance);
+        });
+    }
+
+    @Test
+    public void shouldReadCombinedSuspenseBalance() {
+        withServer(defaultSetup().withCassandra(), server -> {
+            BookentryService service = server.client(BookentryService.class);
+
+            final CompletionStage<Done> account1Future = service.addAccount().invoke(
+                    new AddAccountDto("14", "Ethan Bangaba", AccountType.Savings.name(), "NGN"));
+
+            final ReadAccountDto suspense = account1Future
+                    .thenComposeAsync(done -> service.performDeposit().invoke(
+                            new DepositDto("DEP14A", "14", "NGN", new BigDecimal(20))))
+                    .thenComposeAsync(serviceResponse1 -> service.performDeposit().invoke(
+                            new DepositDto("DEP14B", "14", "NGN", new BigDecimal(30))))
+                    .thenComposeAsync(serviceResponse2 -> service.readSuspenseBalance("NGN").invoke())
+                    .toCompletableFuture().get(10, SECONDS);
+
+            assertEquals("DEP-SUSP-NGN", suspense.accountNumber);
+            assertEquals(new BigDecimal(-50).setScale(2, BigDecimal.ROUND_HALF_UP), suspense.balance);
+        });
+    }
+
+    @Test
+    public void shouldReconcileBalancedTransfer() {
+        withServer(defaultSetup().withCassandra()
+                .configureBuilder(builder -> builder.configure("bookentry.reconciliation.settle-time", "0s")), server -> {
+            BookentryService service = server.client(BookentryService.class);
+
+            final CompletionStage<Done> account1Future = service.addAccount().invoke(
+                    new AddAccountDto("19", "Ethan Bangaba", AccountType.Savings.name(), "EUR"));
+            final CompletionStage<Done> account2Future = service.addAccount().invoke(
+                    new AddAccountDto("20", "Sharon Bangaba", AccountType.Savings.name(), "EUR"));
+
+            final ReconciliationReport report = account1Future
+                    .thenCombine(account2Future, (done1, done2) -> done2)
+                    .thenComposeAsync(done -> service.performDeposit().invoke(
+                            new DepositDto("DEP19", "19", "EUR", new BigDecimal(100))))
+                    .thenComposeAsync(serviceResponse1 -> service.performTransfer().invoke(
+                            new TransferDto("TRF19", "19", "20", "EUR", new BigDecimal(40))))
+                    .thenComposeAsync(serviceResponse2 -> service.reconcile().invoke())
+                    .toCompletableFuture().get(20, SECONDS);
+
+            // both the deposit and the transfer net to zero, however many of their legs the run has read yet
+            assertTrue(report.breaks.stream().noneMatch(reconciliationBreak ->
+                    reconciliationBreak.reference.equals("DEP19") || reconciliationBreak.reference.equals("TRF19")));
+        });
+    }
+
+    @Test
+    public void shouldReportDuplicatedLegAsBreak() {
+        withServer(defaultSetup().withCassandra()
+                .configureBuilder(builder -> builder.configure("bookentry.reconciliation.settle-time", "0s")), server -> {
+            BookentryService service = server.client(BookentryService.class);
+            PersistentEntityRegistry registry = server.injector().instanceOf(PersistentEntityRegistry.class);
+
+            final CompletionStage<Done> account1Future = service.addAccount().invoke(
+                    new AddAccountDto("25", "Ethan Bangaba", AccountType.Savings.name(), "EUR"));
+            final CompletionStage<Done> account2Future = service.addAccount().invoke(
+                    new AddAccountDto("26", "Sharon Bangaba", AccountType.Savings.name(), "EUR"));
+
+            final ServiceResponse transfer = account1Future
+                    .thenCombine(account2Future, (done1, done2) -> done2)
+                    .thenComposeAsync(done -> service.performDeposit().invoke(
+                            new DepositDto("DEP25", "25", "EUR", new BigDecimal(100))))
+                    .thenComposeAsync(serviceResponse1 -> service.performTransfer().invoke(
+                            new TransferDto("TRF25", "25", "26", "EUR", new BigDecimal(40))))
+                    .toCompletableFuture().get(10, SECONDS);
+            assertEquals("00", transfer.responseCode);
+
+            // a second credit leg identical to the first but for its counterparty, the entity does not take it for a retry
+            final PostingResponse duplicate = registry.refFor(AccountEntity.class, "26")
+                    .ask(new AccountCommand.AddPost("26", "TRF25", "Duplicated leg", "EUR", CreditDebitIndicator.Credit,
+                            Money.of(new BigDecimal(40), "EUR"), "99"))
+                    .toCompletableFuture().get(5, SECONDS);
+            assertEquals("00", duplicate.responseCode);
+
+            // runs read the events by tag as they become visible, until all three legs are in
+            ReconciliationReport.Break reconciliationBreak = null;
+            for (int attempt = 0; attempt < 30 && reconciliationBreak == null; attempt++) {
+                Thread.sleep(1000);
+                service.reconcile().invoke().toCompletableFuture().get(20, SECONDS);
+                reconciliationBreak = service.reconciliationBreaks().invoke().toCompletableFuture().get(5, SECONDS)
+                        .stream()
+                        .filter(candidate -> candidate.reference.equals("TRF25") && candidate.legs == 3)
+                        .findFirst().orElse(null);
+            }
+
+            assertNotNull(reconciliationBreak);
+            assertEquals(new BigDecimal(40).setScale(2, BigDecimal.ROUND_HALF_UP),
+                    reconciliationBreak.net.setScale(2, BigDecimal.ROUND_HALF_UP));
+            assertFalse(reconciliationBreak.autoReversal);
+        });
+    }
+
+    @Test
+    public void shouldDepositWithConcurrentLegs() {
+        withServer(defaultSetup().withCassandra()
+                .configureBuilder(builder -> builder.configure("bookentry.posting.concurrent-legs",
+                        Arrays.asList(AccountType.Suspense.name()))), server -> {
+            BookentryService service = server.client(BookentryService.class);
+
+            final ServiceResponse serviceResponse = service.addAccount().invoke(
+                    new AddAccountDto("23", "Farai Bangaba", AccountType.Savings.name(), "USD"))
+                    .thenComposeAsync(done -> service.performDeposit().invoke(
+                            new DepositDto("DEP23", "23", "USD", new BigDecimal(15))))
+                    .toCompletableFuture().get(10, SECONDS);
+
+            assertEquals("00", serviceResponse.responseCode);
+
+            final ReadAccountDto account = service.readAccount("23").invoke()
+                    .toCompletableFuture().get(5, SECONDS);
+            assertEquals(0, new BigDecimal(15).compareTo(account.balance));
+
+            final String metrics = service.metrics().invoke().toCompletableFuture().get(5, SECONDS);
+            assertTrue(metrics.contains("bookentry_posting_legs_seconds_count{mode=\"concurrent\"} 1"));
+        });
+    }
+
+    @Test
+    public void shouldRejectPostingAboveInFlightLimit() {
+        withServer(defaultSetup().withCassandra()
+                .configureBuilder(builder -> builder.configure("bookentry.admission.max-in-flight-per-account", 0)), server -> {
+            BookentryService service = server.client(BookentryService.class);
+
+            service.addAccount().invoke(new AddAccountDto("24", "Farai Bangaba", AccountType.Savings.name(), "USD"))
+                    .toCompletableFuture().get(5, SECONDS);
+
+            // the client of the service fails on the 429, the response is read over plain HTTP
+            assertRejectedAsBusy(server.port(), "/api/accounts/deposit",
+                    "{\"reference\":\"DEP24\",\"accountNumber\":\"24\",\"currencyCode\":\"USD\",\"amount\":15}");
+            // a submitted transfer is rejected the same way, before it is recorded
+            assertRejectedAsBusy(server.port(), "/api/transfers",
+                    "{\"reference\":\"TRF24\",\"sourceAccount\":\"24\",\"destinationAccount\":\"4\","
+                            + "\"currencyCode\":\"USD\",\"amount\":15}");
+
+            final ReadAccountDto account = service.readAccount("24").invoke()
+                    .toCompletableFuture().get(5, SECONDS);
+            assertEquals(0, BigDecimal.ZERO.compareTo(account.balance));
+            final String metrics = service.metrics().invoke().toCompletableFuture().get(5, SECONDS);
+            assertTrue(metrics.contains("bookentry_responses_total{operation=\"submit-transfer\",code=\"05\"} 1"));
+        });
+    }
+
+    private static void assertRejectedAsBusy(int port, String path, String json) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(429, connection.getResponseCode());
+        assertEquals("1", connection.getHeaderField("Retry-After"));
+        try (Scanner body = new Scanner(connection.getErrorStream(), "UTF-8").useDelimiter("\\A")) {
+            assertTrue(body.next().replace(" ", "").contains("\"responseCode\":\"05\""));
+        }
+    }
+
+    @Test
+    public void shouldExposeMetrics() {
+        withServer(defaultSetup().withCassandra(), server -> {
+            BookentryService service = server.client(BookentryService.class);
+
+            final String metrics = service.addAccount().invoke(
+                    new AddAccountDto("15", "Plaxcedes Bangaba", AccountType.Savings.name(), "GBP"))
+                    .thenComposeAsync(done -> service.performDeposit().invoke(
+                            new DepositDto("DEP15", "15", "GBP", new BigDecimal(10))))
+                    .thenComposeAsync(serviceResponse1 -> service.metrics().invoke())
+                    .toCompletableFuture().get(10, SECONDS);
+
+            assertTrue(metrics.contains("bookentry_ask_seconds_count{command=\"AddPost\"}"));
+            assertTrue(metrics.contains("bookentry_persist_seconds_count{event=\"PostAdded\"}"));
+            assertTrue(metrics.contains("bookentry_responses_total{operation=\"deposit\",code=\"00\"} 1"));
+        });
+    }
 }
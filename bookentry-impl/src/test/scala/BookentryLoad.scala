@@ -0,0 +1,135 @@
+import java.net.{HttpURLConnection, URL}
+import java.nio.charset.StandardCharsets
+import java.util.UUID
+import java.util.concurrent.ThreadLocalRandom
+
+import io.gatling.core.Predef._
+import io.gatling.core.structure.PopulationBuilder
+import io.gatling.http.Predef._
+
+import scala.concurrent.duration._
+
+/**
+  * Settings and building blocks shared by the bookentry simulations. Everything can be overridden
+  * with system properties, e.g.
+  *
+  * sbt -Dbookentry.perf.accounts=5000 -Dbookentry.perf.rate=200 -Dbookentry.perf.duration=300 "bookentry-impl/gatling:testOnly ZipfTransferSimulation"
+  */
+object BookentryLoad {
+
+  private def prop(name: String, default: String): String = sys.props.getOrElse(s"bookentry.perf.$name", default)
+
+  val baseUrl: String = prop("baseUrl", "http://localhost:9000")
+  val accounts: Int = prop("accounts", "1000").toInt
+  val users: Int = prop("users", "50").toInt
+  val rate: Double = prop("rate", "100").toDouble
+  val rampUp: FiniteDuration = prop("rampUp", "10").toInt.seconds
+  val duration: FiniteDuration = prop("duration", "60").toInt.seconds
+  val currency: String = prop("currency", "GBP")
+  val zipfExponent: Double = prop("zipfExponent", "1.1").toDouble
+  val readPercent: Double = prop("readPercent", "90").toDouble
+
+  // SLOs, a run that misses any of them fails
+  val p95Millis: Int = prop("p95", "250").toInt
+  val p99Millis: Int = prop("p99", "1000").toInt
+  val maxErrorPercent: Double = prop("maxErrorPercent", "1").toDouble
+
+  // accounts and references are prefixed per run so repeated runs against the same journal do not collide
+  val runId: String = prop("runId", System.currentTimeMillis.toString)
+
+  val httpProtocol = http
+    .baseUrl(baseUrl)
+    .acceptHeader("application/json")
+    .contentTypeHeader("application/json")
+    .shareConnections
+
+  def accountNumber(i: Int): String = s"P$runId-$i"
+
+  /**
+    * Creates the accounts and funds each of them with a large deposit, so transfers do not run out of funds.
+    */
+  def seedAccounts(): Unit = {
+    println(s"Seeding $accounts $currency accounts for run $runId")
+    (0 until accounts).par.foreach { i =>
+      post("/api/accounts",
+        s"""{"accountNumber":"${accountNumber(i)}", "accountName":"Perf ${accountNumber(i)}", "accountType":"Savings", "currencyCode":"$currency"}""")
+      post("/api/accounts/deposit",
+        s"""{"reference":"SEED-$runId-$i", "accountNumber":"${accountNumber(i)}", "currencyCode":"$currency", "amount":1000000.00}""")
+    }
+  }
+
+  private def post(path: String, json: String): Unit = {
+    val connection = new URL(baseUrl + path).openConnection().asInstanceOf[HttpURLConnection]
+    try {
+      connection.setRequestMethod("POST")
+      connection.setRequestProperty("Content-Type", "application/json")
+      connection.setDoOutput(true)
+      connection.getOutputStream.write(json.getBytes(StandardCharsets.UTF_8))
+      val status = connection.getResponseCode
+      if (status != 200) throw new IllegalStateException(s"Seeding $path failed with HTTP $status")
+    } finally {
+      connection.disconnect()
+    }
+  }
+
+  def uniformAccount(): Int = ThreadLocalRandom.current().nextInt(accounts)
+
+  /**
+    * Picks account i with probability proportional to 1 / (i + 1)^s, so a few accounts take most of the traffic.
+    */
+  object Zipf {
+    private val cumulative: Array[Double] = {
+      val weights = (1 to accounts).map(rank => 1.0 / math.pow(rank, zipfExponent))
+      val total = weights.sum
+      weights.scanLeft(0.0)(_ + _).tail.map(_ / total).toArray
+    }
+
+    def next(): Int = {
+      val index = java.util.Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble())
+      math.min(if (index >= 0) index else -index - 1, accounts - 1)
+    }
+  }
+
+  def transferFeeder(pick: () => Int): Iterator[Map[String, Any]] = Iterator.continually {
+    val source = pick()
+    var destination = pick()
+    while (destination == source && accounts > 1) destination = pick()
+    Map("reference" -> s"TRF-$runId-${UUID.randomUUID()}",
+      "source" -> accountNumber(source), "destination" -> accountNumber(destination))
+  }
+
+  val depositFeeder: Iterator[Map[String, Any]] = Iterator.continually(
+    Map("reference" -> s"DEP-$runId-${UUID.randomUUID()}", "account" -> accountNumber(uniformAccount())))
+
+  val readFeeder: Iterator[Map[String, Any]] = Iterator.continually(Map("account" -> accountNumber(uniformAccount())))
+
+  val deposit = http("deposit")
+    .post("/api/accounts/deposit")
+    .body(StringBody(s"""{"reference":"$${reference}", "accountNumber":"$${account}", "currencyCode":"$currency", "amount":10.00}"""))
+    .check(status.is(200), jsonPath("$.responseCode").is("00"))
+
+  val transfer = http("transfer")
+    .post("/api/accounts/transfer")
+    .body(StringBody(s"""{"reference":"$${reference}", "sourceAccount":"$${source}", "destinationAccount":"$${destination}", "currencyCode":"$currency", "amount":1.00}"""))
+    .check(status.is(200), jsonPath("$.responseCode").is("00"))
+
+  val readAccount = http("read_account")
+    .get("/api/accounts/${account}")
+    .check(status.is(200))
+
+  /**
+    * Closed model: a fixed number of users each issuing requests back to back.
+    */
+  def closedModel(scn: io.gatling.core.structure.ScenarioBuilder): PopulationBuilder =
+    scn.inject(
+      rampConcurrentUsers(1).to(users).during(rampUp),
+      constantConcurrentUsers(users).during(duration)
+    ).protocols(httpProtocol)
+
+  // percentile3 and percentile4 are the 95th and 99th percentiles in the default gatling.conf
+  val sloAssertions = Seq(
+    global.responseTime.percentile3.lt(p95Millis),
+    global.responseTime.percentile4.lt(p99Millis),
+    global.failedRequests.percent.lte(maxErrorPercent)
+  )
+}
@@ -0,0 +1,18 @@
+import io.gatling.core.Predef._
+
+/**
+  * Many depositors paying cash in the same currency, every deposit debits one of the
+  * deposit suspense accounts of that currency.
+  */
+class HotAccountSimulation extends Simulation {
+
+  import BookentryLoad._
+
+  before(seedAccounts())
+
+  val scn = scenario("HotSuspenseAccount")
+    .feed(depositFeeder)
+    .exec(deposit)
+
+  setUp(closedModel(scn)).assertions(sloAssertions: _*)
+}
@@ -0,0 +1,25 @@
+import io.gatling.core.Predef._
+
+/**
+  * A sustained arrival rate of new deposits and transfers that does not slow down when the service
+  * does, so queueing shows up in the latencies instead of being hidden by waiting users.
+  */
+class OpenModelSimulation extends Simulation {
+
+  import BookentryLoad._
+
+  before(seedAccounts())
+
+  val scn = scenario("OpenModel")
+    .randomSwitch(
+      20.0 -> feed(depositFeeder).exec(deposit),
+      80.0 -> feed(transferFeeder(() => uniformAccount())).exec(transfer)
+    )
+
+  setUp(
+    scn.inject(
+      rampUsersPerSec(1).to(rate).during(rampUp),
+      constantUsersPerSec(rate).during(duration)
+    ).protocols(httpProtocol)
+  ).assertions(sloAssertions: _*)
+}
@@ -0,0 +1,19 @@
+import io.gatling.core.Predef._
+
+/**
+  * Mostly balance enquiries with some transfers in between, readPercent sets the share of reads.
+  */
+class ReadHeavySimulation extends Simulation {
+
+  import BookentryLoad._
+
+  before(seedAccounts())
+
+  val scn = scenario("ReadHeavy")
+    .randomSwitch(
+      readPercent -> feed(readFeeder).exec(readAccount),
+      (100 - readPercent) -> feed(transferFeeder(() => uniformAccount())).exec(transfer)
+    )
+
+  setUp(closedModel(scn)).assertions(sloAssertions: _*)
+}
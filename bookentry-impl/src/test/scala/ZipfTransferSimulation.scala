@@ -0,0 +1,18 @@
+import io.gatling.core.Predef._
+
+/**
+  * Transfers between accounts picked with a Zipf distribution, so a few popular accounts
+  * see most of the postings, as merchant and payroll accounts do.
+  */
+class ZipfTransferSimulation extends Simulation {
+
+  import BookentryLoad._
+
+  before(seedAccounts())
+
+  val scn = scenario("ZipfTransfers")
+    .feed(transferFeeder(() => Zipf.next()))
+    .exec(transfer)
+
+  setUp(closedModel(scn)).assertions(sloAssertions: _*)
+}
@@ -0,0 +1,28 @@
+package com.globalbank.bookentry.stream.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import lombok.Value;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * The balance of an account at a moment, that of the last posting at or before it. lastPosted is
+ * absent when the account had no postings yet.
+ */
+@Value
+public class BalanceAsOfDto {
+    private final String accountNumber;
+    private final Instant asOf;
+    private final BigDecimal balance;
+    private final Optional<Instant> lastPosted;
+
+    @JsonCreator
+    public BalanceAsOfDto(String accountNumber, Instant asOf, BigDecimal balance, Optional<Instant> lastPosted) {
+        this.accountNumber = accountNumber;
+        this.asOf = asOf;
+        this.balance = balance;
+        this.lastPosted = lastPosted;
+    }
+}
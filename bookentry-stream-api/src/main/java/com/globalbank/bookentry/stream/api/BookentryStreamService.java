@@ -8,6 +8,8 @@ import com.lightbend.lagom.javadsl.api.ServiceCall;
 import com.lightbend.lagom.javadsl.api.transport.Method;
 import org.pcollections.PSequence;
 
+import java.util.Optional;
+
 import static com.lightbend.lagom.javadsl.api.Service.*;
 import static com.lightbend.lagom.javadsl.api.Service.namedCall;
 
@@ -33,10 +35,55 @@ public interface BookentryStreamService extends Service {
     ServiceCall<NotUsed, PSequence<AccountStreamDto>> getAccounts();
 
     /**
-     * Get all account postings. Eventually consistent. Mainly for reporting and analysis.
+     * Stream all accounts over a WebSocket, backpressured by the consumer. Use instead of getAccounts
+     * for large exports. Eventually consistent.
+     */
+    ServiceCall<NotUsed, Source<AccountStreamDto, NotUsed>> exportAccounts();
+
+    /**
+     * Stream all account postings over a WebSocket, backpressured by the consumer. Eventually consistent.
+     */
+    ServiceCall<NotUsed, Source<PostStreamDto, NotUsed>> exportPosts();
+
+    /**
+     * Get all the postings of an account, oldest first. Use getAccountPostsPage or getAccountStatement
+     * for accounts with long histories. Eventually consistent.
      */
     ServiceCall<NotUsed, PSequence<PostStreamDto>> getAccountPosts(String accountNumber);
 
+    /**
+     * Get a page of account postings, newest first. from and to are ISO-8601 instants and default to
+     * the account creation and now, cursor is the nextCursor of the previous page. Eventually consistent.
+     */
+    ServiceCall<NotUsed, PostPageDto> getAccountPostsPage(String accountNumber, Optional<String> from,
+                                                          Optional<String> to, Optional<String> cursor,
+                                                          Optional<Integer> limit);
+
+    /**
+     * Stream the postings of an account between from and to, ISO-8601 instants defaulting to the account
+     * creation and now, oldest first over a WebSocket. Read from the local posting archive when it holds
+     * the range, else from the read model. Eventually consistent.
+     */
+    ServiceCall<NotUsed, Source<PostStreamDto, NotUsed>> getAccountStatement(String accountNumber, Optional<String> from,
+                                                                             Optional<String> to);
+
+    /**
+     * Get the balance of an account as of an ISO-8601 instant, now by default. Read from the end of day
+     * balance of the last day before it and the postings of its own day. Eventually consistent.
+     */
+    ServiceCall<NotUsed, BalanceAsOfDto> getAccountBalanceAsOf(String accountNumber, Optional<String> at);
+
+    /**
+     * Get the credits, debits and net of every currency and account type over all postings projected so far,
+     * kept up to date as postings are projected. Eventually consistent.
+     */
+    ServiceCall<NotUsed, TrialBalanceDto> getTrialBalance();
+
+    /**
+     * Get the throughput and lag of each lane of the account event projection.
+     */
+    ServiceCall<NotUsed, PSequence<LaneStatsDto>> getProjectionLanes();
+
     @Override
     default Descriptor descriptor() {
         return named("account-stream")
@@ -44,7 +91,15 @@ public interface BookentryStreamService extends Service {
                         namedCall("/stream/accounts/direct-stream", this::directStream),
                         namedCall("/stream/accounts/auto-stream", this::autonomousStream),
                         restCall(Method.GET,"/stream/accounts", this::getAccounts),
-                        restCall(Method.GET, "/stream/accounts/:accountNumber/posts", this::getAccountPosts)
+                        pathCall("/stream/export/accounts", this::exportAccounts),
+                        pathCall("/stream/export/posts", this::exportPosts),
+                        restCall(Method.GET, "/stream/accounts/:accountNumber/posts", this::getAccountPosts),
+                        restCall(Method.GET, "/stream/accounts/:accountNumber/posts/page?from&to&cursor&limit",
+                                this::getAccountPostsPage),
+                        restCall(Method.GET, "/stream/accounts/:accountNumber/balance?at", this::getAccountBalanceAsOf),
+                        pathCall("/stream/accounts/:accountNumber/statement?from&to", this::getAccountStatement),
+                        restCall(Method.GET, "/stream/ledger/trial-balance", this::getTrialBalance),
+                        restCall(Method.GET, "/stream/projection/lanes", this::getProjectionLanes)
                 )
                 .withAutoAcl(true);
     }
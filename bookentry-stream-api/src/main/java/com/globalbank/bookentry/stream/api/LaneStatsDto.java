@@ -0,0 +1,23 @@
+package com.globalbank.bookentry.stream.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import lombok.Value;
+
+@Value
+public class LaneStatsDto {
+
+    private final int lane;
+    private final long events;
+    private final long batches;
+    private final double eventsPerSecond;
+    private final long lagMillis;
+
+    @JsonCreator
+    public LaneStatsDto(int lane, long events, long batches, double eventsPerSecond, long lagMillis) {
+        this.lane = lane;
+        this.events = events;
+        this.batches = batches;
+        this.eventsPerSecond = eventsPerSecond;
+        this.lagMillis = lagMillis;
+    }
+}
@@ -0,0 +1,32 @@
+package com.globalbank.bookentry.stream.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import lombok.Value;
+
+import java.math.BigDecimal;
+import java.util.Optional;
+
+/**
+ * The postings of a currency, of one account type or of all when accountType is absent. Credits are the
+ * sum of the positive amounts, debits that of the negative ones, net is credits less debits.
+ */
+@Value
+public class LedgerTotalDto {
+    private final String currencyCode;
+    private final Optional<String> accountType;
+    private final BigDecimal credits;
+    private final BigDecimal debits;
+    private final BigDecimal net;
+    private final long postings;
+
+    @JsonCreator
+    public LedgerTotalDto(String currencyCode, Optional<String> accountType, BigDecimal credits, BigDecimal debits,
+                          BigDecimal net, long postings) {
+        this.currencyCode = currencyCode;
+        this.accountType = accountType;
+        this.credits = credits;
+        this.debits = debits;
+        this.net = net;
+        this.postings = postings;
+    }
+}
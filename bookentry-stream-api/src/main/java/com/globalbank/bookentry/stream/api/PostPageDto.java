@@ -0,0 +1,23 @@
+package com.globalbank.bookentry.stream.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import lombok.Value;
+import org.pcollections.PSequence;
+
+import java.util.Optional;
+
+/**
+ * A page of account postings, newest first. nextCursor is absent on the last page.
+ */
+@Value
+public class PostPageDto {
+
+    private final PSequence<PostStreamDto> posts;
+    private final Optional<String> nextCursor;
+
+    @JsonCreator
+    public PostPageDto(PSequence<PostStreamDto> posts, Optional<String> nextCursor) {
+        this.posts = posts;
+        this.nextCursor = nextCursor;
+    }
+}
@@ -0,0 +1,27 @@
+package com.globalbank.bookentry.stream.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import lombok.Value;
+import org.pcollections.PSequence;
+
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * The ledger totals of every currency, and of every account type within it, up to the last posting
+ * projected. lastPosted is absent when nothing was posted yet.
+ */
+@Value
+public class TrialBalanceDto {
+    private final Optional<Instant> lastPosted;
+    private final PSequence<LedgerTotalDto> currencies;
+    private final PSequence<LedgerTotalDto> accountTypes;
+
+    @JsonCreator
+    public TrialBalanceDto(Optional<Instant> lastPosted, PSequence<LedgerTotalDto> currencies,
+                           PSequence<LedgerTotalDto> accountTypes) {
+        this.lastPosted = lastPosted;
+        this.currencies = currencies;
+        this.accountTypes = accountTypes;
+    }
+}
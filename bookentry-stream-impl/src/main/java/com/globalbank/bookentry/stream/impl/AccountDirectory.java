@@ -0,0 +1,326 @@
+package com.globalbank.bookentry.stream.impl;
+
+import com.globalbank.bookentry.stream.api.AccountStreamDto;
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A local directory of accounts, kept in a memory-mapped file so it lives off-heap and survives
+ * restarts. It is filled by {@link BookentryStreamSubscriber} and by read-through on misses, and lets
+ * autonomousStream answer without a Cassandra round trip.
+ * <p>
+ * The file is an open-addressing hash table of fixed size slots with linear probing, preceded by a
+ * header slot. Accounts are never removed. Writes come from the subscriber and from the read-through of
+ * autonomousStream, they are serialized by the write lock of a StampedLock. Reads are optimistic, retried
+ * under the read lock if a write overlapped.
+ * Fields that do not fit their slot are not stored, those accounts are always read from Cassandra.
+ */
+@Slf4j
+@Singleton
+public class AccountDirectory {
+
+    static final int SLOT_SIZE = 192;
+
+    private static final long MAGIC = 0x4143434449523031L;
+    private static final int SLOTS_PER_SEGMENT = 1 << 22;
+    private static final long SEGMENT_BYTES = (long) SLOTS_PER_SEGMENT * SLOT_SIZE;
+    private static final double MAX_LOAD = 0.75;
+
+    // header slot layout, the header is slot -1
+    private static final long HEADER = -1;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_SLOT_SIZE = 8;
+    private static final int HEADER_CAPACITY = 16;
+    private static final int HEADER_COUNT = 24;
+
+    // account slot layout, strings are a length byte followed by up to max bytes of UTF-8
+    private static final int STATUS = 0;
+    private static final int HASH = 4;
+    private static final int ACCOUNT_NUMBER = 8;
+    private static final int ACCOUNT_NUMBER_MAX = 32;
+    private static final int ACCOUNT_NAME = 41;
+    private static final int ACCOUNT_NAME_MAX = 96;
+    private static final int ACCOUNT_TYPE = 138;
+    private static final int ACCOUNT_TYPE_MAX = 23;
+    private static final int CURRENCY_CODE = 162;
+    private static final int CURRENCY_CODE_MAX = 11;
+    private static final int DATE_CREATED_SECONDS = 176;
+    private static final int DATE_CREATED_NANOS = 184;
+
+    private static final byte USED = 1;
+
+    private final boolean enabled;
+    private final long capacity;
+    private final long mask;
+    private final MappedByteBuffer[] segments;
+    private final StampedLock lock = new StampedLock();
+
+    private long count;
+
+    @Inject
+    public AccountDirectory(Config config, ApplicationLifecycle lifecycle) {
+        this.enabled = config.getBoolean("bookentry-stream.directory.enabled");
+        if (!enabled) {
+            this.capacity = 0;
+            this.mask = 0;
+            this.segments = new MappedByteBuffer[0];
+            return;
+        }
+
+        this.capacity = Long.highestOneBit(Math.max(2, config.getLong("bookentry-stream.directory.capacity") - 1)) << 1;
+        this.mask = capacity - 1;
+        Path path = Paths.get(config.getString("bookentry-stream.directory.path"));
+        this.segments = map(path);
+
+        if (getLong(HEADER, HEADER_MAGIC) == MAGIC && getInt(HEADER, HEADER_SLOT_SIZE) == SLOT_SIZE
+                && getLong(HEADER, HEADER_CAPACITY) == capacity) {
+            this.count = getLong(HEADER, HEADER_COUNT);
+            log.info("Opened account directory {} with {} of {} slots used", path, count, capacity);
+        } else {
+            putLong(HEADER, HEADER_MAGIC, MAGIC);
+            putInt(HEADER, HEADER_SLOT_SIZE, SLOT_SIZE);
+            putLong(HEADER, HEADER_CAPACITY, capacity);
+            putLong(HEADER, HEADER_COUNT, 0);
+            log.info("Created account directory {} with {} slots", path, capacity);
+        }
+
+        lifecycle.addStopHook(() -> {
+            flush();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private MappedByteBuffer[] map(Path path) {
+        long fileBytes = (capacity + 1) * SLOT_SIZE;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (channel.size() != fileBytes) {
+                // a directory of another size cannot be reused, start empty and let it fill up again
+                channel.truncate(0);
+            }
+            int segmentCount = (int) ((fileBytes + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+            MappedByteBuffer[] mapped = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * SEGMENT_BYTES;
+                mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_BYTES, fileBytes - start));
+            }
+            return mapped;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map account directory " + path, e);
+        }
+    }
+
+    public Optional<AccountStreamDto> get(String accountNumber) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        byte[] key = accountNumber.getBytes(StandardCharsets.UTF_8);
+        if (key.length > ACCOUNT_NUMBER_MAX) {
+            return Optional.empty();
+        }
+        int hash = hash(key);
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                Optional<AccountStreamDto> account = read(key, hash);
+                if (lock.validate(stamp)) {
+                    return account;
+                }
+            } catch (RuntimeException e) {
+                // a torn read of a slot being written, retried under the read lock below
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return read(key, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Adds or replaces an account, returns false if it is not stored.
+     */
+    public boolean put(AccountStreamDto account) {
+        if (!enabled) {
+            return false;
+        }
+        byte[] key = account.getAccountNumber().getBytes(StandardCharsets.UTF_8);
+        byte[] name = bytes(account.getAccountName());
+        byte[] type = bytes(account.getAccountType());
+        byte[] currency = bytes(account.getCurrencyCode());
+        if (key.length > ACCOUNT_NUMBER_MAX || name.length > ACCOUNT_NAME_MAX || type.length > ACCOUNT_TYPE_MAX
+                || currency.length > CURRENCY_CODE_MAX) {
+            return false;
+        }
+        int hash = hash(key);
+
+        long stamp = lock.writeLock();
+        try {
+            long slot = find(key, hash);
+            boolean added = getByte(slot, STATUS) != USED;
+            if (added && count >= capacity * MAX_LOAD) {
+                log.warn("Account directory is full ({} accounts), raise bookentry-stream.directory.capacity", count);
+                return false;
+            }
+
+            putInt(slot, HASH, hash);
+            putString(slot, ACCOUNT_NUMBER, key);
+            putString(slot, ACCOUNT_NAME, name);
+            putString(slot, ACCOUNT_TYPE, type);
+            putString(slot, CURRENCY_CODE, currency);
+            Instant dateCreated = account.getDateCreated();
+            putLong(slot, DATE_CREATED_SECONDS, dateCreated == null ? Long.MIN_VALUE : dateCreated.getEpochSecond());
+            putInt(slot, DATE_CREATED_NANOS, dateCreated == null ? 0 : dateCreated.getNano());
+            if (added) {
+                // the slot becomes visible to lookups only once it is complete
+                putByte(slot, STATUS, USED);
+                putLong(HEADER, HEADER_COUNT, ++count);
+            }
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public long size() {
+        long stamp = lock.readLock();
+        try {
+            return count;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void flush() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    private Optional<AccountStreamDto> read(byte[] key, int hash) {
+        long slot = find(key, hash);
+        if (getByte(slot, STATUS) != USED) {
+            return Optional.empty();
+        }
+        long seconds = getLong(slot, DATE_CREATED_SECONDS);
+        return Optional.of(new AccountStreamDto(getString(slot, ACCOUNT_NUMBER, ACCOUNT_NUMBER_MAX),
+                getString(slot, ACCOUNT_NAME, ACCOUNT_NAME_MAX), getString(slot, ACCOUNT_TYPE, ACCOUNT_TYPE_MAX),
+                getString(slot, CURRENCY_CODE, CURRENCY_CODE_MAX),
+                seconds == Long.MIN_VALUE ? null : Instant.ofEpochSecond(seconds, getInt(slot, DATE_CREATED_NANOS))));
+    }
+
+    /**
+     * Returns the slot holding the key, or the empty slot where it belongs.
+     */
+    private long find(byte[] key, int hash) {
+        long slot = hash & mask;
+        for (long probes = 0; probes < capacity; probes++) {
+            if (getByte(slot, STATUS) != USED || (getInt(slot, HASH) == hash && keyEquals(slot, key))) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        // never reached, the load is kept below MAX_LOAD
+        throw new IllegalStateException("Account directory is full");
+    }
+
+    private boolean keyEquals(long slot, byte[] key) {
+        if ((getByte(slot, ACCOUNT_NUMBER) & 0xFF) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (getByte(slot, ACCOUNT_NUMBER + 1 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] key) {
+        // FNV-1a, then spread so that the low bits used for the slot index depend on every byte
+        int hash = 0x811C9DC5;
+        for (byte b : key) {
+            hash = (hash ^ b) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String getString(long slot, int field, int max) {
+        int length = Math.min(getByte(slot, field) & 0xFF, max);
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = getByte(slot, field + 1 + i);
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private void putString(long slot, int field, byte[] value) {
+        putByte(slot, field, (byte) value.length);
+        for (int i = 0; i < value.length; i++) {
+            putByte(slot, field + 1 + i, value[i]);
+        }
+    }
+
+    // slot -1 is the header, account slots follow it
+
+    private static long position(long slot) {
+        return (slot + 1) * SLOT_SIZE;
+    }
+
+    private MappedByteBuffer segment(long position) {
+        return segments[(int) (position / SEGMENT_BYTES)];
+    }
+
+    private byte getByte(long slot, int field) {
+        long position = position(slot) + field;
+        return segment(position).get((int) (position % SEGMENT_BYTES));
+    }
+
+    private int getInt(long slot, int field) {
+        long position = position(slot) + field;
+        return segment(position).getInt((int) (position % SEGMENT_BYTES));
+    }
+
+    private long getLong(long slot, int field) {
+        long position = position(slot) + field;
+        return segment(position).getLong((int) (position % SEGMENT_BYTES));
+    }
+
+    private void putByte(long slot, int field, byte value) {
+        long position = position(slot) + field;
+        segment(position).put((int) (position % SEGMENT_BYTES), value);
+    }
+
+    private void putInt(long slot, int field, int value) {
+        long position = position(slot) + field;
+        segment(position).putInt((int) (position % SEGMENT_BYTES), value);
+    }
+
+    private void putLong(long slot, int field, long value) {
+        long position = position(slot) + field;
+        segment(position).putLong((int) (position % SEGMENT_BYTES), value);
+    }
+}
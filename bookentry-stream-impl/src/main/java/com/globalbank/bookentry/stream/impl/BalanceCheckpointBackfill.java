@@ -0,0 +1,62 @@
+package com.globalbank.bookentry.stream.impl;
+
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the end of day balance checkpoints of the postings projected before checkpoints existed, on
+ * start up when bookentry-stream.checkpoints.backfill is on. Each account and day is checkpointed from
+ * its latest posting, so it can be rerun safely. When the {@link LegacyPostMigration} runs too, the
+ * backfill starts once the copy has completed, so that the copied postings are indexed, and not at all
+ * if the copy failed.
+ */
+@Slf4j
+@Singleton
+public class BalanceCheckpointBackfill {
+
+    @Inject
+    public BalanceCheckpointBackfill(BookentryStreamRepository repository, LegacyPostMigration legacyPostMigration,
+                                     Materializer materializer, Config config) {
+        if (!config.getBoolean("bookentry-stream.checkpoints.backfill")) {
+            return;
+        }
+
+        int parallelism = config.getInt("bookentry-stream.checkpoints.backfill-parallelism");
+        legacyPostMigration.completed().whenComplete((migrated, migrationFailure) -> {
+            if (migrationFailure != null) {
+                log.error("Balance checkpoint backfill not started, the legacy posting migration failed");
+            } else {
+                backfill(repository, materializer, parallelism);
+            }
+        });
+    }
+
+    private static void backfill(BookentryStreamRepository repository, Materializer materializer, int parallelism) {
+        AtomicLong written = new AtomicLong();
+        log.info("Backfilling account balance checkpoints from account_post_by_bucket");
+
+        repository.postPartitions()
+                .mapAsyncUnordered(parallelism, partition -> repository.backfillCheckpoint(partition)
+                        .thenApply(done -> {
+                            long count = written.incrementAndGet();
+                            if (count % 10000 == 0) {
+                                log.info("Backfilled {} balance checkpoints", count);
+                            }
+                            return done;
+                        }))
+                .runWith(Sink.ignore(), materializer)
+                .whenComplete((done, throwable) -> {
+                    if (throwable != null) {
+                        log.error("Balance checkpoint backfill failed after {} checkpoints : {}", written.get(), throwable.getMessage());
+                    } else {
+                        log.info("Balance checkpoint backfill completed, {} checkpoints written", written.get());
+                    }
+                });
+    }
+}
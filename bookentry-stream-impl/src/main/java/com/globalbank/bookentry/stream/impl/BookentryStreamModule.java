@@ -17,5 +17,9 @@ public class BookentryStreamModule extends AbstractModule implements ServiceGuic
         bindClient(BookentryService.class);
         // Bind the subscriber eagerly to ensure it starts up
         bind(BookentryStreamSubscriber.class).asEagerSingleton();
+        // Bind the legacy posting migration eagerly so it runs on start up when enabled
+        bind(LegacyPostMigration.class).asEagerSingleton();
+        // Bind the balance checkpoint backfill eagerly so it runs on start up when enabled
+        bind(BalanceCheckpointBackfill.class).asEagerSingleton();
     }
 }
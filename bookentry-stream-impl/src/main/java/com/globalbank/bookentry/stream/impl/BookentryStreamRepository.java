@@ -1,34 +1,116 @@
 package com.globalbank.bookentry.stream.impl;
 
 import akka.Done;
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.Row;
+import com.globalbank.bookentry.api.AccountEvent;
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
 import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraSession;
+import com.typesafe.config.Config;
 import org.pcollections.PSequence;
 import org.pcollections.TreePVector;
 import com.globalbank.bookentry.stream.api.AccountStreamDto;
+import com.globalbank.bookentry.stream.api.BalanceAsOfDto;
+import com.globalbank.bookentry.stream.api.PostPageDto;
 import com.globalbank.bookentry.stream.api.PostStreamDto;
 
 import javax.inject.Inject;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 import java.time.Instant;
-import java.util.Comparator;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.stream.Collectors;
 
+/**
+ * Read model of accounts and their postings.
+ * <p>
+ * Postings are stored in account_post_by_bucket, partitioned by account and UTC day so that even the
+ * busiest suspense accounts have bounded partitions, newest first within a day. The original
+ * account_post table, keyed by a random post_id, is still written while bookentry-stream.posts.legacy-writes
+ * is on, until {@link LegacyPostMigration} has copied its rows over.
+ * <p>
+ * Every posting also updates the end of day balance of its account and day in account_balance_checkpoint,
+ * the balance after the last posting of the day, so the balance at any moment is one checkpoint read and
+ * one read of the postings of that day. The checkpoints of an account are also the index of its days with
+ * postings: range queries only read the days it lists, however long ago the account was created. Postings
+ * copied by {@link LegacyPostMigration} are found once {@link BalanceCheckpointBackfill} has indexed them.
+ * <p>
+ * The tables are created and every statement below is prepared once, on start up. Reads and writes
+ * then only bind values to the cached prepared statements.
+ */
 public class BookentryStreamRepository {
 
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    // days with postings read from the checkpoint index at a time while filling a page
+    private static final int BUCKETS_PER_READ = 32;
+
+    private static final String POST_COLUMNS = "post_id, account_number, reference, narrative, amount, balance, date_created";
+
+    private static final String INSERT_ACCOUNT = "INSERT INTO account (account_number, account_name, account_type, " +
+            "currency_code, date_created) VALUES (?, ?, ?, ?, ?)";
+    private static final String INSERT_POST = "INSERT INTO account_post (" + POST_COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_BUCKET_POST = "INSERT INTO account_post_by_bucket (account_number, bucket, " +
+            "date_created, post_id, reference, narrative, amount, balance) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_CHECKPOINT = "INSERT INTO account_balance_checkpoint (account_number, bucket, " +
+            "balance, date_created) VALUES (?, ?, ?, ?)";
+    private static final String SELECT_ACCOUNT = "SELECT account_number, account_name, account_type, currency_code, " +
+            "date_created FROM account WHERE account_number = ?";
+    private static final String SELECT_ALL_ACCOUNTS = "SELECT account_number, account_name, account_type, currency_code, " +
+            "date_created FROM account";
+    private static final String SELECT_BUCKET_POSTS = "SELECT " + POST_COLUMNS + " FROM account_post_by_bucket " +
+            "WHERE account_number = ? AND bucket = ? AND date_created <= ? LIMIT ?";
+    private static final String SELECT_BUCKET_POSTS_AFTER = "SELECT " + POST_COLUMNS + " FROM account_post_by_bucket " +
+            "WHERE account_number = ? AND bucket = ? AND (date_created, post_id) < (?, ?) LIMIT ?";
+    private static final String SELECT_BUCKET_POSTS_BETWEEN = "SELECT " + POST_COLUMNS + " FROM account_post_by_bucket " +
+            "WHERE account_number = ? AND bucket = ? AND date_created >= ? AND date_created <= ? " +
+            "ORDER BY date_created ASC, post_id ASC";
+    private static final String SELECT_POST_BUCKETS = "SELECT bucket FROM account_balance_checkpoint " +
+            "WHERE account_number = ? AND bucket >= ? AND bucket <= ? LIMIT ?";
+    private static final String SELECT_POST_BUCKETS_ASC = "SELECT bucket FROM account_balance_checkpoint " +
+            "WHERE account_number = ? AND bucket >= ? AND bucket <= ? ORDER BY bucket ASC";
+    private static final String SELECT_LAST_CHECKPOINT_BEFORE = "SELECT balance, date_created FROM account_balance_checkpoint " +
+            "WHERE account_number = ? AND bucket < ? LIMIT 1";
+    private static final String SELECT_POST_PARTITIONS = "SELECT DISTINCT account_number, bucket FROM account_post_by_bucket";
+    private static final String SELECT_ALL_POSTS = "SELECT " + POST_COLUMNS + " FROM account_post_by_bucket";
+    private static final String SELECT_ALL_LEGACY_POSTS = "SELECT " + POST_COLUMNS + " FROM account_post";
+
+    private static final List<String> STATEMENTS = Arrays.asList(INSERT_ACCOUNT, INSERT_POST, INSERT_BUCKET_POST,
+            INSERT_CHECKPOINT, SELECT_ACCOUNT, SELECT_ALL_ACCOUNTS, SELECT_BUCKET_POSTS, SELECT_BUCKET_POSTS_AFTER,
+            SELECT_BUCKET_POSTS_BETWEEN, SELECT_POST_BUCKETS, SELECT_POST_BUCKETS_ASC, SELECT_LAST_CHECKPOINT_BEFORE,
+            SELECT_POST_PARTITIONS, SELECT_ALL_POSTS, SELECT_ALL_LEGACY_POSTS);
+
     private final CassandraSession uninitializedSession;
+    private final boolean legacyWrites;
+    private final int exportFetchSize;
+    private final int maxBatchStatements;
 
-    // Will return the session when the Cassandra tables have been successfully created
-    private volatile CompletableFuture<CassandraSession> initializedSession;
+    // Will return the session and its prepared statements once the tables have been successfully created
+    private volatile CompletableFuture<PreparedSession> initializedSession;
 
     @Inject
-    public BookentryStreamRepository(CassandraSession uninitializedSession) {
+    public BookentryStreamRepository(CassandraSession uninitializedSession, Config config) {
         this.uninitializedSession = uninitializedSession;
+        this.legacyWrites = config.getBoolean("bookentry-stream.posts.legacy-writes");
+        this.exportFetchSize = config.getInt("bookentry-stream.export.fetch-size");
+        this.maxBatchStatements = config.getInt("bookentry-stream.projection.max-batch-statements");
         // Eagerly create the session
         session();
     }
@@ -44,74 +126,393 @@ public class BookentryStreamRepository {
                 row.getDecimal("balance"), row.getTimestamp("date_created").toInstant());
     }
 
-    private CompletionStage<CassandraSession> session() {
-        // If there's no initialized session, or if the initialized session future completed
-        // with an exception, then reinitialize the session and attempt to create the tables
-        if (initializedSession == null || initializedSession.isCompletedExceptionally()) {
+    private CompletionStage<PreparedSession> session() {
+        CompletableFuture<PreparedSession> session = initializedSession;
+        if (session != null && !session.isCompletedExceptionally()) {
+            return session;
+        }
+        synchronized (this) {
+            // If there's no initialized session, or if the initialized session future completed
+            // with an exception, then reinitialize the session and attempt to create the tables
+            if (initializedSession == null || initializedSession.isCompletedExceptionally()) {
+                initializedSession = createTables().thenCompose(done -> prepareStatements()).toCompletableFuture();
+            }
+            return initializedSession;
+        }
+    }
+
+    private CompletionStage<Done> createTables() {
+        return uninitializedSession.executeCreateTable(
+                "CREATE TABLE IF NOT EXISTS account (account_number text PRIMARY KEY, account_name text, account_type text, " +
+                        "currency_code text, date_created timestamp)"
+        ).thenComposeAsync(done1 -> {
             return uninitializedSession.executeCreateTable(
-                    "CREATE TABLE IF NOT EXISTS account (account_number text PRIMARY KEY, account_name text, account_type text, " +
-                            "currency_code text, date_created timestamp)"
-            ).thenComposeAsync(done1 -> {
-                return uninitializedSession.executeCreateTable(
-                        "CREATE TABLE IF NOT EXISTS account_post (post_id text PRIMARY KEY, account_number text, reference text, narrative text, " +
-                                "amount decimal, balance decimal, date_created timestamp)"
-                ).thenApplyAsync(done2 -> uninitializedSession).toCompletableFuture();
+                    "CREATE TABLE IF NOT EXISTS account_post (post_id text PRIMARY KEY, account_number text, reference text, narrative text, " +
+                            "amount decimal, balance decimal, date_created timestamp)"
+            );
+        }).thenComposeAsync(done2 -> {
+            return uninitializedSession.executeCreateTable(
+                    "CREATE TABLE IF NOT EXISTS account_post_by_bucket (account_number text, bucket text, date_created timestamp, " +
+                            "post_id text, reference text, narrative text, amount decimal, balance decimal, " +
+                            "PRIMARY KEY ((account_number, bucket), date_created, post_id)) " +
+                            "WITH CLUSTERING ORDER BY (date_created DESC, post_id DESC)"
+            );
+        }).thenComposeAsync(done3 -> {
+            return uninitializedSession.executeCreateTable(
+                    "CREATE TABLE IF NOT EXISTS account_balance_checkpoint (account_number text, bucket text, " +
+                            "balance decimal, date_created timestamp, PRIMARY KEY (account_number, bucket)) " +
+                            "WITH CLUSTERING ORDER BY (bucket DESC)"
+            );
+        });
+    }
+
+    private CompletionStage<PreparedSession> prepareStatements() {
+        Map<String, PreparedStatement> prepared = new HashMap<>();
+        CompletionStage<Done> all = CompletableFuture.completedFuture(Done.getInstance());
+        for (String cql : STATEMENTS) {
+            all = all.thenCombine(uninitializedSession.prepare(cql), (done, statement) -> {
+                prepared.put(cql, statement);
+                return done;
             });
-        } else {
-            return initializedSession;
         }
+        return all.thenApply(done -> new PreparedSession(uninitializedSession, prepared));
+    }
+
+    private CompletionStage<Done> write(String cql, Object... values) {
+        return session().thenCompose(db -> db.session.executeWrite(db.bind(cql, values)));
+    }
+
+    private CompletionStage<List<Row>> selectAll(String cql, Object... values) {
+        return session().thenCompose(db -> db.session.selectAll(db.bind(cql, values)));
+    }
+
+    private CompletionStage<Optional<Row>> selectOne(String cql, Object... values) {
+        return session().thenCompose(db -> db.session.selectOne(db.bind(cql, values)));
     }
 
     public CompletionStage<Done> createAccount(String accountNumber, String accountName, String accountType, String currencyCode, Instant timestamp) {
-        return session().thenComposeAsync(session ->
-                session.executeWrite("INSERT INTO account (account_number, account_name, account_type, currency_code, date_created) " +
-                                "VALUES (?, ?, ?, ?, ?)",
-                        accountNumber, accountName, accountType, currencyCode, Timestamp.from(timestamp))
-        );
+        return write(INSERT_ACCOUNT, accountNumber, accountName, accountType, currencyCode, Timestamp.from(timestamp));
     }
 
     public CompletionStage<Done> createPost(String accountNumber, String reference, String narrative, BigDecimal amount, BigDecimal balance, Instant timestamp) {
-        return session().thenComposeAsync(session ->
-                session.executeWrite("INSERT INTO account_post (post_id, account_number, reference, narrative, amount, balance, date_created) " +
-                                "VALUES (?, ?, ?, ?, ?, ?, ?)",
-                        UUID.randomUUID().toString(), accountNumber, reference, narrative, amount, balance, Timestamp.from(timestamp))
-        );
+        String postId = UUID.randomUUID().toString();
+        CompletionStage<Done> bucketWrite = write(INSERT_BUCKET_POST, accountNumber, bucketOf(timestamp),
+                Timestamp.from(timestamp), postId, reference, narrative, amount, balance)
+                .thenCombine(write(INSERT_CHECKPOINT, accountNumber, bucketOf(timestamp), balance, Timestamp.from(timestamp)),
+                        (done1, done2) -> Done.getInstance());
+        if (!legacyWrites) {
+            return bucketWrite;
+        }
+        return bucketWrite.thenCombine(write(INSERT_POST, postId, accountNumber, reference, narrative, amount, balance,
+                Timestamp.from(timestamp)), (done1, done2) -> Done.getInstance());
+    }
+
+    /**
+     * Writes the accounts and posts of the given events, the statements of each partition in unlogged
+     * batches of up to max-batch-statements, all batches in parallel. A batch never spans partitions, so
+     * it is applied by one replica set and stays well below the batch size thresholds of Cassandra however
+     * many postings of one account the events hold.
+     * <p>
+     * Statements of a batch share one write timestamp, so only the last posting of each account and day
+     * in the events writes its checkpoint, or an earlier balance could win.
+     */
+    public CompletionStage<Done> createBatch(List<AccountEvent> events) {
+        return session().thenCompose(db -> {
+            Map<String, List<BoundStatement>> partitions = new LinkedHashMap<>();
+            Map<String, AccountEvent.PostAdded> checkpoints = new LinkedHashMap<>();
+            for (AccountEvent event : events) {
+                if (event instanceof AccountEvent.AccountAdded) {
+                    AccountEvent.AccountAdded accountAdded = (AccountEvent.AccountAdded) event;
+                    partitionOf(partitions, "account", accountAdded.accountNumber).add(db.bind(INSERT_ACCOUNT,
+                            accountAdded.accountNumber, accountAdded.accountName, accountAdded.accountType,
+                            accountAdded.currencyCode, Timestamp.from(Instant.parse(accountAdded.timestamp))));
+                } else if (event instanceof AccountEvent.PostAdded) {
+                    AccountEvent.PostAdded postAdded = (AccountEvent.PostAdded) event;
+                    String postId = UUID.randomUUID().toString();
+                    Instant timestamp = Instant.parse(postAdded.timestamp);
+                    partitionOf(partitions, "account_post_by_bucket", postAdded.accountNumber + "/" + bucketOf(timestamp))
+                            .add(db.bind(INSERT_BUCKET_POST, postAdded.accountNumber, bucketOf(timestamp),
+                                    Timestamp.from(timestamp), postId, postAdded.reference, postAdded.narrative,
+                                    postAdded.amount, postAdded.balance));
+                    if (legacyWrites) {
+                        partitionOf(partitions, "account_post", postId).add(db.bind(INSERT_POST, postId,
+                                postAdded.accountNumber, postAdded.reference, postAdded.narrative, postAdded.amount,
+                                postAdded.balance, Timestamp.from(timestamp)));
+                    }
+                    checkpoints.put(postAdded.accountNumber + "/" + bucketOf(timestamp), postAdded);
+                }
+            }
+            for (AccountEvent.PostAdded postAdded : checkpoints.values()) {
+                Instant timestamp = Instant.parse(postAdded.timestamp);
+                partitionOf(partitions, "account_balance_checkpoint", postAdded.accountNumber)
+                        .add(db.bind(INSERT_CHECKPOINT, postAdded.accountNumber, bucketOf(timestamp), postAdded.balance,
+                                Timestamp.from(timestamp)));
+            }
+
+            List<CompletableFuture<Done>> writes = new ArrayList<>();
+            for (List<BoundStatement> statements : partitions.values()) {
+                for (int from = 0; from < statements.size(); from += maxBatchStatements) {
+                    List<BoundStatement> chunk = statements.subList(from, Math.min(from + maxBatchStatements, statements.size()));
+                    if (chunk.size() == 1) {
+                        writes.add(db.session.executeWrite(chunk.get(0)).toCompletableFuture());
+                    } else {
+                        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+                        batch.addAll(chunk);
+                        writes.add(db.session.executeWriteBatch(batch).toCompletableFuture());
+                    }
+                }
+            }
+            return CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).thenApply(done -> Done.getInstance());
+        });
+    }
+
+    private static List<BoundStatement> partitionOf(Map<String, List<BoundStatement>> partitions, String table, String key) {
+        return partitions.computeIfAbsent(table + "/" + key, partition -> new ArrayList<>());
+    }
+
+    /**
+     * Copies one row of the legacy account_post table into account_post_by_bucket, keeping its post_id
+     * so that copying it again is harmless.
+     */
+    public CompletionStage<Done> copyLegacyPost(Row row) {
+        Instant timestamp = row.getTimestamp("date_created").toInstant();
+        return write(INSERT_BUCKET_POST, row.getString("account_number"), bucketOf(timestamp), Timestamp.from(timestamp),
+                row.getString("post_id"), row.getString("reference"), row.getString("narrative"), row.getDecimal("amount"),
+                row.getDecimal("balance"));
+    }
+
+    /**
+     * Streams every row of the legacy account_post table, paged by the driver.
+     */
+    public Source<Row, NotUsed> legacyPosts() {
+        return export(SELECT_ALL_LEGACY_POSTS);
+    }
+
+    /**
+     * Streams the (account_number, bucket) partitions of account_post_by_bucket, paged by the driver.
+     */
+    public Source<Row, NotUsed> postPartitions() {
+        return export(SELECT_POST_PARTITIONS);
+    }
+
+    /**
+     * Writes the checkpoint of one account and day from its latest posting, so it can be rerun safely.
+     */
+    public CompletionStage<Done> backfillCheckpoint(Row partition) {
+        String accountNumber = partition.getString("account_number");
+        String bucket = partition.getString("bucket");
+        return selectOne(SELECT_BUCKET_POSTS, accountNumber, bucket, Timestamp.from(Instant.now()), 1)
+                .thenCompose(latest -> latest.isPresent() ?
+                        write(INSERT_CHECKPOINT, accountNumber, bucket, latest.get().getDecimal("balance"),
+                                latest.get().getTimestamp("date_created")) :
+                        CompletableFuture.completedFuture(Done.getInstance()));
+    }
+
+    /**
+     * The balance of an account at a moment: that of its last posting on the same day up to the moment
+     * if any, else the checkpoint of the last day before with postings, else zero.
+     */
+    public CompletionStage<BalanceAsOfDto> getBalanceAsOf(String accountNumber, Instant at) {
+        String bucket = bucketOf(at);
+        CompletionStage<Optional<Row>> sameDay = selectOne(SELECT_BUCKET_POSTS, accountNumber, bucket, Timestamp.from(at), 1);
+        CompletionStage<Optional<Row>> checkpoint = selectOne(SELECT_LAST_CHECKPOINT_BEFORE, accountNumber, bucket);
+        return sameDay.thenCombine(checkpoint, (post, dayBefore) -> {
+            Optional<Row> latest = post.isPresent() ? post : dayBefore;
+            return latest
+                    .map(row -> new BalanceAsOfDto(accountNumber, at, row.getDecimal("balance"),
+                            Optional.of(row.getTimestamp("date_created").toInstant())))
+                    .orElseGet(() -> new BalanceAsOfDto(accountNumber, at, BigDecimal.ZERO, Optional.empty()));
+        });
     }
 
     public CompletionStage<Optional<AccountStreamDto>> getAccount(String accountNumber) {
-        return session().thenComposeAsync(session ->
-                session.selectOne("SELECT account_number, account_name, account_type, currency_code, date_created " +
-                        "FROM account WHERE account_number = ?", accountNumber)
-        ).thenApplyAsync(maybeRow -> maybeRow.map(BookentryStreamRepository::convertRowToAccountStreamDto));
+        return selectOne(SELECT_ACCOUNT, accountNumber).thenApplyAsync(maybeRow -> maybeRow.map(BookentryStreamRepository::convertRowToAccountStreamDto));
     }
 
     public CompletionStage<PSequence<AccountStreamDto>> getAllAccounts() {
-        return session().thenComposeAsync(session ->
-                session.selectAll("SELECT account_number, account_name, account_type, currency_code, date_created FROM account")
-        ).thenApplyAsync(rows -> TreePVector.from(
+        return selectAll(SELECT_ALL_ACCOUNTS).thenApplyAsync(rows -> TreePVector.from(
                 rows.stream()
                         .map(BookentryStreamRepository::convertRowToAccountStreamDto)
                         .collect(Collectors.toList())));
     }
 
-    public CompletionStage<PSequence<PostStreamDto>> getAccountPosts(String accountNumber) {
-        return session().thenComposeAsync(session ->
-                session.selectAll("SELECT post_id, account_number, reference, narrative, amount, balance, date_created " +
-                        "FROM account_post WHERE account_number = ? ALLOW FILTERING", accountNumber)
-        ).thenApplyAsync(rows -> TreePVector.from(
-                rows.stream()
-                        .map(BookentryStreamRepository::convertRowToPostStreamDto)
-                        .sorted(Comparator.comparing(postStreamDto -> postStreamDto.getDateCreated()))
-                        .collect(Collectors.toList())));
+    /**
+     * Streams the postings of an account between from and to, oldest first. Its days with postings are
+     * read from the checkpoint index and the postings of each day are paged by the driver as the consumer
+     * pulls, so memory use does not depend on the length of the range.
+     */
+    public Source<PostStreamDto, NotUsed> streamAccountPosts(String accountNumber, Instant from, Instant to) {
+        return export(SELECT_POST_BUCKETS_ASC, accountNumber, bucketOf(from), bucketOf(to))
+                .flatMapConcat(row -> export(SELECT_BUCKET_POSTS_BETWEEN, accountNumber, row.getString("bucket"),
+                        Timestamp.from(from), Timestamp.from(to)))
+                .map(BookentryStreamRepository::convertRowToPostStreamDto);
+    }
+
+    /**
+     * A page of the postings of an account between from and to, newest first. The cursor of the next
+     * page is the (date_created, post_id) key of the last posting returned, so each page resumes with
+     * a range query on the clustering key instead of skipping rows.
+     */
+    public CompletionStage<PostPageDto> getAccountPosts(String accountNumber, Instant from, Instant to,
+                                                        Optional<String> cursor, int limit) {
+        Optional<PostKey> after = cursor.map(PostKey::decode);
+        LocalDate startDay = after.map(key -> bucketDay(key.dateCreated)).orElse(bucketDay(to));
+        return walkBuckets(accountNumber, from, to, startDay, after, Math.min(limit, MAX_PAGE_SIZE), new ArrayList<>());
+    }
+
+    /**
+     * Fills the page from the days with postings of the account, newest first from day, reading
+     * BUCKETS_PER_READ of them from the checkpoint index at a time.
+     */
+    private CompletionStage<PostPageDto> walkBuckets(String accountNumber, Instant from, Instant to, LocalDate day,
+                                                     Optional<PostKey> after, int limit, List<PostStreamDto> posts) {
+        if (day.isBefore(bucketDay(from))) {
+            return CompletableFuture.completedFuture(lastPage(posts));
+        }
+        return selectAll(SELECT_POST_BUCKETS, accountNumber, bucketOf(from), day.toString(), BUCKETS_PER_READ)
+                .thenCompose(rows -> {
+                    List<String> buckets = rows.stream().map(row -> row.getString("bucket")).collect(Collectors.toList());
+                    return readBuckets(accountNumber, from, to, buckets, 0, after, limit, posts)
+                            .thenCompose(page -> {
+                                if (page.isPresent()) {
+                                    return CompletableFuture.completedFuture(page.get());
+                                }
+                                if (buckets.size() < BUCKETS_PER_READ) {
+                                    // no older day with postings in range
+                                    return CompletableFuture.completedFuture(lastPage(posts));
+                                }
+                                LocalDate oldest = LocalDate.parse(buckets.get(buckets.size() - 1));
+                                return walkBuckets(accountNumber, from, to, oldest.minusDays(1), after, limit, posts);
+                            });
+                });
+    }
+
+    /**
+     * Reads the postings of the given days in turn, returns the page once it is full or reaches from,
+     * or nothing if the days ran out first.
+     */
+    private CompletionStage<Optional<PostPageDto>> readBuckets(String accountNumber, Instant from, Instant to,
+                                                               List<String> buckets, int index, Optional<PostKey> after,
+                                                               int limit, List<PostStreamDto> posts) {
+        if (index == buckets.size()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        int remaining = limit - posts.size();
+        String bucket = buckets.get(index);
+        // the page resumes after the cursor on its own day, older days are read from their newest posting
+        Optional<PostKey> resume = after.filter(key -> bucketOf(key.dateCreated).equals(bucket));
+        CompletionStage<List<Row>> rowsStage = resume.isPresent() ?
+                selectAll(SELECT_BUCKET_POSTS_AFTER, accountNumber, bucket, Timestamp.from(resume.get().dateCreated),
+                        resume.get().postId, remaining) :
+                selectAll(SELECT_BUCKET_POSTS, accountNumber, bucket, Timestamp.from(to), remaining);
+        return rowsStage.thenComposeAsync(rows -> {
+            for (Row row : rows) {
+                PostStreamDto post = convertRowToPostStreamDto(row);
+                if (post.getDateCreated().isBefore(from)) {
+                    // rows are newest first, everything after this one is out of range too
+                    return CompletableFuture.completedFuture(Optional.of(lastPage(posts)));
+                }
+                posts.add(post);
+            }
+            if (posts.size() == limit) {
+                PostStreamDto last = posts.get(posts.size() - 1);
+                return CompletableFuture.completedFuture(Optional.of(new PostPageDto(TreePVector.from(posts),
+                        Optional.of(new PostKey(last.getDateCreated(), last.getId()).encode()))));
+            }
+            return readBuckets(accountNumber, from, to, buckets, index + 1, after, limit, posts);
+        });
+    }
+
+    private static PostPageDto lastPage(List<PostStreamDto> posts) {
+        return new PostPageDto(TreePVector.from(posts), Optional.empty());
+    }
+
+    static String bucketOf(Instant timestamp) {
+        return bucketDay(timestamp).toString();
+    }
+
+    private static LocalDate bucketDay(Instant timestamp) {
+        return timestamp.atZone(ZoneOffset.UTC).toLocalDate();
+    }
+
+    /**
+     * The clustering key of a posting, encoded as an opaque page cursor.
+     */
+    private static final class PostKey {
+        private final Instant dateCreated;
+        private final String postId;
+
+        private PostKey(Instant dateCreated, String postId) {
+            this.dateCreated = dateCreated;
+            this.postId = postId;
+        }
+
+        private String encode() {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                    (dateCreated.toEpochMilli() + ":" + postId).getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static PostKey decode(String cursor) {
+            try {
+                String key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int separator = key.indexOf(':');
+                return new PostKey(Instant.ofEpochMilli(Long.parseLong(key.substring(0, separator))),
+                        key.substring(separator + 1));
+            } catch (RuntimeException e) {
+                throw new BadRequest("Invalid cursor: " + cursor);
+            }
+        }
+    }
+
+    /**
+     * Streams every account. Rows are fetched page by page as the consumer pulls, so memory use does
+     * not depend on the size of the table.
+     */
+    public Source<AccountStreamDto, NotUsed> streamAllAccounts() {
+        return export(SELECT_ALL_ACCOUNTS)
+                .map(BookentryStreamRepository::convertRowToAccountStreamDto);
+    }
+
+    /**
+     * Streams every posting, page by page as the consumer pulls.
+     */
+    public Source<PostStreamDto, NotUsed> streamAllPosts() {
+        return export(SELECT_ALL_POSTS)
+                .map(BookentryStreamRepository::convertRowToPostStreamDto);
+    }
+
+    private Source<Row, NotUsed> export(String cql, Object... values) {
+        return Source.fromSourceCompletionStage(session().thenApply(db ->
+                db.session.select(db.bind(cql, values).setFetchSize(exportFetchSize))))
+                .mapMaterializedValue(notUsed -> NotUsed.getInstance());
     }
 
     public CompletionStage<PSequence<PostStreamDto>> getAllPosts() {
-        return session().thenComposeAsync(session ->
-                session.selectAll("SELECT post_id, account_number, reference, narrative, amount, balance, date_created FROM account_post")
-        ).thenApplyAsync(rows -> TreePVector.from(
+        return selectAll(SELECT_ALL_POSTS).thenApplyAsync(rows -> TreePVector.from(
                 rows.stream()
                         .map(BookentryStreamRepository::convertRowToPostStreamDto)
                         .collect(Collectors.toList())));
     }
 
+    /**
+     * The session together with the statements prepared on it.
+     */
+    private static final class PreparedSession {
+        private final CassandraSession session;
+        private final Map<String, PreparedStatement> statements;
+
+        private PreparedSession(CassandraSession session, Map<String, PreparedStatement> statements) {
+            this.session = session;
+            this.statements = statements;
+        }
+
+        private BoundStatement bind(String cql, Object... values) {
+            PreparedStatement statement = statements.get(cql);
+            if (statement == null) {
+                throw new IllegalArgumentException("Statement not prepared: " + cql);
+            }
+            return statement.bind(values);
+        }
+    }
 }
@@ -1,18 +1,30 @@
 package com.globalbank.bookentry.stream.impl;
 
 import akka.NotUsed;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
 import akka.stream.javadsl.Source;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
+import com.typesafe.config.Config;
 import org.pcollections.PSequence;
 import org.pcollections.TreePVector;
 import com.globalbank.bookentry.api.BookentryService;
 import com.globalbank.bookentry.stream.api.AccountStreamDto;
+import com.globalbank.bookentry.stream.api.BalanceAsOfDto;
 import com.globalbank.bookentry.stream.api.BookentryStreamService;
+import com.globalbank.bookentry.stream.api.LaneStatsDto;
+import com.globalbank.bookentry.stream.api.PostPageDto;
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
 import com.globalbank.bookentry.stream.api.PostStreamDto;
+import com.globalbank.bookentry.stream.api.TrialBalanceDto;
 
 import javax.inject.Inject;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
 
 import static java.util.concurrent.CompletableFuture.completedFuture;
 
@@ -20,45 +32,150 @@ public class BookentryStreamServiceImpl implements BookentryStreamService {
 
     private final BookentryService bookentryService;
     private final BookentryStreamRepository repository;
+    private final ProjectionStats projectionStats;
+    private final AccountDirectory accountDirectory;
+    private final PostingArchive postingArchive;
+    private final LedgerTotals ledgerTotals;
+    private final Materializer materializer;
+    private final int directBatchSize;
+    private final Duration directBatchWindow;
+    private final int directParallelism;
+    private final int autonomousParallelism;
 
     @Inject
-    public BookentryStreamServiceImpl(BookentryService bookentryService, BookentryStreamRepository repository) {
+    public BookentryStreamServiceImpl(BookentryService bookentryService, BookentryStreamRepository repository,
+                                      ProjectionStats projectionStats, AccountDirectory accountDirectory,
+                                      PostingArchive postingArchive, LedgerTotals ledgerTotals,
+                                      Materializer materializer, Config config) {
         this.bookentryService = bookentryService;
         this.repository = repository;
+        this.projectionStats = projectionStats;
+        this.accountDirectory = accountDirectory;
+        this.postingArchive = postingArchive;
+        this.ledgerTotals = ledgerTotals;
+        this.materializer = materializer;
+        this.directBatchSize = config.getInt("bookentry-stream.direct-stream.batch-size");
+        this.directBatchWindow = config.getDuration("bookentry-stream.direct-stream.batch-window");
+        this.directParallelism = config.getInt("bookentry-stream.direct-stream.parallelism");
+        this.autonomousParallelism = config.getInt("bookentry-stream.autonomous-stream.parallelism");
     }
 
     @Override
     public ServiceCall<Source<String, NotUsed>, Source<AccountStreamDto, NotUsed>> directStream() {
+        // account numbers are read in batches, one request for up to batch-size accounts
         return accountNumbers -> completedFuture(
-                accountNumbers.mapAsync(8, accountNumber ->
-                        bookentryService.readAccount(accountNumber).invoke()
-                                .thenApplyAsync(readAccountDto ->
-                                        new AccountStreamDto(readAccountDto.accountNumber, readAccountDto.accountName,
-                                                readAccountDto.accountType, readAccountDto.currencyCode,
-                                                        Instant.parse(readAccountDto.timestamp)))));
+                accountNumbers.groupedWithin(directBatchSize, directBatchWindow)
+                        .mapAsync(directParallelism, batch -> bookentryService.readAccounts().invoke(TreePVector.from(batch)))
+                        .mapConcat(readAccountDtos -> readAccountDtos)
+                        .map(readAccountDto -> new AccountStreamDto(readAccountDto.accountNumber, readAccountDto.accountName,
+                                readAccountDto.accountType, readAccountDto.currencyCode,
+                                        Instant.parse(readAccountDto.timestamp))));
     }
 
     @Override
     public ServiceCall<Source<String, NotUsed>, Source<AccountStreamDto, NotUsed>> autonomousStream() {
         return accountNumbers -> completedFuture(
-                accountNumbers.mapAsync(8, accountNumber ->
-                        repository.getAccount(accountNumber)
-                                .thenApplyAsync(accountStreamDtoOptional -> accountStreamDtoOptional.get())
-                                .thenApplyAsync(accountStreamDto ->
-                                        new AccountStreamDto(accountStreamDto.getAccountNumber(), accountStreamDto.getAccountName(),
-                                                accountStreamDto.getAccountType(), accountStreamDto.getCurrencyCode(),
-                                                        accountStreamDto.getDateCreated()))));
+                accountNumbers.mapAsync(autonomousParallelism, accountNumber -> {
+                    Optional<AccountStreamDto> account = accountDirectory.get(accountNumber);
+                    if (account.isPresent()) {
+                        return completedFuture(account.get());
+                    }
+                    // not in the local directory yet, read it from Cassandra and remember it
+                    return repository.getAccount(accountNumber)
+                            .thenApply(accountStreamDtoOptional -> {
+                                accountStreamDtoOptional.ifPresent(accountDirectory::put);
+                                return accountStreamDtoOptional.get();
+                            });
+                }));
     }
 
     @Override
     public ServiceCall<NotUsed, PSequence<AccountStreamDto>> getAccounts() {
-        return notUsed -> repository.getAllAccounts()
-                .thenApplyAsync(accountStreamDtos -> TreePVector.from(accountStreamDtos));
+        return notUsed -> repository.getAllAccounts();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, Source<AccountStreamDto, NotUsed>> exportAccounts() {
+        return notUsed -> completedFuture(repository.streamAllAccounts());
+    }
+
+    @Override
+    public ServiceCall<NotUsed, Source<PostStreamDto, NotUsed>> exportPosts() {
+        return notUsed -> completedFuture(repository.streamAllPosts());
     }
 
     @Override
     public ServiceCall<NotUsed, PSequence<PostStreamDto>> getAccountPosts(String accountNumber) {
-        return notUsed -> repository.getAccountPosts(accountNumber)
-                .thenApplyAsync(postStreamDtos -> TreePVector.from(postStreamDtos));
+        // the whole history, oldest first, read day by day and page by page, only the answer is held at once
+        return notUsed -> repository.streamAccountPosts(accountNumber, Instant.EPOCH, Instant.now())
+                .runWith(Sink.seq(), materializer)
+                .thenApply(TreePVector::from);
+    }
+
+    @Override
+    public ServiceCall<NotUsed, PostPageDto> getAccountPostsPage(String accountNumber, Optional<String> from,
+                                                                 Optional<String> to, Optional<String> cursor,
+                                                                 Optional<Integer> limit) {
+        return notUsed -> {
+            Instant toInstant = to.map(this::parseInstant).orElseGet(Instant::now);
+            int pageSize = limit.orElse(100);
+            if (pageSize < 1 || pageSize > BookentryStreamRepository.MAX_PAGE_SIZE) {
+                throw new BadRequest("limit must be between 1 and " + BookentryStreamRepository.MAX_PAGE_SIZE);
+            }
+
+            if (from.isPresent()) {
+                return repository.getAccountPosts(accountNumber, parseInstant(from.get()), toInstant, cursor, pageSize);
+            }
+            // without a lower bound, the account creation bounds the buckets to look at
+            return repository.getAccount(accountNumber)
+                    .thenComposeAsync(account -> account.isPresent() ?
+                            repository.getAccountPosts(accountNumber, account.get().getDateCreated(), toInstant, cursor, pageSize) :
+                            completedFuture(new PostPageDto(TreePVector.empty(), Optional.empty())));
+        };
+    }
+
+    @Override
+    public ServiceCall<NotUsed, Source<PostStreamDto, NotUsed>> getAccountStatement(String accountNumber,
+                                                                                    Optional<String> from,
+                                                                                    Optional<String> to) {
+        return notUsed -> {
+            Instant toInstant = to.map(this::parseInstant).orElseGet(Instant::now);
+            CompletionStage<Optional<Instant>> fromInstant = from.isPresent() ?
+                    completedFuture(Optional.of(parseInstant(from.get()))) :
+                    repository.getAccount(accountNumber).thenApply(account -> account.map(AccountStreamDto::getDateCreated));
+            return fromInstant.thenApply(start -> {
+                if (!start.isPresent()) {
+                    return Source.<PostStreamDto>empty();
+                }
+                if (postingArchive.covers(accountNumber, start.get())) {
+                    return postingArchive.statement(accountNumber, start.get(), toInstant);
+                }
+                // the archive of this node may miss postings of the range, read it from the read model
+                return repository.streamAccountPosts(accountNumber, start.get(), toInstant);
+            });
+        };
+    }
+
+    @Override
+    public ServiceCall<NotUsed, BalanceAsOfDto> getAccountBalanceAsOf(String accountNumber, Optional<String> at) {
+        return notUsed -> repository.getBalanceAsOf(accountNumber, at.map(this::parseInstant).orElseGet(Instant::now));
+    }
+
+    private Instant parseInstant(String instant) {
+        try {
+            return Instant.parse(instant);
+        } catch (DateTimeParseException e) {
+            throw new BadRequest("Invalid instant: " + instant);
+        }
+    }
+
+    @Override
+    public ServiceCall<NotUsed, TrialBalanceDto> getTrialBalance() {
+        return notUsed -> ledgerTotals.trialBalance();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, PSequence<LaneStatsDto>> getProjectionLanes() {
+        return notUsed -> completedFuture(projectionStats.snapshot());
     }
 }
@@ -1,49 +1,160 @@
 package com.globalbank.bookentry.stream.impl;
 
 import akka.Done;
+import akka.NotUsed;
 import akka.stream.javadsl.Flow;
+import com.lightbend.lagom.javadsl.api.broker.Message;
+import com.typesafe.config.Config;
 import lombok.extern.slf4j.Slf4j;
 import com.globalbank.bookentry.api.AccountEvent;
 import com.globalbank.bookentry.api.BookentryService;
+import com.globalbank.bookentry.stream.api.AccountStreamDto;
 
 import javax.inject.Inject;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
 
 /**
  * This subscribes to the BookentryService event stream.
+ * <p>
+ * In the sequential projection mode events are written one at a time. In the lanes mode events are
+ * grouped by size or time, each group is split into lanes by account number and every lane is written
+ * in batches of one Cassandra partition each, the lanes in parallel. A group is only written once the previous one completed, so
+ * events of an account are always written in order. Added accounts are also kept in the
+ * {@link AccountDirectory} once written. Once written, the postings of each group (or event) are appended
+ * to the {@link PostingArchive} and added to the {@link LedgerTotals}, which both need the Kafka metadata
+ * of the messages, to track the partitions archived and to count every posting once.
  */
 
 @Slf4j
 public class BookentryStreamSubscriber {
 
+    private final BookentryStreamRepository repository;
+    private final ProjectionStats projectionStats;
+    private final AccountDirectory accountDirectory;
+    private final PostingArchive postingArchive;
+    private final LedgerTotals ledgerTotals;
+
     @Inject
-    public BookentryStreamSubscriber(BookentryService bookentryService, BookentryStreamRepository repository) {
+    public BookentryStreamSubscriber(BookentryService bookentryService, BookentryStreamRepository repository,
+                                     ProjectionStats projectionStats, AccountDirectory accountDirectory,
+                                     PostingArchive postingArchive, LedgerTotals ledgerTotals, Config config) {
+        this.repository = repository;
+        this.projectionStats = projectionStats;
+        this.accountDirectory = accountDirectory;
+        this.postingArchive = postingArchive;
+        this.ledgerTotals = ledgerTotals;
+
+        String mode = config.getString("bookentry-stream.projection.mode");
+        Flow<Message<AccountEvent>, Done, NotUsed> projection;
+        if ("lanes".equals(mode)) {
+            int batchSize = config.getInt("bookentry-stream.projection.batch-size");
+            Duration batchWindow = config.getDuration("bookentry-stream.projection.batch-window");
+            log.info("Projecting account events in {} lanes, batches of up to {} within {}",
+                    projectionStats.laneCount(), batchSize, batchWindow);
+
+            projection = Flow.<Message<AccountEvent>>create()
+                    .groupedWithin(batchSize, batchWindow)
+                    .mapAsync(1, this::projectBatch)
+                    .mapConcat(dones -> dones);
+        } else {
+            log.info("Projecting account events sequentially");
+            projection = Flow.<Message<AccountEvent>>create().mapAsync(1, this::projectMessage);
+        }
+
         // Create a subscriber
         bookentryService.accountEvents().subscribe()
+                // With the partition and offset of each message
+                .withMetadata()
                 // And subscribe to it with at least once processing semantics.
-                .atLeastOnce(
-                        // Create a flow that emits a Done for each message it processes
-                        Flow.<AccountEvent>create().mapAsync(1, event -> {
-                            log.info("Got Event  : {} | {}", event.getAccountNumber(), event.getClass().getSimpleName());
-                            if (event instanceof AccountEvent.AccountAdded) {
-                                AccountEvent.AccountAdded accountAdded = (AccountEvent.AccountAdded) event;
-                                log.info("Received AccountAdded Event : {}|{}", accountAdded.accountNumber, accountAdded.accountName);
-                                // Create the account
-                                return repository.createAccount(accountAdded.getAccountNumber(), accountAdded.getAccountName(),
-                                        accountAdded.accountType, accountAdded.currencyCode, Instant.parse(accountAdded.timestamp));
-                            } else if (event instanceof AccountEvent.PostAdded) {
-                                AccountEvent.PostAdded postAdded = (AccountEvent.PostAdded) event;
-                                log.info("Received PostAdded Event : {}|{}", postAdded.accountNumber, postAdded.amount);
-                                // Create the post
-                                return repository.createPost(postAdded.getAccountNumber(), postAdded.getReference(),
-                                        postAdded.getNarrative(), postAdded.getAmount(), postAdded.getBalance(),
-                                            Instant.parse(postAdded.timestamp));
-                            } else {
-                                // Ignore all other events
-                                return CompletableFuture.completedFuture(Done.getInstance());
-                            }
-                        })
-                );
+                // The projection emits a Done for each message it processes, in order
+                .atLeastOnce(projection);
+    }
+
+    private CompletionStage<Done> projectMessage(Message<AccountEvent> message) {
+        List<Message<AccountEvent>> messages = Collections.singletonList(message);
+        return projectEvent(message.getPayload())
+                .thenCompose(done -> {
+                    postingArchive.append(messages);
+                    return ledgerTotals.apply(messages);
+                });
+    }
+
+    private CompletionStage<Done> projectEvent(AccountEvent event) {
+        log.debug("Got Event  : {} | {}", event.getAccountNumber(), event.getClass().getSimpleName());
+        if (event instanceof AccountEvent.AccountAdded) {
+            AccountEvent.AccountAdded accountAdded = (AccountEvent.AccountAdded) event;
+            // Create the account
+            return repository.createAccount(accountAdded.getAccountNumber(), accountAdded.getAccountName(),
+                    accountAdded.accountType, accountAdded.currencyCode, Instant.parse(accountAdded.timestamp))
+                    .thenApply(done -> {
+                        remember(accountAdded);
+                        return done;
+                    });
+        } else if (event instanceof AccountEvent.PostAdded) {
+            AccountEvent.PostAdded postAdded = (AccountEvent.PostAdded) event;
+            // Create the post
+            return repository.createPost(postAdded.getAccountNumber(), postAdded.getReference(),
+                    postAdded.getNarrative(), postAdded.getAmount(), postAdded.getBalance(),
+                        Instant.parse(postAdded.timestamp));
+        } else {
+            // Ignore all other events
+            return CompletableFuture.completedFuture(Done.getInstance());
+        }
+    }
+
+    private CompletionStage<List<Done>> projectBatch(List<Message<AccountEvent>> messages) {
+        List<AccountEvent> batch = messages.stream().map(Message::getPayload).collect(Collectors.toList());
+        // keep the order of each lane, which keeps the order of each account
+        Map<Integer, List<AccountEvent>> lanes = new TreeMap<>();
+        for (AccountEvent event : batch) {
+            lanes.computeIfAbsent(laneOf(event.getAccountNumber()), lane -> new ArrayList<>()).add(event);
+        }
+
+        List<CompletableFuture<Done>> writes = new ArrayList<>();
+        lanes.forEach((lane, events) -> writes.add(repository.createBatch(events)
+                .thenApply(done -> {
+                    events.stream()
+                            .filter(event -> event instanceof AccountEvent.AccountAdded)
+                            .forEach(event -> remember((AccountEvent.AccountAdded) event));
+                    projectionStats.record(lane, events.size(), timestampOf(events.get(events.size() - 1)));
+                    return done;
+                }).toCompletableFuture()));
+
+        log.debug("Projected {} events in {} lanes", batch.size(), lanes.size());
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]))
+                .thenCompose(allDone -> {
+                    postingArchive.append(messages);
+                    return ledgerTotals.apply(messages);
+                })
+                .thenApply(totalsDone -> Collections.nCopies(batch.size(), Done.getInstance()));
+    }
+
+    private void remember(AccountEvent.AccountAdded accountAdded) {
+        accountDirectory.put(new AccountStreamDto(accountAdded.getAccountNumber(), accountAdded.getAccountName(),
+                accountAdded.accountType, accountAdded.currencyCode, Instant.parse(accountAdded.timestamp)));
+    }
+
+    private int laneOf(String accountNumber) {
+        return Math.floorMod(accountNumber.hashCode(), projectionStats.laneCount());
+    }
+
+    private static Instant timestampOf(AccountEvent event) {
+        if (event instanceof AccountEvent.AccountAdded) {
+            return Instant.parse(((AccountEvent.AccountAdded) event).timestamp);
+        } else if (event instanceof AccountEvent.PostAdded) {
+            return Instant.parse(((AccountEvent.PostAdded) event).timestamp);
+        } else if (event instanceof AccountEvent.AccountDetailsChanged) {
+            return Instant.parse(((AccountEvent.AccountDetailsChanged) event).timestamp);
+        }
+        return null;
     }
 }
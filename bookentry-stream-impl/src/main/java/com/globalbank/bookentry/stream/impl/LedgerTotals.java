@@ -0,0 +1,358 @@
+package com.globalbank.bookentry.stream.impl;
+
+import akka.Done;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.globalbank.bookentry.api.AccountEvent;
+import com.globalbank.bookentry.stream.api.LedgerTotalDto;
+import com.globalbank.bookentry.stream.api.TrialBalanceDto;
+import com.lightbend.lagom.javadsl.api.broker.Message;
+import com.lightbend.lagom.javadsl.broker.kafka.KafkaMetadataKeys;
+import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraSession;
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+import org.pcollections.TreePVector;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Running totals of the postings per Kafka partition, currency and account type, kept in memory for the
+ * partitions this node consumes, so the trial balance is answered without reading any account or posting.
+ * <p>
+ * Postings are classified by the currency and type the read model holds for their account. After every
+ * group of events the projection writes, the totals of each partition that changed are checkpointed to
+ * ledger_totals_by_partition in one batch per partition, together with the Kafka offset reached in it,
+ * which is a static column of the same Cassandra partition. Events redelivered at or below that offset,
+ * after a restart, were already counted and are skipped, so the totals count every posting once. When a
+ * partition continues past a gap, e.g. after another node consumed it meanwhile, its totals are read
+ * again first. The trial balance sums the checkpoints of every partition, whichever node wrote them.
+ */
+@Slf4j
+@Singleton
+public class LedgerTotals {
+
+    static final String UNKNOWN = "UNKNOWN";
+    // totals of messages without Kafka metadata, which have no offset to skip redeliveries by
+    static final int NO_PARTITION = -1;
+
+    private static final String SELECT_TOTALS = "SELECT topic_partition, currency_code, account_type, credits, " +
+            "debits, postings, last_posted, last_offset FROM ledger_totals_by_partition";
+    private static final String SELECT_PARTITION_TOTALS = SELECT_TOTALS + " WHERE topic_partition = ?";
+    private static final String INSERT_TOTALS = "INSERT INTO ledger_totals_by_partition (topic_partition, " +
+            "currency_code, account_type, credits, debits, postings, last_posted) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_OFFSET = "UPDATE ledger_totals_by_partition SET last_offset = ? " +
+            "WHERE topic_partition = ?";
+
+    private final CassandraSession session;
+    private final BookentryStreamRepository repository;
+    private final AccountDirectory accountDirectory;
+    private final boolean enabled;
+
+    // changed only by the projection, one group of events at a time
+    private final Map<Integer, Map<List<String>, Totals>> totals = new HashMap<>();
+    private final Map<Integer, Long> offsets = new HashMap<>();
+    private final Map<Integer, Set<List<String>>> unsavedTotals = new HashMap<>();
+    private final Set<Integer> unsavedOffsets = new HashSet<>();
+
+    // completes once the tables are created and the statements prepared
+    private CompletableFuture<Done> loaded;
+    private PreparedStatement insertTotals;
+    private PreparedStatement updateOffset;
+
+    @Inject
+    public LedgerTotals(CassandraSession session, BookentryStreamRepository repository,
+                        AccountDirectory accountDirectory, Config config) {
+        this.session = session;
+        this.repository = repository;
+        this.accountDirectory = accountDirectory;
+        this.enabled = config.getBoolean("bookentry-stream.ledger-totals.enabled");
+        if (enabled) {
+            load();
+        }
+    }
+
+    /**
+     * The totals of all partitions, as of their last checkpoint.
+     */
+    public CompletionStage<TrialBalanceDto> trialBalance() {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(new TrialBalanceDto(Optional.empty(), TreePVector.empty(),
+                    TreePVector.empty()));
+        }
+        return load().thenCompose(done -> session.selectAll(SELECT_TOTALS)).thenApply(rows -> {
+            Map<List<String>, Totals> accountTypes = new TreeMap<>(Comparator.comparing((List<String> bucket) -> bucket.get(0))
+                    .thenComparing(bucket -> bucket.get(1), Comparator.nullsFirst(Comparator.naturalOrder())));
+            rows.stream().filter(row -> row.getString("currency_code") != null).forEach(row -> {
+                Totals partitionTotals = totalsOf(row);
+                accountTypes.computeIfAbsent(bucketOf(partitionTotals.currencyCode, partitionTotals.accountType),
+                        Totals::new).merge(partitionTotals);
+            });
+
+            Map<String, Totals> currencies = new TreeMap<>();
+            accountTypes.values().forEach(bucketTotals -> currencies
+                    .computeIfAbsent(bucketTotals.currencyCode, currency -> new Totals(bucketOf(currency, null)))
+                    .merge(bucketTotals));
+
+            return new TrialBalanceDto(
+                    accountTypes.values().stream().map(bucketTotals -> bucketTotals.lastPosted).max(Comparator.naturalOrder()),
+                    TreePVector.from(currencies.values().stream().map(Totals::toDto).collect(Collectors.toList())),
+                    TreePVector.from(accountTypes.values().stream().map(Totals::toDto).collect(Collectors.toList())));
+        });
+    }
+
+    /**
+     * Adds the postings of a group of projected events, then checkpoints the totals.
+     */
+    public CompletionStage<Done> apply(List<Message<AccountEvent>> messages) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(Done.getInstance());
+        }
+        return load().thenCompose(loadDone -> reloadAfterGaps(messages)).thenCompose(reloadDone -> {
+            List<AccountEvent> events = messages.stream().map(Message::getPayload).collect(Collectors.toList());
+            return classify(events).thenCompose(classes -> {
+                for (Message<AccountEvent> message : messages) {
+                    if (counted(message) || !(message.getPayload() instanceof AccountEvent.PostAdded)) {
+                        continue;
+                    }
+                    AccountEvent.PostAdded postAdded = (AccountEvent.PostAdded) message.getPayload();
+                    int partition = partitionOf(message);
+                    List<String> bucket = classes.get(postAdded.getAccountNumber());
+                    totals.computeIfAbsent(partition, p -> new HashMap<>()).computeIfAbsent(bucket, Totals::new)
+                            .add(postAdded.getAmount(), Instant.parse(postAdded.getTimestamp()));
+                    unsavedTotals.computeIfAbsent(partition, p -> new HashSet<>()).add(bucket);
+                }
+                messages.forEach(this::advance);
+                return checkpoint();
+            });
+        });
+    }
+
+    private static int partitionOf(Message<AccountEvent> message) {
+        Optional<Integer> partition = message.get(KafkaMetadataKeys.PARTITION);
+        return partition.isPresent() && message.get(KafkaMetadataKeys.OFFSET).isPresent() ? partition.get() : NO_PARTITION;
+    }
+
+    private boolean counted(Message<AccountEvent> message) {
+        Optional<Integer> partition = message.get(KafkaMetadataKeys.PARTITION);
+        Optional<Long> offset = message.get(KafkaMetadataKeys.OFFSET);
+        return partition.isPresent() && offset.isPresent() && offset.get() <= offsets.getOrDefault(partition.get(), -1L);
+    }
+
+    private void advance(Message<AccountEvent> message) {
+        Optional<Integer> partition = message.get(KafkaMetadataKeys.PARTITION);
+        Optional<Long> offset = message.get(KafkaMetadataKeys.OFFSET);
+        if (partition.isPresent() && offset.isPresent() && !counted(message)) {
+            offsets.put(partition.get(), offset.get());
+            unsavedOffsets.add(partition.get());
+        }
+    }
+
+    /**
+     * Reads the checkpoint of every partition of the group that does not continue where this node left
+     * it, as another node may have counted the messages in between, or that this node has not read yet.
+     */
+    private CompletionStage<Done> reloadAfterGaps(List<Message<AccountEvent>> messages) {
+        Set<Integer> gaps = new LinkedHashSet<>();
+        Set<Integer> seen = new HashSet<>();
+        for (Message<AccountEvent> message : messages) {
+            int partition = partitionOf(message);
+            if (!seen.add(partition)) {
+                continue;
+            }
+            if (partition == NO_PARTITION) {
+                if (!totals.containsKey(partition)) {
+                    gaps.add(partition);
+                }
+            } else if (!offsets.containsKey(partition)
+                    || message.get(KafkaMetadataKeys.OFFSET).get() > offsets.get(partition) + 1) {
+                gaps.add(partition);
+            }
+        }
+
+        List<CompletableFuture<Void>> reloads = new ArrayList<>();
+        for (int partition : gaps) {
+            reloads.add(session.selectAll(SELECT_PARTITION_TOTALS, partition).thenAccept(rows -> {
+                Map<List<String>, Totals> partitionTotals = new HashMap<>();
+                offsets.remove(partition);
+                for (Row row : rows) {
+                    if (!row.isNull("last_offset")) {
+                        offsets.put(partition, row.getLong("last_offset"));
+                    }
+                    if (row.getString("currency_code") != null) {
+                        Totals bucketTotals = totalsOf(row);
+                        partitionTotals.put(bucketOf(bucketTotals.currencyCode, bucketTotals.accountType), bucketTotals);
+                    }
+                }
+                totals.put(partition, partitionTotals);
+                log.debug("Read the ledger totals of partition {} up to offset {}", partition, offsets.get(partition));
+            }).toCompletableFuture());
+        }
+        return CompletableFuture.allOf(reloads.toArray(new CompletableFuture[0])).thenApply(allDone -> Done.getInstance());
+    }
+
+    /**
+     * Returns the currency and type of every account posted to, from the events themselves, the
+     * account directory or the read model.
+     */
+    private CompletionStage<Map<String, List<String>>> classify(List<AccountEvent> events) {
+        Map<String, List<String>> classes = new ConcurrentHashMap<>();
+        for (AccountEvent event : events) {
+            if (event instanceof AccountEvent.AccountAdded) {
+                AccountEvent.AccountAdded accountAdded = (AccountEvent.AccountAdded) event;
+                classes.put(accountAdded.getAccountNumber(), bucketOf(accountAdded.currencyCode, accountAdded.accountType));
+            }
+        }
+
+        List<CompletableFuture<Void>> lookups = new ArrayList<>();
+        events.stream()
+                .filter(event -> event instanceof AccountEvent.PostAdded)
+                .map(AccountEvent::getAccountNumber)
+                .filter(accountNumber -> !classes.containsKey(accountNumber))
+                .distinct()
+                .forEach(accountNumber -> {
+                    Optional<List<String>> cached = accountDirectory.get(accountNumber)
+                            .map(account -> bucketOf(account.getCurrencyCode(), account.getAccountType()));
+                    if (cached.isPresent()) {
+                        classes.put(accountNumber, cached.get());
+                        return;
+                    }
+                    lookups.add(repository.getAccount(accountNumber).thenAccept(account -> {
+                        if (!account.isPresent()) {
+                            log.warn("Ledger totals count the postings of unknown account {} as {}", accountNumber, UNKNOWN);
+                        }
+                        classes.put(accountNumber, account
+                                .map(found -> bucketOf(found.getCurrencyCode(), found.getAccountType()))
+                                .orElse(bucketOf(UNKNOWN, UNKNOWN)));
+                    }).toCompletableFuture());
+                });
+        return CompletableFuture.allOf(lookups.toArray(new CompletableFuture[0])).thenApply(allDone -> classes);
+    }
+
+    /**
+     * Writes the totals and offset of each partition that changed in a batch of its own, a single
+     * Cassandra partition, the partitions in parallel.
+     */
+    private CompletionStage<Done> checkpoint() {
+        Set<Integer> partitions = new HashSet<>(unsavedTotals.keySet());
+        partitions.addAll(unsavedOffsets);
+        List<CompletableFuture<Done>> writes = new ArrayList<>();
+        for (int partition : partitions) {
+            BatchStatement batch = new BatchStatement();
+            unsavedTotals.getOrDefault(partition, new HashSet<>()).forEach(bucket -> {
+                Totals bucketTotals = totals.get(partition).get(bucket);
+                batch.add(insertTotals.bind(partition, bucketTotals.currencyCode, bucketTotals.accountType,
+                        bucketTotals.credits, bucketTotals.debits, bucketTotals.postings,
+                        Timestamp.from(bucketTotals.lastPosted)));
+            });
+            if (unsavedOffsets.contains(partition)) {
+                batch.add(updateOffset.bind(offsets.get(partition), partition));
+            }
+            // if the write fails, the rows are written with the next checkpoint
+            writes.add(session.executeWriteBatch(batch).thenApply(done -> {
+                synchronized (this) {
+                    unsavedTotals.remove(partition);
+                    unsavedOffsets.remove(partition);
+                }
+                return done;
+            }).toCompletableFuture());
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).thenApply(allDone -> Done.getInstance());
+    }
+
+    private synchronized CompletionStage<Done> load() {
+        if (loaded == null || loaded.isCompletedExceptionally()) {
+            loaded = createTables()
+                    .thenCompose(done -> session.prepare(INSERT_TOTALS))
+                    .thenCompose(statement -> {
+                        insertTotals = statement;
+                        return session.prepare(UPDATE_OFFSET);
+                    })
+                    .thenApply(statement -> {
+                        updateOffset = statement;
+                        return Done.getInstance();
+                    }).toCompletableFuture();
+        }
+        return loaded;
+    }
+
+    private static Totals totalsOf(Row row) {
+        Totals bucketTotals = new Totals(bucketOf(row.getString("currency_code"), row.getString("account_type")));
+        bucketTotals.credits = row.getDecimal("credits");
+        bucketTotals.debits = row.getDecimal("debits");
+        bucketTotals.postings = row.getLong("postings");
+        bucketTotals.lastPosted = row.getTimestamp("last_posted").toInstant();
+        return bucketTotals;
+    }
+
+    private CompletionStage<Done> createTables() {
+        return session.executeCreateTable(
+                "CREATE TABLE IF NOT EXISTS ledger_totals_by_partition (topic_partition int, currency_code text, " +
+                        "account_type text, credits decimal, debits decimal, postings bigint, last_posted timestamp, " +
+                        "last_offset bigint static, PRIMARY KEY (topic_partition, currency_code, account_type))"
+        );
+    }
+
+    private static List<String> bucketOf(String currencyCode, String accountType) {
+        return Arrays.asList(currencyCode == null ? UNKNOWN : currencyCode, accountType);
+    }
+
+    private static final class Totals {
+        private final String currencyCode;
+        private final String accountType;
+        private BigDecimal credits = BigDecimal.ZERO;
+        private BigDecimal debits = BigDecimal.ZERO;
+        private long postings;
+        private Instant lastPosted = Instant.EPOCH;
+
+        private Totals(List<String> bucket) {
+            this.currencyCode = bucket.get(0);
+            this.accountType = bucket.get(1);
+        }
+
+        private void add(BigDecimal amount, Instant timestamp) {
+            if (amount.signum() >= 0) {
+                credits = credits.add(amount);
+            } else {
+                debits = debits.subtract(amount);
+            }
+            postings++;
+            if (timestamp.isAfter(lastPosted)) {
+                lastPosted = timestamp;
+            }
+        }
+
+        private void merge(Totals other) {
+            credits = credits.add(other.credits);
+            debits = debits.add(other.debits);
+            postings += other.postings;
+            if (other.lastPosted.isAfter(lastPosted)) {
+                lastPosted = other.lastPosted;
+            }
+        }
+
+        private LedgerTotalDto toDto() {
+            return new LedgerTotalDto(currencyCode, Optional.ofNullable(accountType), credits, debits,
+                    credits.subtract(debits), postings);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.globalbank.bookentry.stream.impl;
+
+import akka.Done;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the postings of the legacy account_post table into account_post_by_bucket on start up when
+ * bookentry-stream.posts.migrate-legacy is on. The copy keeps post ids, so it can be rerun safely.
+ * <p>
+ * Migration path: deploy with legacy-writes and migrate-legacy on, so new postings go to both tables
+ * while the old ones are copied; once the copy has completed, turn both off. account_post can then be dropped.
+ * The copied rows are found by paged reads and statements once {@link BalanceCheckpointBackfill} has indexed
+ * their days, which waits for the copy when both run.
+ */
+@Slf4j
+@Singleton
+public class LegacyPostMigration {
+
+    private final CompletableFuture<Done> completed = new CompletableFuture<>();
+
+    @Inject
+    public LegacyPostMigration(BookentryStreamRepository repository, Materializer materializer, Config config) {
+        if (!config.getBoolean("bookentry-stream.posts.migrate-legacy")) {
+            completed.complete(Done.getInstance());
+            return;
+        }
+
+        int parallelism = config.getInt("bookentry-stream.posts.migration-parallelism");
+        AtomicLong copied = new AtomicLong();
+        log.info("Copying legacy account_post rows to account_post_by_bucket");
+
+        repository.legacyPosts()
+                .mapAsyncUnordered(parallelism, row -> repository.copyLegacyPost(row)
+                        .thenApply(done -> {
+                            long count = copied.incrementAndGet();
+                            if (count % 10000 == 0) {
+                                log.info("Copied {} legacy postings", count);
+                            }
+                            return done;
+                        }))
+                .runWith(Sink.ignore(), materializer)
+                .whenComplete((done, throwable) -> {
+                    if (throwable != null) {
+                        log.error("Legacy posting migration failed after {} rows : {}", copied.get(), throwable.getMessage());
+                        completed.completeExceptionally(throwable);
+                    } else {
+                        log.info("Legacy posting migration completed, {} rows copied", copied.get());
+                        completed.complete(done);
+                    }
+                });
+    }
+
+    /**
+     * Completes once the copy has completed, at once when it is not enabled.
+     */
+    public CompletionStage<Done> completed() {
+        return completed;
+    }
+}
@@ -0,0 +1,660 @@
+package com.globalbank.bookentry.stream.impl;
+
+import akka.NotUsed;
+import akka.stream.ActorAttributes;
+import akka.stream.javadsl.Source;
+import com.globalbank.bookentry.api.AccountEvent;
+import com.globalbank.bookentry.stream.api.PostStreamDto;
+import com.lightbend.lagom.javadsl.api.broker.Message;
+import com.lightbend.lagom.javadsl.broker.kafka.KafkaMetadataKeys;
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * An optional local archive of postings for statements, fed by {@link BookentryStreamSubscriber}.
+ * <p>
+ * Postings are appended in a compact binary format to segment files, one series of segments per bucket
+ * of account numbers. Each record is framed by its length and a CRC32, so a torn tail is cut off on start
+ * up. Every index-interval bytes, the .idx file of the segment gets an entry with the position of the block
+ * and the time of its oldest and newest posting, a sparse index that lets a statement skip the blocks
+ * outside its range. Statements read the segments through memory-mapped buffers.
+ * <p>
+ * The archive only holds the postings of the Kafka partitions this node consumes, from the first message
+ * it archived of each. For every partition it keeps the next offset expected and the time from which it
+ * was archived without a gap, an offset skipped (e.g. consumed by another node meanwhile) restarts that
+ * time. A statement is answered from the archive only when the partition of its account is known and
+ * archived continuously since before the statement starts, see {@link #covers(String, Instant)}. The
+ * partitions are saved when the archive is closed and reset after a crash, as the tail of the segments
+ * may be lost with it. Events redelivered after a restart are appended again, statements drop the repeats.
+ */
+@Slf4j
+@Singleton
+public class PostingArchive {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String PARTITIONS_FILE = "partitions";
+    // payload length and CRC32 of the payload
+    private static final int RECORD_HEADER = 8;
+    // block start, end, oldest and newest posting in epoch millis
+    private static final int INDEX_ENTRY = 32;
+    // recently streamed postings remembered to drop redelivered ones
+    private static final int RECENT_POSTINGS = 10000;
+
+    private final boolean enabled;
+    private final long segmentSize;
+    private final long indexInterval;
+    private final Bucket[] buckets;
+    private final Path partitionsFile;
+    // continuity of each partition, guarded by itself
+    private final Map<Integer, PartitionRange> partitions = new TreeMap<>();
+    // partition of the accounts recently archived, least recently used dropped first
+    private final Map<String, Integer> accountPartitions;
+
+    @Inject
+    public PostingArchive(Config config, ApplicationLifecycle lifecycle) {
+        this.enabled = config.getBoolean("bookentry-stream.archive.enabled");
+        this.segmentSize = config.getBytes("bookentry-stream.archive.segment-size");
+        this.indexInterval = config.getBytes("bookentry-stream.archive.index-interval");
+        if (segmentSize >= Integer.MAX_VALUE) {
+            // segments are mapped as a single buffer
+            throw new IllegalArgumentException("bookentry-stream.archive.segment-size must be below 2 GiB");
+        }
+        int accountCount = config.getInt("bookentry-stream.archive.accounts");
+        this.accountPartitions = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > accountCount;
+            }
+        };
+        if (!enabled) {
+            this.buckets = new Bucket[0];
+            this.partitionsFile = null;
+            return;
+        }
+
+        Path directory = Paths.get(config.getString("bookentry-stream.archive.path"));
+        int bucketCount = config.getInt("bookentry-stream.archive.buckets");
+        try {
+            Files.createDirectories(directory);
+            this.partitionsFile = directory.resolve(PARTITIONS_FILE);
+            // only a clean close leaves the file, it is removed until the next one
+            if (Files.exists(partitionsFile)) {
+                for (String line : Files.readAllLines(partitionsFile, StandardCharsets.UTF_8)) {
+                    String[] fields = line.split(" ");
+                    partitions.put(Integer.parseInt(fields[0]),
+                            new PartitionRange(Instant.parse(fields[1]), Long.parseLong(fields[2])));
+                }
+                Files.delete(partitionsFile);
+            }
+
+            this.buckets = new Bucket[bucketCount];
+            for (int i = 0; i < bucketCount; i++) {
+                buckets[i] = new Bucket(directory.resolve(String.format("bucket-%03d", i)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open posting archive " + directory, e);
+        }
+        log.info("Opened posting archive {} with {} buckets, holding partitions {}", directory, bucketCount,
+                partitions);
+
+        lifecycle.addStopHook(() -> {
+            for (Bucket bucket : buckets) {
+                bucket.close();
+            }
+            savePartitions();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Whether the archive holds every posting of the account from the given moment on.
+     */
+    public boolean covers(String accountNumber, Instant from) {
+        if (!enabled) {
+            return false;
+        }
+        Integer partition;
+        synchronized (accountPartitions) {
+            partition = accountPartitions.get(accountNumber);
+        }
+        if (partition == null) {
+            return false;
+        }
+        synchronized (partitions) {
+            PartitionRange range = partitions.get(partition);
+            return range != null && !from.isBefore(range.since);
+        }
+    }
+
+    /**
+     * Appends the postings among the given messages, called once they are written to the read model, and
+     * moves on the partitions they came from.
+     */
+    public void append(List<Message<AccountEvent>> messages) {
+        if (!enabled) {
+            return;
+        }
+        Map<Integer, List<AccountEvent.PostAdded>> postsByBucket = messages.stream()
+                .map(Message::getPayload)
+                .filter(event -> event instanceof AccountEvent.PostAdded)
+                .map(event -> (AccountEvent.PostAdded) event)
+                .collect(Collectors.groupingBy(post -> bucketOf(post.getAccountNumber()), LinkedHashMap::new,
+                        Collectors.toList()));
+        postsByBucket.forEach((bucket, posts) -> buckets[bucket].append(posts));
+
+        for (Message<AccountEvent> message : messages) {
+            Optional<Integer> partition = message.get(KafkaMetadataKeys.PARTITION);
+            Optional<Long> offset = message.get(KafkaMetadataKeys.OFFSET);
+            if (!partition.isPresent() || !offset.isPresent()) {
+                continue;
+            }
+            synchronized (partitions) {
+                PartitionRange range = partitions.get(partition.get());
+                if (range == null || offset.get() > range.nextOffset) {
+                    Instant since = timestampOf(message.getPayload());
+                    if (range != null) {
+                        log.info("Partition {} skipped offsets {} to {}, archived again since {}", partition.get(),
+                                range.nextOffset, offset.get() - 1, since);
+                    }
+                    partitions.put(partition.get(), new PartitionRange(since, offset.get() + 1));
+                } else if (offset.get() == range.nextOffset) {
+                    partitions.put(partition.get(), new PartitionRange(range.since, offset.get() + 1));
+                }
+            }
+            synchronized (accountPartitions) {
+                accountPartitions.put(message.getPayload().getAccountNumber(), partition.get());
+            }
+        }
+    }
+
+    private void savePartitions() {
+        StringBuilder lines = new StringBuilder();
+        synchronized (partitions) {
+            partitions.forEach((partition, range) -> lines.append(partition).append(' ').append(range.since)
+                    .append(' ').append(range.nextOffset).append('\n'));
+        }
+        try {
+            Path saved = partitionsFile.resolveSibling(PARTITIONS_FILE + ".tmp");
+            Files.write(saved, lines.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(saved, partitionsFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Cannot save the partitions of posting archive {} : {}", partitionsFile, e.getMessage());
+        }
+    }
+
+    private static Instant timestampOf(AccountEvent event) {
+        if (event instanceof AccountEvent.AccountAdded) {
+            return Instant.parse(((AccountEvent.AccountAdded) event).timestamp);
+        } else if (event instanceof AccountEvent.PostAdded) {
+            return Instant.parse(((AccountEvent.PostAdded) event).timestamp);
+        } else if (event instanceof AccountEvent.AccountDetailsChanged) {
+            return Instant.parse(((AccountEvent.AccountDetailsChanged) event).timestamp);
+        }
+        return Instant.now();
+    }
+
+    /**
+     * The postings of an account between from and to, oldest first.
+     */
+    public Source<PostStreamDto, NotUsed> statement(String accountNumber, Instant from, Instant to) {
+        Bucket bucket = buckets[bucketOf(accountNumber)];
+        byte[] key = accountNumber.getBytes(StandardCharsets.UTF_8);
+        return Source.fromIterator(() -> new StatementIterator(bucket.segments(), key, from, to))
+                .statefulMapConcat(() -> {
+                    Map<String, Boolean> recent = new LinkedHashMap<String, Boolean>() {
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                            return size() > RECENT_POSTINGS;
+                        }
+                    };
+                    return post -> recent.put(post.getDateCreated() + "/" + post.getReference() + "/" + post.getAmount()
+                            + "/" + post.getNarrative(), Boolean.TRUE) == null ?
+                            Collections.singletonList(post) : Collections.<PostStreamDto>emptyList();
+                })
+                .withAttributes(ActorAttributes.dispatcher("akka.stream.default-blocking-io-dispatcher"));
+    }
+
+    private int bucketOf(String accountNumber) {
+        return Math.floorMod(accountNumber.hashCode(), buckets.length);
+    }
+
+    private static ByteBuffer encode(AccountEvent.PostAdded post) {
+        Instant timestamp = Instant.parse(post.getTimestamp());
+        byte[] accountNumber = utf8(post.getAccountNumber());
+        byte[] postId = utf8(UUID.randomUUID().toString());
+        byte[] reference = utf8(post.getReference());
+        byte[] narrative = utf8(post.getNarrative());
+        byte[] amount = post.getAmount().unscaledValue().toByteArray();
+        byte[] balance = post.getBalance().unscaledValue().toByteArray();
+
+        int payload = 12 + 2 * 4 + accountNumber.length + postId.length + reference.length + narrative.length
+                + 2 * 6 + amount.length + balance.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload);
+        record.putInt(payload).putInt(0);
+        record.putLong(timestamp.getEpochSecond()).putInt(timestamp.getNano());
+        // the account number comes first, so records of other accounts are skipped without decoding them
+        putBytes(record, accountNumber);
+        putBytes(record, postId);
+        putBytes(record, reference);
+        putBytes(record, narrative);
+        record.putInt(post.getAmount().scale());
+        putBytes(record, amount);
+        record.putInt(post.getBalance().scale());
+        putBytes(record, balance);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER, payload);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static byte[] utf8(String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Posting field too long for the archive: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static long epochMillis(long seconds, int nanos) {
+        return seconds * 1000 + nanos / 1_000_000;
+    }
+
+    /**
+     * The time from which a partition is archived without a gap, and the next offset expected of it.
+     */
+    private static final class PartitionRange {
+        private final Instant since;
+        private final long nextOffset;
+
+        private PartitionRange(Instant since, long nextOffset) {
+            this.since = since;
+            this.nextOffset = nextOffset;
+        }
+
+        @Override
+        public String toString() {
+            return "since " + since + " up to offset " + nextOffset;
+        }
+    }
+
+    /**
+     * The segments of one bucket, the last one being appended to. Appends to a bucket are serialized,
+     * reads work on a snapshot of its segments.
+     */
+    private final class Bucket {
+        private final Path directory;
+        private final List<Segment> segments = new ArrayList<>();
+
+        private Bucket(Path directory) throws IOException {
+            this.directory = directory;
+            Files.createDirectories(directory);
+            List<Path> files;
+            try (Stream<Path> list = Files.list(directory)) {
+                files = list.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+            for (int i = 0; i < files.size(); i++) {
+                Segment segment = Segment.open(files.get(i), indexInterval);
+                if (i < files.size() - 1) {
+                    segment.seal();
+                }
+                segments.add(segment);
+            }
+            if (segments.isEmpty()) {
+                segments.add(Segment.create(directory, 0, indexInterval));
+            }
+        }
+
+        private synchronized void append(List<AccountEvent.PostAdded> posts) {
+            try {
+                for (AccountEvent.PostAdded post : posts) {
+                    ByteBuffer record = encode(post);
+                    Segment active = segments.get(segments.size() - 1);
+                    if (active.size > 0 && active.size + record.remaining() > segmentSize) {
+                        active.seal();
+                        active = Segment.create(directory, segments.size(), indexInterval);
+                        segments.add(active);
+                    }
+                    Instant timestamp = Instant.parse(post.getTimestamp());
+                    active.append(record, epochMillis(timestamp.getEpochSecond(), timestamp.getNano()));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot append to posting archive " + directory, e);
+            }
+        }
+
+        private synchronized List<Segment> segments() {
+            return new ArrayList<>(segments);
+        }
+
+        private synchronized void close() {
+            try {
+                segments.get(segments.size() - 1).seal();
+            } catch (IOException e) {
+                log.error("Cannot close posting archive {} : {}", directory, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * One segment file and its sparse index. The segment is written by its bucket only, size and the
+     * index entries are published to readers once the bytes they cover are written.
+     */
+    private static final class Segment {
+        private final Path data;
+        private final Path index;
+        private final long indexInterval;
+        private final List<long[]> blocks = new ArrayList<>();
+
+        private FileChannel dataChannel;
+        private FileChannel indexChannel;
+        private volatile long size;
+
+        // the block being filled, not in the index yet
+        private long blockStart = -1;
+        private long blockOldest;
+        private long blockNewest;
+
+        private Segment(Path data, long indexInterval) throws IOException {
+            this.data = data;
+            String name = data.getFileName().toString();
+            this.index = data.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+            this.indexInterval = indexInterval;
+            this.dataChannel = FileChannel.open(data, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        private static Segment create(Path directory, long sequence, long indexInterval) throws IOException {
+            return new Segment(directory.resolve(String.format("%020d%s", sequence, SEGMENT_SUFFIX)), indexInterval);
+        }
+
+        /**
+         * Opens an existing segment: loads the index entries that cover written data, then checks the records
+         * after the last of them, indexing the valid ones and cutting the file off at the first torn one.
+         */
+        private static Segment open(Path data, long indexInterval) throws IOException {
+            Segment segment = new Segment(data, indexInterval);
+            long fileSize = segment.dataChannel.size();
+
+            ByteBuffer entries = ByteBuffer.allocate((int) (segment.indexChannel.size() / INDEX_ENTRY * INDEX_ENTRY));
+            segment.indexChannel.read(entries, 0);
+            entries.flip();
+            long indexed = 0;
+            while (entries.remaining() >= INDEX_ENTRY) {
+                long[] block = {entries.getLong(), entries.getLong(), entries.getLong(), entries.getLong()};
+                if (block[0] != indexed || block[1] > fileSize) {
+                    break;
+                }
+                segment.blocks.add(block);
+                indexed = block[1];
+            }
+            segment.indexChannel.truncate((long) segment.blocks.size() * INDEX_ENTRY);
+            segment.size = indexed;
+
+            if (fileSize > indexed) {
+                MappedByteBuffer buffer = segment.dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                long position = indexed;
+                while (position + RECORD_HEADER <= fileSize) {
+                    int length = buffer.getInt((int) position);
+                    if (length <= 0 || position + RECORD_HEADER + length > fileSize) {
+                        break;
+                    }
+                    ByteBuffer payload = buffer.duplicate();
+                    payload.position((int) position + RECORD_HEADER).limit((int) position + RECORD_HEADER + length);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload.duplicate());
+                    if ((int) crc.getValue() != buffer.getInt((int) position + 4)) {
+                        break;
+                    }
+                    long end = position + RECORD_HEADER + length;
+                    segment.track(position, end, epochMillis(payload.getLong(), payload.getInt()));
+                    position = end;
+                }
+                if (position < fileSize) {
+                    log.warn("Cutting off {} bytes of torn records at the end of {}", fileSize - position, data);
+                    segment.dataChannel.truncate(position);
+                }
+            }
+            return segment;
+        }
+
+        private void append(ByteBuffer record, long epochMillis) throws IOException {
+            long start = size;
+            long end = start + record.remaining();
+            while (record.hasRemaining()) {
+                dataChannel.write(record, start + record.position());
+            }
+            track(start, end, epochMillis);
+        }
+
+        private void track(long start, long end, long epochMillis) throws IOException {
+            if (blockStart < 0) {
+                blockStart = start;
+                blockOldest = epochMillis;
+                blockNewest = epochMillis;
+            } else {
+                blockOldest = Math.min(blockOldest, epochMillis);
+                blockNewest = Math.max(blockNewest, epochMillis);
+            }
+            size = end;
+            if (end - blockStart >= indexInterval) {
+                closeBlock();
+            }
+        }
+
+        private void closeBlock() throws IOException {
+            if (blockStart < 0) {
+                return;
+            }
+            long[] block = {blockStart, size, blockOldest, blockNewest};
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+            entry.putLong(block[0]).putLong(block[1]).putLong(block[2]).putLong(block[3]).flip();
+            synchronized (this) {
+                while (entry.hasRemaining()) {
+                    indexChannel.write(entry, (long) blocks.size() * INDEX_ENTRY + entry.position());
+                }
+                blocks.add(block);
+            }
+            blockStart = -1;
+        }
+
+        /**
+         * Indexes the last block and flushes the segment, no more records are appended to it.
+         */
+        private void seal() throws IOException {
+            if (dataChannel == null) {
+                return;
+            }
+            closeBlock();
+            dataChannel.force(true);
+            indexChannel.force(true);
+            dataChannel.close();
+            indexChannel.close();
+            dataChannel = null;
+            indexChannel = null;
+        }
+
+        /**
+         * The byte ranges that may hold postings between the given epoch millis: the indexed blocks that
+         * overlap them and the block still being filled.
+         */
+        private List<long[]> ranges(long fromMillis, long toMillis) {
+            long written = size;
+            List<long[]> ranges = new ArrayList<>();
+            long indexed = 0;
+            synchronized (this) {
+                for (long[] block : blocks) {
+                    if (block[1] > written) {
+                        break;
+                    }
+                    if (block[3] >= fromMillis && block[2] <= toMillis) {
+                        ranges.add(new long[]{block[0], block[1]});
+                    }
+                    indexed = block[1];
+                }
+            }
+            if (written > indexed) {
+                ranges.add(new long[]{indexed, written});
+            }
+            return ranges;
+        }
+    }
+
+    /**
+     * Walks the ranges of each segment that may hold postings of the statement, mapping one segment at
+     * a time, and decodes only the records of the account.
+     */
+    private static final class StatementIterator implements Iterator<PostStreamDto> {
+        private final Iterator<Segment> segments;
+        private final byte[] accountNumber;
+        private final Instant from;
+        private final Instant to;
+        private final long fromMillis;
+        private final long toMillis;
+
+        private MappedByteBuffer buffer;
+        private Iterator<long[]> ranges = Collections.emptyIterator();
+        private long position;
+        private long rangeEnd;
+        private PostStreamDto next;
+
+        private StatementIterator(List<Segment> segments, byte[] accountNumber, Instant from, Instant to) {
+            this.segments = segments.iterator();
+            this.accountNumber = accountNumber;
+            this.from = from;
+            this.to = to;
+            this.fromMillis = from.toEpochMilli();
+            this.toMillis = to.toEpochMilli();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (position < rangeEnd) {
+                    next = read();
+                } else if (ranges.hasNext()) {
+                    long[] range = ranges.next();
+                    position = range[0];
+                    rangeEnd = range[1];
+                } else if (segments.hasNext()) {
+                    mapSegment(segments.next());
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public PostStreamDto next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            PostStreamDto post = next;
+            next = null;
+            return post;
+        }
+
+        private void mapSegment(Segment segment) {
+            List<long[]> segmentRanges = segment.ranges(fromMillis, toMillis);
+            if (segmentRanges.isEmpty()) {
+                return;
+            }
+            long mappedSize = segmentRanges.get(segmentRanges.size() - 1)[1];
+            try (FileChannel channel = FileChannel.open(segment.data, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, mappedSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read posting archive segment " + segment.data, e);
+            }
+            ranges = segmentRanges.iterator();
+            position = 0;
+            rangeEnd = 0;
+        }
+
+        /**
+         * Reads the record at the current position and moves past it, returns null unless it is a
+         * posting of the account within the statement.
+         */
+        private PostStreamDto read() {
+            int length = buffer.getInt((int) position);
+            ByteBuffer record = buffer.duplicate();
+            record.position((int) position + RECORD_HEADER).limit((int) position + RECORD_HEADER + length);
+            position += RECORD_HEADER + length;
+
+            Instant dateCreated = Instant.ofEpochSecond(record.getLong(), record.getInt());
+            if (dateCreated.isBefore(from) || dateCreated.isAfter(to) || !isAccount(record)) {
+                return null;
+            }
+            String postId = new String(getBytes(record), StandardCharsets.UTF_8);
+            String reference = new String(getBytes(record), StandardCharsets.UTF_8);
+            String narrative = new String(getBytes(record), StandardCharsets.UTF_8);
+            int amountScale = record.getInt();
+            BigDecimal amount = new BigDecimal(new BigInteger(getBytes(record)), amountScale);
+            int balanceScale = record.getInt();
+            BigDecimal balance = new BigDecimal(new BigInteger(getBytes(record)), balanceScale);
+            return new PostStreamDto(postId, new String(accountNumber, StandardCharsets.UTF_8), reference, narrative,
+                    amount, balance, dateCreated);
+        }
+
+        private boolean isAccount(ByteBuffer record) {
+            int length = record.getShort() & 0xFFFF;
+            if (length != accountNumber.length) {
+                return false;
+            }
+            for (byte b : accountNumber) {
+                if (record.get() != b) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
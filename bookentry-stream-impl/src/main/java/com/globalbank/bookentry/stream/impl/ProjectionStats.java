@@ -0,0 +1,63 @@
+package com.globalbank.bookentry.stream.impl;
+
+import com.globalbank.bookentry.stream.api.LaneStatsDto;
+import com.typesafe.config.Config;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and lag of each lane of the account event projection. The lag of a lane is the age of
+ * the newest event it wrote, when that write completed.
+ */
+@Singleton
+public class ProjectionStats {
+
+    private final long startedNanos = System.nanoTime();
+    private final Lane[] lanes;
+
+    @Inject
+    public ProjectionStats(Config config) {
+        int laneCount = config.getInt("bookentry-stream.projection.lanes");
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    public int laneCount() {
+        return lanes.length;
+    }
+
+    public void record(int lane, int events, Instant newestEvent) {
+        lanes[lane].events.add(events);
+        lanes[lane].batches.increment();
+        if (newestEvent != null) {
+            lanes[lane].lagMillis.set(Math.max(0, Instant.now().toEpochMilli() - newestEvent.toEpochMilli()));
+        }
+    }
+
+    public PSequence<LaneStatsDto> snapshot() {
+        double elapsedSeconds = Math.max(1e-9, (System.nanoTime() - startedNanos) / 1e9);
+        List<LaneStatsDto> stats = new ArrayList<>();
+        for (int i = 0; i < lanes.length; i++) {
+            long events = lanes[i].events.sum();
+            stats.add(new LaneStatsDto(i, events, lanes[i].batches.sum(), events / elapsedSeconds,
+                    lanes[i].lagMillis.get()));
+        }
+        return TreePVector.from(stats);
+    }
+
+    private static final class Lane {
+        private final LongAdder events = new LongAdder();
+        private final LongAdder batches = new LongAdder();
+        private final AtomicLong lagMillis = new AtomicLong();
+    }
+}
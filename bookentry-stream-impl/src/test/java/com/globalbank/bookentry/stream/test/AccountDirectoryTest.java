@@ -0,0 +1,164 @@
+package com.globalbank.bookentry.stream.test;
+
+import com.globalbank.bookentry.stream.api.AccountStreamDto;
+import com.globalbank.bookentry.stream.impl.AccountDirectory;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.api.inject.DefaultApplicationLifecycle;
+import play.inject.DelegateApplicationLifecycle;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class AccountDirectoryTest {
+
+    private Path path;
+
+    @Before
+    public void createFile() throws Exception {
+        path = Files.createTempFile("account-directory", ".bin");
+    }
+
+    @After
+    public void deleteFile() throws Exception {
+        Files.deleteIfExists(path);
+    }
+
+    private AccountDirectory open(long capacity) {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("bookentry-stream.directory.enabled", true);
+        settings.put("bookentry-stream.directory.capacity", capacity);
+        settings.put("bookentry-stream.directory.path", path.toString());
+        Config config = ConfigFactory.parseMap(settings);
+        return new AccountDirectory(config, new DelegateApplicationLifecycle(new DefaultApplicationLifecycle()));
+    }
+
+    private static AccountStreamDto account(String accountNumber) {
+        return new AccountStreamDto(accountNumber, "Account " + accountNumber, "Savings", "GBP",
+                Instant.ofEpochSecond(1546300800L, 123456789));
+    }
+
+    @Test
+    public void shouldReadAccountsPut() {
+        AccountDirectory directory = open(1024);
+        AccountStreamDto account = account("123");
+        AccountStreamDto noDate = new AccountStreamDto("456", "Stan Bangaba", "Current", "ZWL", null);
+
+        assertTrue(directory.put(account));
+        assertTrue(directory.put(noDate));
+
+        assertEquals(Optional.of(account), directory.get("123"));
+        assertEquals(Optional.of(noDate), directory.get("456"));
+        assertEquals(Optional.empty(), directory.get("789"));
+        assertEquals(2, directory.size());
+    }
+
+    @Test
+    public void shouldReplaceAccountPutAgain() {
+        AccountDirectory directory = open(1024);
+        AccountStreamDto renamed = new AccountStreamDto("123", "Renamed", "Savings", "GBP", null);
+
+        assertTrue(directory.put(account("123")));
+        assertTrue(directory.put(renamed));
+
+        assertEquals(Optional.of(renamed), directory.get("123"));
+        assertEquals(1, directory.size());
+    }
+
+    @Test
+    public void shouldKeepCollidingAccountsApart() {
+        // 8 slots for 6 accounts, so most of them probe past a slot taken by another
+        AccountDirectory directory = open(8);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(directory.put(account("ACC" + i)));
+        }
+
+        for (int i = 0; i < 6; i++) {
+            assertEquals(Optional.of(account("ACC" + i)), directory.get("ACC" + i));
+        }
+        assertEquals(Optional.empty(), directory.get("ACC6"));
+        assertEquals(6, directory.size());
+    }
+
+    @Test
+    public void shouldRejectNewAccountsWhenFull() {
+        // capacity is rounded up to a power of two and filled up to three quarters
+        AccountDirectory directory = open(7);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(directory.put(account("ACC" + i)));
+        }
+
+        assertFalse(directory.put(account("ACC6")));
+        assertEquals(Optional.empty(), directory.get("ACC6"));
+        assertEquals(6, directory.size());
+
+        // accounts already stored are still replaced
+        AccountStreamDto renamed = new AccountStreamDto("ACC0", "Renamed", "Savings", "GBP", null);
+        assertTrue(directory.put(renamed));
+        assertEquals(Optional.of(renamed), directory.get("ACC0"));
+    }
+
+    @Test
+    public void shouldNotStoreFieldsTooLongForTheirSlot() {
+        AccountDirectory directory = open(1024);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            name.append('x');
+        }
+
+        assertFalse(directory.put(new AccountStreamDto("123", name.toString(), "Savings", "GBP", null)));
+        assertFalse(directory.put(account("123456789012345678901234567890123")));
+        assertEquals(Optional.empty(), directory.get("123"));
+        assertEquals(0, directory.size());
+    }
+
+    @Test
+    public void shouldKeepAccountsWhenReopened() {
+        AccountDirectory directory = open(1024);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(directory.put(account("ACC" + i)));
+        }
+        directory.flush();
+
+        AccountDirectory reopened = open(1024);
+        assertEquals(100, reopened.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Optional.of(account("ACC" + i)), reopened.get("ACC" + i));
+        }
+        assertTrue(reopened.put(account("ACC100")));
+        assertEquals(101, reopened.size());
+    }
+
+    @Test
+    public void shouldStartEmptyWhenReopenedWithAnotherCapacity() {
+        AccountDirectory directory = open(1024);
+        assertTrue(directory.put(account("123")));
+        directory.flush();
+
+        AccountDirectory resized = open(2048);
+        assertEquals(0, resized.size());
+        assertEquals(Optional.empty(), resized.get("123"));
+        assertTrue(resized.put(account("123")));
+        assertEquals(Optional.of(account("123")), resized.get("123"));
+    }
+
+    @Test
+    public void shouldAnswerNothingWhenDisabled() {
+        Config config = ConfigFactory.parseString("bookentry-stream.directory.enabled = off");
+        AccountDirectory directory = new AccountDirectory(config,
+                new DelegateApplicationLifecycle(new DefaultApplicationLifecycle()));
+
+        assertFalse(directory.put(account("123")));
+        assertEquals(Optional.empty(), directory.get("123"));
+        assertEquals(0, directory.size());
+    }
+}
@@ -0,0 +1,108 @@
+package com.globalbank.bookentry.stream.test;
+
+import akka.Done;
+import akka.NotUsed;
+import com.globalbank.bookentry.api.*;
+import com.lightbend.lagom.javadsl.api.ServiceCall;
+import com.lightbend.lagom.javadsl.api.broker.Topic;
+import com.lightbend.lagom.javadsl.testkit.ProducerStub;
+import com.lightbend.lagom.javadsl.testkit.ProducerStubFactory;
+import org.pcollections.PSequence;
+
+import javax.inject.Inject;
+
+/**
+ * Stands in for the BookentryService. Tests publish account events to the stub producer of the
+ * account-events topic, the calls are not used by the stream service and fail.
+ */
+public class BookentryServiceStub implements BookentryService {
+
+    public static final String ACCOUNT_EVENTS = "account-events";
+
+    private final ProducerStub<AccountEvent> accountEvents;
+
+    @Inject
+    public BookentryServiceStub(ProducerStubFactory producerFactory) {
+        this.accountEvents = producerFactory.producer(ACCOUNT_EVENTS);
+    }
+
+    @Override
+    public Topic<AccountEvent> accountEvents() {
+        return accountEvents.topic();
+    }
+
+    @Override
+    public ServiceCall<AddAccountDto, Done> addAccount() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<UpdateAccountDto, Done> updateAccount() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, ReadAccountDto> readAccount(String accountNumber) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, ReadAccountDto> readAccountEventually(String accountNumber) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<PSequence<String>, PSequence<ReadAccountDto>> readAccounts() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, ReadAccountDto> readSuspenseBalance(String currencyCode) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<DepositDto, ServiceResponse> performDeposit() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<TransferDto, ServiceResponse> performTransfer() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<ReversalDto, ServiceResponse> performReversal() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<TransferDto, TransferStatusDto> submitTransfer() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, TransferStatusDto> transferStatus(String transferId) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<BulkTransferDto, BulkTransferResponse> performBulkTransfer() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, ReconciliationReport> reconcile() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, PSequence<ReconciliationReport.Break>> reconciliationBreaks() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, String> metrics() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,408 @@
+package com.globalbank.bookentry.stream.test;
+
+import akka.stream.javadsl.Sink;
+import com.globalbank.bookentry.api.AccountEvent;
+import com.globalbank.bookentry.api.BookentryService;
+import com.globalbank.bookentry.stream.api.AccountStreamDto;
+import com.globalbank.bookentry.stream.api.BalanceAsOfDto;
+import com.globalbank.bookentry.stream.api.BookentryStreamService;
+import com.globalbank.bookentry.stream.api.LaneStatsDto;
+import com.globalbank.bookentry.stream.api.LedgerTotalDto;
+import com.globalbank.bookentry.stream.api.PostPageDto;
+import com.globalbank.bookentry.stream.api.PostStreamDto;
+import com.globalbank.bookentry.stream.api.TrialBalanceDto;
+import com.globalbank.bookentry.stream.impl.AccountDirectory;
+import com.globalbank.bookentry.stream.impl.BookentryStreamRepository;
+import com.globalbank.bookentry.stream.impl.LedgerTotals;
+import com.lightbend.lagom.javadsl.api.broker.Message;
+import com.lightbend.lagom.javadsl.broker.kafka.KafkaMetadataKeys;
+import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraSession;
+import com.lightbend.lagom.javadsl.testkit.ProducerStub;
+import com.lightbend.lagom.javadsl.testkit.ProducerStubFactory;
+import com.lightbend.lagom.javadsl.testkit.ServiceTest;
+import com.typesafe.config.Config;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pcollections.PSequence;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static com.lightbend.lagom.javadsl.testkit.ServiceTest.defaultSetup;
+import static com.lightbend.lagom.javadsl.testkit.ServiceTest.withServer;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+import static play.inject.Bindings.bind;
+
+public class BookentryStreamServiceTest {
+
+    private static Path directory;
+
+    @BeforeClass
+    public static void createDirectory() throws Exception {
+        directory = Files.createTempFile("account-directory", ".dat");
+    }
+
+    @AfterClass
+    public static void deleteDirectory() throws Exception {
+        Files.deleteIfExists(directory);
+    }
+
+    private static ServiceTest.Setup setup() {
+        return defaultSetup().withCassandra().configureBuilder(builder -> builder
+                .overrides(bind(BookentryService.class).to(BookentryServiceStub.class))
+                .configure("bookentry-stream.directory.path", directory.toString())
+                // wide enough for every event a test publishes to be grouped
+                .configure("bookentry-stream.projection.batch-window", "1s")
+                .configure("bookentry-stream.projection.lanes", 4)
+                // a few rows per page, so that exports read several pages
+                .configure("bookentry-stream.export.fetch-size", 3));
+    }
+
+    private static ProducerStub<AccountEvent> accountEvents(ServiceTest.TestServer server) {
+        return server.injector().instanceOf(ProducerStubFactory.class).producer(BookentryServiceStub.ACCOUNT_EVENTS);
+    }
+
+    private static <T> T eventually(Callable<T> read, Predicate<T> done) throws Exception {
+        long deadline = System.nanoTime() + SECONDS.toNanos(20);
+        T value = read.call();
+        while (!done.test(value) && System.nanoTime() < deadline) {
+            Thread.sleep(200);
+            value = read.call();
+        }
+        return value;
+    }
+
+    private static AccountEvent.AccountAdded accountAdded(String accountNumber, Instant timestamp) {
+        return new AccountEvent.AccountAdded(accountNumber, "Account " + accountNumber, "Savings", "GBP",
+                timestamp.toString());
+    }
+
+    private static AccountEvent.PostAdded postAdded(String accountNumber, String reference, String amount,
+                                                    String balance, Instant timestamp) {
+        return new AccountEvent.PostAdded(accountNumber, reference, "Deposit", new BigDecimal(amount),
+                new BigDecimal(balance), timestamp.toString());
+    }
+
+    @Test
+    public void shouldProjectEachAccountInOrderInBatchedLanes() {
+        withServer(setup(), server -> {
+            BookentryStreamService service = server.client(BookentryStreamService.class);
+            ProducerStub<AccountEvent> producer = accountEvents(server);
+
+            // the postings of the accounts interleaved, as the topic delivers them
+            Instant start = Instant.now().minus(1, ChronoUnit.MINUTES).truncatedTo(ChronoUnit.MILLIS);
+            String[] accounts = {"L1", "L2", "L3", "L4", "L5"};
+            for (String account : accounts) {
+                producer.send(accountAdded(account, start));
+            }
+            for (int i = 1; i <= 10; i++) {
+                for (String account : accounts) {
+                    producer.send(postAdded(account, "ref" + i, "10.00", (10 * i) + ".00", start.plusMillis(i)));
+                }
+            }
+
+            for (String account : accounts) {
+                PostPageDto page = eventually(() -> service.getAccountPostsPage(account, Optional.empty(),
+                        Optional.empty(), Optional.empty(), Optional.of(100)).invoke().toCompletableFuture().get(5, SECONDS),
+                        projected -> projected.getPosts().size() == 10);
+                assertEquals(10, page.getPosts().size());
+                // newest first, each balance the one after its own posting
+                for (int i = 0; i < 10; i++) {
+                    PostStreamDto post = page.getPosts().get(i);
+                    assertEquals("ref" + (10 - i), post.getReference());
+                    assertEquals(new BigDecimal((10 * (10 - i)) + ".00"), post.getBalance());
+                }
+                // the checkpoint of the day is that of the last posting, not of an earlier one of its batch
+                assertEquals(new BigDecimal("100.00"), service.getAccountBalanceAsOf(account, Optional.empty())
+                        .invoke().toCompletableFuture().get(5, SECONDS).getBalance());
+            }
+
+            long events = 0;
+            long batches = 0;
+            for (LaneStatsDto lane : service.getProjectionLanes().invoke().toCompletableFuture().get(5, SECONDS)) {
+                events += lane.getEvents();
+                batches += lane.getBatches();
+            }
+            assertEquals(55, events);
+            assertTrue("expected the events to be written in batches, got " + batches, batches < events);
+        });
+    }
+
+    @Test
+    public void shouldProjectABusyAccountInBatchesOfOnePartition() {
+        withServer(setup(), server -> {
+            BookentryStreamService service = server.client(BookentryStreamService.class);
+            ProducerStub<AccountEvent> producer = accountEvents(server);
+
+            // a whole group of postings of one account and day, far more rows than one batch may hold
+            Instant start = Instant.now().minus(1, ChronoUnit.MINUTES).truncatedTo(ChronoUnit.MILLIS);
+            producer.send(accountAdded("H1", start));
+            for (int i = 1; i <= 200; i++) {
+                producer.send(postAdded("H1", "ref" + i, "1.00", i + ".00", start.plusMillis(i)));
+            }
+
+            PostPageDto page = eventually(() -> service.getAccountPostsPage("H1", Optional.empty(),
+                    Optional.empty(), Optional.empty(), Optional.of(500)).invoke().toCompletableFuture().get(5, SECONDS),
+                    projected -> projected.getPosts().size() == 200);
+            assertEquals(200, page.getPosts().size());
+            assertEquals("ref200", page.getPosts().get(0).getReference());
+            assertEquals(new BigDecimal("200.00"), service.getAccountBalanceAsOf("H1", Optional.empty())
+                    .invoke().toCompletableFuture().get(5, SECONDS).getBalance());
+        });
+    }
+
+    @Test
+    public void shouldPageAcrossDaysWithPostingsOnly() {
+        withServer(setup(), server -> {
+            BookentryStreamService service = server.client(BookentryStreamService.class);
+            ProducerStub<AccountEvent> producer = accountEvents(server);
+
+            // one posting every ten days for 400 days, more days than the index is read at a time
+            Instant created = Instant.now().minus(401, ChronoUnit.DAYS).truncatedTo(ChronoUnit.MILLIS);
+            producer.send(accountAdded("P1", created));
+            for (int i = 1; i <= 40; i++) {
+                producer.send(postAdded("P1", "ref" + i, "1.00", i + ".00", created.plus(10 * i, ChronoUnit.DAYS)));
+            }
+
+            eventually(() -> service.getAccountBalanceAsOf("P1", Optional.empty()).invoke()
+                    .toCompletableFuture().get(5, SECONDS), balance -> balance.getBalance().equals(new BigDecimal("40.00")));
+
+            List<String> references = new ArrayList<>();
+            Optional<String> cursor = Optional.empty();
+            int pages = 0;
+            do {
+                PostPageDto page = service.getAccountPostsPage("P1", Optional.empty(), Optional.empty(), cursor,
+                        Optional.of(7)).invoke().toCompletableFuture().get(5, SECONDS);
+                page.getPosts().forEach(post -> references.add(post.getReference()));
+                cursor = page.getNextCursor();
+                pages++;
+            } while (cursor.isPresent() && pages < 10);
+
+            // newest first, every posting once
+            List<String> expected = new ArrayList<>();
+            for (int i = 40; i >= 1; i--) {
+                expected.add("ref" + i);
+            }
+            assertEquals(expected, references);
+            assertEquals(6, pages);
+
+            // a range only reads the postings inside it
+            PostPageDto range = service.getAccountPostsPage("P1",
+                    Optional.of(created.plus(95, ChronoUnit.DAYS).toString()),
+                    Optional.of(created.plus(125, ChronoUnit.DAYS).toString()), Optional.empty(), Optional.of(100))
+                    .invoke().toCompletableFuture().get(5, SECONDS);
+            assertEquals(Arrays.asList("ref12", "ref11", "ref10"),
+                    range.getPosts().stream().map(PostStreamDto::getReference).collect(Collectors.toList()));
+            assertFalse(range.getNextCursor().isPresent());
+
+            // the unpaged call answers the whole history, oldest first
+            PSequence<PostStreamDto> posts = service.getAccountPosts("P1").invoke().toCompletableFuture().get(5, SECONDS);
+            assertEquals(40, posts.size());
+            assertEquals("ref1", posts.get(0).getReference());
+            assertEquals("ref40", posts.get(39).getReference());
+        });
+    }
+
+    @Test
+    public void shouldExportAccountsAndPostingsPageByPage() {
+        withServer(setup(), server -> {
+            BookentryStreamService service = server.client(BookentryStreamService.class);
+            ProducerStub<AccountEvent> producer = accountEvents(server);
+
+            Instant start = Instant.now().minus(1, ChronoUnit.MINUTES).truncatedTo(ChronoUnit.MILLIS);
+            for (int i = 1; i <= 10; i++) {
+                producer.send(accountAdded("E" + i, start));
+                producer.send(postAdded("E" + i, "ref" + i, "5.00", "5.00", start.plusMillis(i)));
+            }
+            eventually(() -> service.getAccountBalanceAsOf("E10", Optional.empty()).invoke()
+                    .toCompletableFuture().get(5, SECONDS), balance -> balance.getLastPosted().isPresent());
+
+            List<AccountStreamDto> accounts = service.exportAccounts().invoke()
+                    .thenCompose(source -> source.runWith(Sink.seq(), server.materializer()))
+                    .toCompletableFuture().get(10, SECONDS);
+            Set<String> accountNumbers = accounts.stream().map(AccountStreamDto::getAccountNumber).collect(Collectors.toSet());
+            for (int i = 1; i <= 10; i++) {
+                assertTrue(accountNumbers.contains("E" + i));
+            }
+
+            List<PostStreamDto> posts = service.exportPosts().invoke()
+                    .thenCompose(source -> source.runWith(Sink.seq(), server.materializer()))
+                    .toCompletableFuture().get(10, SECONDS);
+            Set<String> references = posts.stream()
+                    .filter(post -> post.getAccountNumber().startsWith("E"))
+                    .map(PostStreamDto::getReference)
+                    .collect(Collectors.toSet());
+            assertEquals(10, references.size());
+        });
+    }
+
+    @Test
+    public void shouldBindEveryPreparedStatementOfTheRepository() {
+        withServer(setup(), server -> {
+            // every read and write binds a statement prepared on start up, or fails as not prepared
+            BookentryStreamRepository repository = server.injector().instanceOf(BookentryStreamRepository.class);
+            Instant created = Instant.now().minus(2, ChronoUnit.DAYS).truncatedTo(ChronoUnit.MILLIS);
+            Instant posted = created.plus(1, ChronoUnit.DAYS);
+
+            repository.createAccount("R1", "Account R1", "Savings", "GBP", created).toCompletableFuture().get(5, SECONDS);
+            repository.createPost("R1", "ref1", "Deposit", new BigDecimal("1.00"), new BigDecimal("1.00"), posted)
+                    .toCompletableFuture().get(5, SECONDS);
+            repository.createBatch(Arrays.<AccountEvent>asList(accountAdded("R2", created),
+                    postAdded("R2", "ref1", "2.00", "2.00", posted), postAdded("R2", "ref2", "2.00", "4.00", posted.plusMillis(1))))
+                    .toCompletableFuture().get(5, SECONDS);
+
+            assertEquals("Account R1", repository.getAccount("R1").toCompletableFuture().get(5, SECONDS).get().getAccountName());
+            assertTrue(repository.getAllAccounts().toCompletableFuture().get(5, SECONDS).stream()
+                    .anyMatch(account -> account.getAccountNumber().equals("R2")));
+            assertEquals(new BigDecimal("4.00"), repository.getBalanceAsOf("R2", Instant.now())
+                    .toCompletableFuture().get(5, SECONDS).getBalance());
+
+            PostPageDto first = repository.getAccountPosts("R2", created, Instant.now(), Optional.empty(), 1)
+                    .toCompletableFuture().get(5, SECONDS);
+            PostPageDto second = repository.getAccountPosts("R2", created, Instant.now(), first.getNextCursor(), 1)
+                    .toCompletableFuture().get(5, SECONDS);
+            assertEquals("ref2", first.getPosts().get(0).getReference());
+            assertEquals("ref1", second.getPosts().get(0).getReference());
+            assertEquals(2, repository.streamAccountPosts("R2", created, Instant.now())
+                    .runWith(Sink.seq(), server.materializer()).toCompletableFuture().get(5, SECONDS).size());
+
+            // the migration and backfill statements, over the rows just written
+            repository.legacyPosts()
+                    .mapAsync(1, repository::copyLegacyPost)
+                    .runWith(Sink.ignore(), server.materializer()).toCompletableFuture().get(10, SECONDS);
+            repository.postPartitions()
+                    .mapAsync(1, repository::backfillCheckpoint)
+                    .runWith(Sink.ignore(), server.materializer()).toCompletableFuture().get(10, SECONDS);
+            assertEquals(new BigDecimal("1.00"), repository.getBalanceAsOf("R1", Instant.now())
+                    .toCompletableFuture().get(5, SECONDS).getBalance());
+
+            assertFalse(repository.streamAllAccounts().runWith(Sink.seq(), server.materializer())
+                    .toCompletableFuture().get(10, SECONDS).isEmpty());
+            assertFalse(repository.streamAllPosts().runWith(Sink.seq(), server.materializer())
+                    .toCompletableFuture().get(10, SECONDS).isEmpty());
+            assertFalse(repository.getAllPosts().toCompletableFuture().get(5, SECONDS).isEmpty());
+        });
+    }
+
+    @Test
+    public void shouldAnswerBalanceAsOfFromCheckpointsAndSameDayPostings() {
+        withServer(setup(), server -> {
+            BookentryStreamService service = server.client(BookentryStreamService.class);
+            ProducerStub<AccountEvent> producer = accountEvents(server);
+
+            // postings at 10:00, 11:00 and 12:00 of one day and 10:00 of two days later, none in between
+            Instant day1 = Instant.now().truncatedTo(ChronoUnit.DAYS).minus(10, ChronoUnit.DAYS);
+            Instant day3 = day1.plus(2, ChronoUnit.DAYS);
+            producer.send(accountAdded("B1", day1));
+            producer.send(postAdded("B1", "ref1", "10.00", "10.00", day1.plus(10, ChronoUnit.HOURS)));
+            producer.send(postAdded("B1", "ref2", "5.00", "15.00", day1.plus(11, ChronoUnit.HOURS)));
+            producer.send(postAdded("B1", "ref3", "-3.00", "12.00", day1.plus(12, ChronoUnit.HOURS)));
+            producer.send(postAdded("B1", "ref4", "8.00", "20.00", day3.plus(10, ChronoUnit.HOURS)));
+
+            eventually(() -> balanceAsOf(service, "B1", Instant.now()),
+                    balance -> balance.getBalance().equals(new BigDecimal("20.00")));
+
+            BalanceAsOfDto beforeFirst = balanceAsOf(service, "B1", day1.plus(9, ChronoUnit.HOURS));
+            assertEquals(0, beforeFirst.getBalance().signum());
+            assertFalse(beforeFirst.getLastPosted().isPresent());
+
+            // the same day: the last posting up to the moment
+            assertEquals(new BigDecimal("15.00"), balanceAsOf(service, "B1", day1.plus(11, ChronoUnit.HOURS)).getBalance());
+            assertEquals(new BigDecimal("15.00"), balanceAsOf(service, "B1", day1.plus(690, ChronoUnit.MINUTES)).getBalance());
+
+            // a day without postings, and a day before its first posting: the checkpoint of the day before
+            BalanceAsOfDto dayBetween = balanceAsOf(service, "B1", day1.plus(36, ChronoUnit.HOURS));
+            assertEquals(new BigDecimal("12.00"), dayBetween.getBalance());
+            assertEquals(Optional.of(day1.plus(12, ChronoUnit.HOURS)), dayBetween.getLastPosted());
+            assertEquals(new BigDecimal("12.00"), balanceAsOf(service, "B1", day3.plus(9, ChronoUnit.HOURS)).getBalance());
+
+            assertEquals(new BigDecimal("20.00"), balanceAsOf(service, "B1", day3.plus(10, ChronoUnit.HOURS)).getBalance());
+        });
+    }
+
+    private static BalanceAsOfDto balanceAsOf(BookentryStreamService service, String accountNumber, Instant at)
+            throws Exception {
+        return service.getAccountBalanceAsOf(accountNumber, Optional.of(at.toString())).invoke()
+                .toCompletableFuture().get(5, SECONDS);
+    }
+
+    @Test
+    public void shouldKeepLedgerTotalsPerCurrencyAndAccountType() {
+        withServer(setup(), server -> {
+            BookentryStreamService service = server.client(BookentryStreamService.class);
+            ProducerStub<AccountEvent> producer = accountEvents(server);
+
+            Instant start = Instant.now().minus(1, ChronoUnit.MINUTES).truncatedTo(ChronoUnit.MILLIS);
+            producer.send(new AccountEvent.AccountAdded("T1", "Account T1", "Savings", "TBX", start.toString()));
+            producer.send(new AccountEvent.AccountAdded("T2", "Suspense TBX", "Suspense", "TBX", start.toString()));
+            producer.send(postAdded("T1", "ref1", "10.00", "10.00", start.plusMillis(1)));
+            producer.send(postAdded("T1", "ref2", "5.00", "15.00", start.plusMillis(2)));
+            producer.send(postAdded("T2", "ref1", "-15.00", "-15.00", start.plusMillis(3)));
+            // an account the read model does not know
+            producer.send(postAdded("T3", "ref1", "7.00", "7.00", start.plusMillis(4)));
+
+            TrialBalanceDto trialBalance = eventually(() -> service.getTrialBalance().invoke()
+                    .toCompletableFuture().get(5, SECONDS), balance -> total(balance.getCurrencies(), "TBX", null)
+                    .map(total -> total.getPostings() == 3).orElse(false)
+                    && total(balance.getCurrencies(), "UNKNOWN", null).isPresent());
+
+            LedgerTotalDto currency = total(trialBalance.getCurrencies(), "TBX", null).get();
+            assertAmount("15.00", currency.getCredits());
+            assertAmount("15.00", currency.getDebits());
+            assertAmount("0", currency.getNet());
+
+            LedgerTotalDto savings = total(trialBalance.getAccountTypes(), "TBX", "Savings").get();
+            assertAmount("15.00", savings.getCredits());
+            assertAmount("0", savings.getDebits());
+            assertEquals(2, savings.getPostings());
+            LedgerTotalDto suspense = total(trialBalance.getAccountTypes(), "TBX", "Suspense").get();
+            assertAmount("15.00", suspense.getDebits());
+            assertAmount("-15.00", suspense.getNet());
+
+            assertAmount("7.00", total(trialBalance.getCurrencies(), "UNKNOWN", null).get().getCredits());
+            assertEquals(Optional.of(start.plusMillis(4)), trialBalance.getLastPosted());
+
+            // totals kept by another node, or restored from their checkpoint, count a redelivered message once
+            // and the trial balance sums the partitions of every node
+            LedgerTotals other = new LedgerTotals(server.injector().instanceOf(CassandraSession.class),
+                    server.injector().instanceOf(BookentryStreamRepository.class),
+                    server.injector().instanceOf(AccountDirectory.class), server.injector().instanceOf(Config.class));
+            Message<AccountEvent> message = Message.<AccountEvent>create(postAdded("T1", "ref3", "1.00", "16.00",
+                    start.plusMillis(5))).add(KafkaMetadataKeys.PARTITION, 0).add(KafkaMetadataKeys.OFFSET, 1000L);
+            other.apply(Collections.singletonList(message)).toCompletableFuture().get(5, SECONDS);
+            other.apply(Collections.singletonList(message)).toCompletableFuture().get(5, SECONDS);
+
+            TrialBalanceDto summed = service.getTrialBalance().invoke().toCompletableFuture().get(5, SECONDS);
+            LedgerTotalDto restored = total(summed.getAccountTypes(), "TBX", "Savings").get();
+            assertEquals(3, restored.getPostings());
+            assertAmount("16.00", restored.getCredits());
+            assertEquals(restored, total(other.trialBalance().toCompletableFuture().get(5, SECONDS).getAccountTypes(),
+                    "TBX", "Savings").get());
+        });
+    }
+
+    private static Optional<LedgerTotalDto> total(List<LedgerTotalDto> totals, String currencyCode, String accountType) {
+        return totals.stream()
+                .filter(total -> total.getCurrencyCode().equals(currencyCode)
+                        && total.getAccountType().equals(Optional.ofNullable(accountType)))
+                .findFirst();
+    }
+
+    private static void assertAmount(String expected, BigDecimal actual) {
+        assertEquals(expected + " != " + actual, 0, new BigDecimal(expected).compareTo(actual));
+    }
+}
@@ -0,0 +1,243 @@
+package com.globalbank.bookentry.stream.test;
+
+import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import com.globalbank.bookentry.api.AccountEvent;
+import com.globalbank.bookentry.stream.api.PostStreamDto;
+import com.globalbank.bookentry.stream.impl.PostingArchive;
+import com.lightbend.lagom.javadsl.api.broker.Message;
+import com.lightbend.lagom.javadsl.broker.kafka.KafkaMetadataKeys;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import play.api.inject.DefaultApplicationLifecycle;
+import play.inject.DelegateApplicationLifecycle;
+import scala.concurrent.Await;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+public class PostingArchiveTest {
+
+    private static ActorSystem system;
+    private static Materializer materializer;
+
+    private Path directory;
+
+    @BeforeClass
+    public static void startSystem() {
+        system = ActorSystem.create("PostingArchiveTest");
+        materializer = ActorMaterializer.create(system);
+    }
+
+    @AfterClass
+    public static void stopSystem() {
+        system.terminate();
+    }
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("posting-archive");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private PostingArchive open(boolean enabled) {
+        return open(enabled, new DefaultApplicationLifecycle());
+    }
+
+    private PostingArchive open(boolean enabled, DefaultApplicationLifecycle lifecycle) {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("bookentry-stream.archive.enabled", enabled);
+        settings.put("bookentry-stream.archive.path", directory.toString());
+        settings.put("bookentry-stream.archive.buckets", 2);
+        // small segments and blocks, so that a statement spans several of each
+        settings.put("bookentry-stream.archive.segment-size", 2048);
+        settings.put("bookentry-stream.archive.index-interval", 256);
+        settings.put("bookentry-stream.archive.accounts", 100);
+        Config config = ConfigFactory.parseMap(settings);
+        return new PostingArchive(config, new DelegateApplicationLifecycle(lifecycle));
+    }
+
+    private static AccountEvent.PostAdded postAdded(String accountNumber, int i, Instant timestamp) {
+        return new AccountEvent.PostAdded(accountNumber, "ref" + i, "Deposit", new BigDecimal("1.00"),
+                new BigDecimal(i + ".00"), timestamp.toString());
+    }
+
+    // the events as consumed from one partition, from the given offset on
+    private static List<Message<AccountEvent>> messages(int partition, long offset, List<AccountEvent> events) {
+        List<Message<AccountEvent>> messages = new ArrayList<>();
+        for (AccountEvent event : events) {
+            messages.add(Message.create(event).add(KafkaMetadataKeys.PARTITION, partition)
+                    .add(KafkaMetadataKeys.OFFSET, offset++));
+        }
+        return messages;
+    }
+
+    private static List<String> references(PostingArchive archive, String accountNumber, Instant from, Instant to)
+            throws Exception {
+        return archive.statement(accountNumber, from, to)
+                .runWith(Sink.seq(), materializer)
+                .toCompletableFuture().get(5, SECONDS)
+                .stream().map(PostStreamDto::getReference).collect(Collectors.toList());
+    }
+
+    private static List<String> expected(int first, int last) {
+        List<String> references = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            references.add("ref" + i);
+        }
+        return references;
+    }
+
+    @Test
+    public void shouldCoverAccountsOfPartitionsArchivedWithoutGap() {
+        Instant start = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        PostingArchive archive = open(true);
+        archive.append(messages(0, 100, Arrays.asList(postAdded("C1", 1, start.plusSeconds(10)),
+                postAdded("C2", 2, start.plusSeconds(11)))));
+        archive.append(messages(1, 500, Collections.singletonList(postAdded("C3", 3, start.plusSeconds(12)))));
+
+        // from the first message archived of the partition of the account
+        assertTrue(archive.covers("C1", start.plusSeconds(10)));
+        assertTrue(archive.covers("C2", start.plusSeconds(20)));
+        assertFalse(archive.covers("C1", start.plusSeconds(9)));
+        assertTrue(archive.covers("C3", start.plusSeconds(12)));
+        // an account whose partition is unknown is not covered
+        assertFalse(archive.covers("C4", start.plusSeconds(20)));
+
+        // a redelivered offset keeps the partition, a skipped one restarts it
+        archive.append(messages(0, 101, Collections.singletonList(postAdded("C1", 4, start.plusSeconds(13)))));
+        assertTrue(archive.covers("C2", start.plusSeconds(10)));
+        archive.append(messages(0, 105, Collections.singletonList(postAdded("C1", 5, start.plusSeconds(14)))));
+        assertFalse(archive.covers("C2", start.plusSeconds(10)));
+        assertTrue(archive.covers("C2", start.plusSeconds(14)));
+        assertTrue(archive.covers("C3", start.plusSeconds(12)));
+
+        assertFalse(open(false).covers("C1", start.plusSeconds(20)));
+    }
+
+    @Test
+    public void shouldKeepPartitionsOnlyWhenClosedCleanly() throws Exception {
+        Instant start = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        DefaultApplicationLifecycle lifecycle = new DefaultApplicationLifecycle();
+        PostingArchive archive = open(true, lifecycle);
+        archive.append(messages(0, 0, Collections.singletonList(postAdded("K1", 1, start))));
+        Await.result(lifecycle.stop(), FiniteDuration.create(5, SECONDS));
+
+        // a reopened archive covers the partition again once it learns the partition of the account
+        PostingArchive reopened = open(true);
+        assertFalse(reopened.covers("K1", start));
+        reopened.append(messages(0, 1, Collections.singletonList(postAdded("K1", 2, start.plusSeconds(1)))));
+        assertTrue(reopened.covers("K1", start));
+
+        // not closed, so after this crash the partition restarts from the next message
+        PostingArchive crashed = open(true);
+        crashed.append(messages(0, 2, Collections.singletonList(postAdded("K1", 3, start.plusSeconds(2)))));
+        assertFalse(crashed.covers("K1", start));
+        assertTrue(crashed.covers("K1", start.plusSeconds(2)));
+    }
+
+    @Test
+    public void shouldServeStatementOfOneAccountOldestFirst() throws Exception {
+        PostingArchive archive = open(true);
+        Instant start = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        List<AccountEvent> events = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            events.add(postAdded("S1", i, start.plusSeconds(i)));
+            events.add(postAdded("S2", i, start.plusSeconds(i)));
+            events.add(new AccountEvent.AccountAdded("S" + (i + 2), "Account", "Savings", "GBP", start.toString()));
+        }
+        archive.append(messages(0, 0, events));
+
+        PostStreamDto first = archive.statement("S1", start, start.plusSeconds(1))
+                .runWith(Sink.head(), materializer).toCompletableFuture().get(5, SECONDS);
+        assertEquals("S1", first.getAccountNumber());
+        assertEquals("ref1", first.getReference());
+        assertEquals(new BigDecimal("1.00"), first.getAmount());
+        assertEquals(new BigDecimal("1.00"), first.getBalance());
+        assertEquals(start.plusSeconds(1), first.getDateCreated());
+
+        assertEquals(expected(1, 100), references(archive, "S1", start, start.plusSeconds(100)));
+        assertEquals(expected(1, 100), references(archive, "S2", start, start.plusSeconds(100)));
+        // bounds are inclusive, blocks outside the range are skipped
+        assertEquals(expected(40, 60), references(archive, "S1", start.plusSeconds(40), start.plusSeconds(60)));
+        assertEquals(expected(1, 0), references(archive, "S3", start, start.plusSeconds(100)));
+    }
+
+    @Test
+    public void shouldDropRedeliveredPostings() throws Exception {
+        PostingArchive archive = open(true);
+        Instant start = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        List<AccountEvent> events = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            events.add(postAdded("D1", i, start.plusSeconds(i)));
+        }
+        archive.append(messages(0, 0, events));
+        // redelivered after a restart, from some way back
+        archive.append(messages(0, 10, events.subList(10, 20)));
+        // a posting of the same time and reference with another amount is not a repeat
+        AccountEvent.PostAdded fee = new AccountEvent.PostAdded("D1", "ref20", "Fee", new BigDecimal("-0.50"),
+                new BigDecimal("19.50"), start.plusSeconds(20).toString());
+        archive.append(messages(0, 20, Collections.singletonList(fee)));
+
+        List<String> references = expected(1, 20);
+        references.add("ref20");
+        assertEquals(references, references(archive, "D1", start, start.plusSeconds(20)));
+    }
+
+    @Test
+    public void shouldKeepPostingsAndCutTornRecordsWhenReopened() throws Exception {
+        PostingArchive archive = open(true);
+        Instant start = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        List<AccountEvent> events = new ArrayList<>();
+        for (int i = 1; i <= 50; i++) {
+            events.add(postAdded("T1", i, start.plusSeconds(i)));
+        }
+        archive.append(messages(0, 0, events));
+
+        // a record torn by a crash at the end of the last segment of each bucket
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path segment : files.filter(file -> file.toString().endsWith(".seg")).collect(Collectors.toList())) {
+                Files.write(segment, new byte[]{0, 0, 0, 100, 1, 2, 3}, StandardOpenOption.APPEND);
+            }
+        }
+
+        PostingArchive reopened = open(true);
+        assertEquals(expected(1, 50), references(reopened, "T1", start, start.plusSeconds(50)));
+
+        reopened.append(messages(0, 50, Collections.singletonList(postAdded("T1", 51, start.plusSeconds(51)))));
+        assertEquals(expected(1, 51), references(reopened, "T1", start, start.plusSeconds(51)));
+    }
+}